@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+
+/**
+ * A worker's whole split held in memory in compressed sparse row form: a
+ * label per record, each record's start in the column / value arrays, and the
+ * columns and values of all the records back to back. Values are kept as
+ * floats, about 8 bytes per non-zero all in.
+ *
+ * Every pass after the first walks the records in a freshly shuffled order,
+ * which SGD converges better with than the same file order every time.
+ *
+ * Append() refuses to grow past maxBytes, so a split that doesn't fit just
+ * means the worker goes back to reading the text.
+ *
+ * @author jpatterson
+ *
+ */
+public class InMemoryCSRDataset implements VectorizedRecordStore {
+
+  private static final int INITIAL_RECORDS = 1024;
+  private static final int INITIAL_NON_ZEROS = 16 * 1024;
+
+  private final long maxBytes;
+  private final boolean shuffle;
+  private final Random rnd;
+
+  private int[] labels = new int[INITIAL_RECORDS];
+  // record r is columns / values [rowStarts[r], rowStarts[r + 1])
+  private int[] rowStarts = new int[INITIAL_RECORDS + 1];
+  private int[] columns = new int[INITIAL_NON_ZEROS];
+  private float[] values = new float[INITIAL_NON_ZEROS];
+
+  private int numRecords = 0;
+  private int numNonZeros = 0;
+
+  // the order of the current pass
+  private int[] order = null;
+  private int position = 0;
+
+  /**
+   * @param maxBytes
+   *          how much memory the arrays may take up
+   * @param shuffle
+   *          shuffle the records for every pass
+   * @param seed
+   *          for the shuffles, so runs can be repeated
+   */
+  public InMemoryCSRDataset(long maxBytes, boolean shuffle, long seed) {
+    this.maxBytes = maxBytes;
+    this.shuffle = shuffle;
+    this.rnd = new Random(seed);
+  }
+
+  @Override
+  public synchronized void Append(int label, PrimitiveSparseVector v)
+      throws IOException {
+
+    if (null == this.labels) {
+      throw new IOException("In memory dataset was already deleted");
+    }
+
+    int n = v.getNumNondefaultElements();
+
+    if (this.numRecords == this.labels.length) {
+      int grown = Grow(this.labels.length);
+      CheckSize(grown, this.columns.length);
+      this.labels = Arrays.copyOf(this.labels, grown);
+      this.rowStarts = Arrays.copyOf(this.rowStarts, grown + 1);
+    }
+
+    if ((long) this.numNonZeros + n > Integer.MAX_VALUE) {
+      throw new IOException("Too many non-zeros to keep the split in memory");
+    }
+    if (this.numNonZeros + n > this.columns.length) {
+      int grown = Math.max(Grow(this.columns.length), this.numNonZeros + n);
+      CheckSize(this.labels.length, grown);
+      this.columns = Arrays.copyOf(this.columns, grown);
+      this.values = Arrays.copyOf(this.values, grown);
+    }
+
+    int[] indexes = v.getIndexes();
+    double[] vals = v.getValues();
+    for (int x = 0; x < n; x++) {
+      this.columns[this.numNonZeros + x] = indexes[x];
+      this.values[this.numNonZeros + x] = (float) vals[x];
+    }
+
+    this.labels[this.numRecords] = label;
+    this.rowStarts[this.numRecords] = this.numNonZeros;
+    this.numNonZeros += n;
+    this.numRecords++;
+    this.rowStarts[this.numRecords] = this.numNonZeros;
+
+  }
+
+  private static int Grow(int length) {
+    return (int) Math.min(Integer.MAX_VALUE - 8, length + (length >> 1) + 16);
+  }
+
+  private void CheckSize(long records, long nonZeros) throws IOException {
+
+    long bytes = records * 8 + nonZeros * 8;
+    if (bytes > this.maxBytes) {
+      throw new IOException("Split needs more than " + this.maxBytes
+          + " bytes to keep in memory");
+    }
+
+  }
+
+  /**
+   * Trims the arrays down to what the split actually used
+   */
+  @Override
+  public void StartReading() throws IOException {
+
+    this.labels = Arrays.copyOf(this.labels, this.numRecords);
+    this.rowStarts = Arrays.copyOf(this.rowStarts, this.numRecords + 1);
+    this.columns = Arrays.copyOf(this.columns, this.numNonZeros);
+    this.values = Arrays.copyOf(this.values, this.numNonZeros);
+
+    this.order = new int[this.numRecords];
+    for (int x = 0; x < this.numRecords; x++) {
+      this.order[x] = x;
+    }
+    Reset();
+
+  }
+
+  /**
+   * Starts the next pass, in a new random order if we're shuffling
+   */
+  @Override
+  public void Reset() {
+
+    this.position = 0;
+
+    if (this.shuffle) {
+      for (int x = this.order.length - 1; x > 0; x--) {
+        int y = this.rnd.nextInt(x + 1);
+        int swap = this.order[x];
+        this.order[x] = this.order[y];
+        this.order[y] = swap;
+      }
+    }
+
+  }
+
+  @Override
+  public boolean HasNext() {
+    return this.position < this.numRecords;
+  }
+
+  @Override
+  public int Next(PrimitiveSparseVector v) {
+
+    int r = this.order[this.position++];
+
+    v.clear();
+    for (int x = this.rowStarts[r]; x < this.rowStarts[r + 1]; x++) {
+      v.appendQuick(this.columns[x], this.values[x]);
+    }
+    return this.labels[r];
+
+  }
+
+  @Override
+  public long getRecordCount() {
+    return this.numRecords;
+  }
+
+  public long getNonZeroCount() {
+    return this.numNonZeros;
+  }
+
+  @Override
+  public synchronized void Delete() {
+
+    this.labels = null;
+    this.rowStarts = null;
+    this.columns = null;
+    this.values = null;
+    this.order = null;
+    this.numRecords = 0;
+    this.numNonZeros = 0;
+
+  }
+
+}
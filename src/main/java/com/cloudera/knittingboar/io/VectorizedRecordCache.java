@@ -0,0 +1,373 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+
+/**
+ * Local disk cache of vectorized records, so a worker only has to run its
+ * split through the RecordFactory once
+ *
+ * The first pass Append()s every (label, indexes, values) record as it's
+ * trained; after FinishWrite() the later passes OpenForRead() and stream the
+ * records back out of a memory mapped view of the file.
+ *
+ * Layout (native byte order, the file never leaves the box):
+ *
+ * header: magic, version, key length, key (UTF-8)
+ *
+ * records: label, nnz, nnz x index, nnz x value (double)
+ *
+ * trailer: record count (long), magic
+ *
+ * The key describes what produced the records (split and RecordFactory
+ * settings) and has to match on OpenForRead(), as does the trailer - a cache
+ * that wasn't finished or was written for something else is rejected with an
+ * IOException, and the caller should go back to the text.
+ *
+ * @author jpatterson
+ *
+ */
+public class VectorizedRecordCache implements VectorizedRecordStore {
+
+  private static final int MAGIC = 0x4b425643; // "KBVC"
+  private static final int VERSION = 1;
+  private static final int TRAILER_BYTES = 8 + 4;
+
+  // how much of the file we map at a time
+  private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+  private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+  private final File file;
+  private final String key;
+
+  // writing
+  private FileOutputStream out = null;
+  private FileChannel outChannel = null;
+  private ByteBuffer staging = null;
+  private long recordsWritten = 0;
+
+  // reading
+  private RandomAccessFile in = null;
+  private FileChannel inChannel = null;
+  private MappedByteBuffer mapped = null;
+  private long mappedStart = 0;
+  private long recordsStart = 0;
+  private long recordsEnd = 0;
+  private long recordCount = 0;
+  private long recordsRead = 0;
+
+  public VectorizedRecordCache(File file, String key) {
+    this.file = file;
+    this.key = key;
+  }
+
+  public File getFile() {
+    return this.file;
+  }
+
+  @Override
+  public long getRecordCount() {
+    return this.recordCount;
+  }
+
+  public void BeginWrite() throws IOException {
+
+    this.out = new FileOutputStream(this.file);
+    this.outChannel = this.out.getChannel();
+    this.staging = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(
+        ByteOrder.nativeOrder());
+    this.recordsWritten = 0;
+
+    byte[] keyBytes = this.key.getBytes("UTF-8");
+    Reserve(12 + keyBytes.length);
+    this.staging.putInt(MAGIC);
+    this.staging.putInt(VERSION);
+    this.staging.putInt(keyBytes.length);
+    this.staging.put(keyBytes);
+
+  }
+
+  /**
+   * Adds a record. Synchronized so several training threads can share the
+   * cache, the order the records come back in doesn't matter.
+   */
+  @Override
+  public synchronized void Append(int label, PrimitiveSparseVector v)
+      throws IOException {
+
+    if (null == this.outChannel) {
+      throw new IOException("Vectorized record cache " + this.file
+          + " isn't open for writing");
+    }
+
+    int n = v.getNumNondefaultElements();
+    int[] indexes = v.getIndexes();
+    double[] values = v.getValues();
+
+    Reserve(8 + n * 12);
+    this.staging.putInt(label);
+    this.staging.putInt(n);
+    for (int x = 0; x < n; x++) {
+      this.staging.putInt(indexes[x]);
+    }
+    for (int x = 0; x < n; x++) {
+      this.staging.putDouble(values[x]);
+    }
+    this.recordsWritten++;
+
+  }
+
+  /**
+   * Writes the trailer and closes the file, the cache can be read after this
+   */
+  public void FinishWrite() throws IOException {
+
+    Reserve(TRAILER_BYTES);
+    this.staging.putLong(this.recordsWritten);
+    this.staging.putInt(MAGIC);
+    Flush();
+
+    this.outChannel.close();
+    this.out.close();
+    this.outChannel = null;
+    this.out = null;
+    this.staging = null;
+
+  }
+
+  private void Reserve(int bytes) throws IOException {
+
+    if (this.staging.remaining() >= bytes) {
+      return;
+    }
+    Flush();
+    if (this.staging.capacity() < bytes) {
+      this.staging = ByteBuffer.allocate(bytes).order(ByteOrder.nativeOrder());
+    }
+
+  }
+
+  private void Flush() throws IOException {
+
+    this.staging.flip();
+    while (this.staging.hasRemaining()) {
+      this.outChannel.write(this.staging);
+    }
+    this.staging.clear();
+
+  }
+
+  /**
+   * FinishWrite() then OpenForRead()
+   */
+  @Override
+  public void StartReading() throws IOException {
+
+    FinishWrite();
+    OpenForRead();
+
+  }
+
+  /**
+   * Checks the header and trailer against our key and maps the start of the
+   * records
+   *
+   * @throws IOException
+   *           if the file can't be read or isn't a finished cache for this
+   *           key
+   */
+  public void OpenForRead() throws IOException {
+
+    this.in = new RandomAccessFile(this.file, "r");
+    this.inChannel = this.in.getChannel();
+
+    long length = this.inChannel.size();
+    if (length < 12 + TRAILER_BYTES) {
+      Close();
+      throw new IOException("Vectorized record cache " + this.file
+          + " is truncated");
+    }
+
+    // header
+    MappedByteBuffer header = this.inChannel.map(FileChannel.MapMode.READ_ONLY,
+        0, Math.min(length, 12 + 64 * 1024));
+    header.order(ByteOrder.nativeOrder());
+    if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+      Close();
+      throw new IOException("Vectorized record cache " + this.file
+          + " has a bad header");
+    }
+    int keyLength = header.getInt();
+    byte[] keyBytes = this.key.getBytes("UTF-8");
+    boolean keyMatches = (keyLength == keyBytes.length && header
+        .remaining() >= keyLength);
+    for (int x = 0; keyMatches && x < keyLength; x++) {
+      keyMatches = (header.get() == keyBytes[x]);
+    }
+    if (!keyMatches) {
+      Close();
+      throw new IOException("Vectorized record cache " + this.file
+          + " was written for different records");
+    }
+
+    // trailer
+    MappedByteBuffer trailer = this.inChannel.map(
+        FileChannel.MapMode.READ_ONLY, length - TRAILER_BYTES, TRAILER_BYTES);
+    trailer.order(ByteOrder.nativeOrder());
+    this.recordCount = trailer.getLong();
+    if (trailer.getInt() != MAGIC || this.recordCount < 0) {
+      Close();
+      throw new IOException("Vectorized record cache " + this.file
+          + " was never finished");
+    }
+
+    this.recordsStart = 12 + keyLength;
+    this.recordsEnd = length - TRAILER_BYTES;
+    Reset();
+
+  }
+
+  /**
+   * Back to the first record, for the next pass
+   */
+  @Override
+  public void Reset() throws IOException {
+
+    this.recordsRead = 0;
+    Map(this.recordsStart, 0);
+
+  }
+
+  @Override
+  public boolean HasNext() {
+    return this.recordsRead < this.recordCount;
+  }
+
+  /**
+   * Loads the next record into v
+   *
+   * @return the record's label
+   */
+  @Override
+  public int Next(PrimitiveSparseVector v) throws IOException {
+
+    Ensure(8);
+    int label = this.mapped.getInt();
+    int n = this.mapped.getInt();
+    if (n < 0) {
+      throw new IOException("Vectorized record cache " + this.file
+          + " is corrupt at record " + this.recordsRead);
+    }
+
+    Ensure(n * 12);
+    int indexStart = this.mapped.position();
+    int valueStart = indexStart + n * 4;
+
+    v.clear();
+    for (int x = 0; x < n; x++) {
+      v.appendQuick(this.mapped.getInt(indexStart + x * 4),
+          this.mapped.getDouble(valueStart + x * 8));
+    }
+    this.mapped.position(valueStart + n * 8);
+
+    this.recordsRead++;
+    return label;
+
+  }
+
+  /**
+   * Makes sure the next bytes of the file are in the mapped window, sliding it
+   * forward if not
+   */
+  private void Ensure(int bytes) throws IOException {
+
+    if (this.mapped.remaining() < bytes) {
+      Map(this.mappedStart + this.mapped.position(), bytes);
+    }
+
+  }
+
+  private void Map(long start, int minimum) throws IOException {
+
+    long size = Math.min(Math.max(MAP_WINDOW, minimum), this.recordsEnd
+        - start);
+    if (size < minimum) {
+      throw new IOException("Vectorized record cache " + this.file
+          + " is truncated");
+    }
+
+    this.mapped = this.inChannel.map(FileChannel.MapMode.READ_ONLY, start,
+        size);
+    this.mapped.order(ByteOrder.nativeOrder());
+    this.mappedStart = start;
+
+  }
+
+  public void Close() {
+
+    try {
+      if (null != this.outChannel) {
+        this.outChannel.close();
+      }
+      if (null != this.out) {
+        this.out.close();
+      }
+      if (null != this.inChannel) {
+        this.inChannel.close();
+      }
+      if (null != this.in) {
+        this.in.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    this.outChannel = null;
+    this.out = null;
+    this.inChannel = null;
+    this.in = null;
+    this.mapped = null;
+
+  }
+
+  /**
+   * Closes and deletes the cache file
+   */
+  @Override
+  public void Delete() {
+
+    Close();
+    if (this.file.exists() && !this.file.delete()) {
+      System.err.println("VectorizedRecordCache: could not delete "
+          + this.file);
+    }
+
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.io;
+
+import java.io.IOException;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+
+/**
+ * Somewhere for a worker to keep its split's vectorized records after the
+ * first pass, so the later passes don't parse the text again
+ * 
+ * The first pass Append()s, StartReading() switches over once the split is
+ * done, and each later pass Reset()s and reads the records back with Next().
+ * 
+ * @author jpatterson
+ * 
+ */
+public interface VectorizedRecordStore {
+  
+  /**
+   * Adds a record during the first pass. May be called from several training
+   * threads.
+   * 
+   * @throws IOException
+   *           if the record can't be stored, the store should be dropped
+   */
+  public void Append(int label, PrimitiveSparseVector v) throws IOException;
+  
+  /**
+   * Ends the first pass and gets ready to read the records back
+   */
+  public void StartReading() throws IOException;
+  
+  /**
+   * Back to the start for the next pass
+   */
+  public void Reset() throws IOException;
+  
+  public boolean HasNext();
+  
+  /**
+   * Loads the next record into v
+   * 
+   * @return the record's label
+   */
+  public int Next(PrimitiveSparseVector v) throws IOException;
+  
+  public long getRecordCount();
+  
+  /**
+   * Frees whatever the store holds (memory, files)
+   */
+  public void Delete();
+  
+}
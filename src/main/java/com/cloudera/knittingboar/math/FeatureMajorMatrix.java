@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.mahout.math.AbstractMatrix;
+import org.apache.mahout.math.AbstractVector;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.MatrixView;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Dense matrix backed by a single flat array, laid out feature-major (all of
+ * the categories for column 0, then column 1, ...) since POLR reads and
+ * writes whole columns for each non-zero feature of an instance.
+ *
+ * Subclasses pick the element type (FlatDenseMatrix: double, FloatDenseMatrix:
+ * float) and only have to provide the flat get / set; the indexing and the
+ * rest of the Matrix plumbing live here.
+ *
+ * @author jpatterson
+ *
+ */
+public abstract class FeatureMajorMatrix extends AbstractMatrix {
+
+  protected FeatureMajorMatrix(int rows, int columns) {
+    super(rows, columns);
+  }
+
+  /**
+   * @return where (row, column) is in the backing array
+   */
+  protected final int index(int row, int column) {
+    return column * numRows() + row;
+  }
+
+  /**
+   * @return the value at index in the backing array
+   */
+  protected abstract double getFlat(int index);
+
+  /**
+   * Sets the value at index in the backing array
+   */
+  protected abstract void setFlat(int index, double value);
+
+  @Override
+  public double getQuick(int row, int column) {
+    return getFlat(index(row, column));
+  }
+
+  @Override
+  public void setQuick(int row, int column, double value) {
+    setFlat(index(row, column), value);
+  }
+
+  @Override
+  public Matrix assign(Matrix other) {
+
+    int rows = numRows();
+    for (int col = 0; col < numCols(); col++) {
+      int base = col * rows;
+      for (int row = 0; row < rows; row++) {
+        setFlat(base + row, other.getQuick(row, col));
+      }
+    }
+    return this;
+
+  }
+
+  /**
+   * Only visits the non-zeros of v, which is what POLR's classify() needs to
+   * be cheap on sparse instances
+   */
+  @Override
+  public Vector times(Vector v) {
+
+    int rows = numRows();
+    double[] out = new double[rows];
+
+    Iterator<Vector.Element> nonZeros = v.iterateNonZero();
+    while (nonZeros.hasNext()) {
+      Vector.Element e = nonZeros.next();
+      double x = e.get();
+      int base = e.index() * rows;
+      for (int row = 0; row < rows; row++) {
+        out[row] += x * getFlat(base + row);
+      }
+    }
+
+    return new DenseVector(out, true);
+
+  }
+
+  public int[] getNumNondefaultElements() {
+    return new int[] {numRows(), numCols()};
+  }
+
+  public Matrix viewPart(int[] offset, int[] size) {
+    return new MatrixView(this, offset, size);
+  }
+
+  public Matrix assignColumn(int column, Vector other) {
+    for (int row = 0; row < numRows(); row++) {
+      setQuick(row, column, other.getQuick(row));
+    }
+    return this;
+  }
+
+  public Matrix assignRow(int row, Vector other) {
+    for (int col = 0; col < numCols(); col++) {
+      setQuick(row, col, other.getQuick(col));
+    }
+    return this;
+  }
+
+  /**
+   * Note: returns a copy, writes to it are not reflected in this matrix
+   */
+  public Vector getColumn(int column) {
+    Vector out = new DenseVector(numRows());
+    for (int row = 0; row < numRows(); row++) {
+      out.setQuick(row, getQuick(row, column));
+    }
+    return out;
+  }
+
+  /**
+   * Note: returns a copy, writes to it are not reflected in this matrix
+   */
+  public Vector getRow(int row) {
+    Vector out = new DenseVector(numCols());
+    for (int col = 0; col < numCols(); col++) {
+      out.setQuick(col, getQuick(row, col));
+    }
+    return out;
+  }
+
+  /**
+   * A view of the row: reads and writes go straight to this matrix
+   */
+  public Vector viewRow(int row) {
+    if (row < 0 || row >= numRows()) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + numRows());
+    }
+    return new RowView(row);
+  }
+
+  /**
+   * One row of the matrix as a Vector, strided through the backing array
+   */
+  private final class RowView extends AbstractVector {
+
+    private final int row;
+
+    RowView(int row) {
+      super(numCols());
+      this.row = row;
+    }
+
+    @Override
+    public double getQuick(int column) {
+      return getFlat(index(this.row, column));
+    }
+
+    @Override
+    public void setQuick(int column, double value) {
+      setFlat(index(this.row, column), value);
+    }
+
+    @Override
+    public int getNumNondefaultElements() {
+      return size();
+    }
+
+    @Override
+    public Vector like() {
+      return new DenseVector(size());
+    }
+
+    @Override
+    protected Matrix matrixLike(int rows, int columns) {
+      return new DenseMatrix(rows, columns);
+    }
+
+    @Override
+    public boolean isDense() {
+      return true;
+    }
+
+    @Override
+    public boolean isSequentialAccess() {
+      return true;
+    }
+
+    @Override
+    public Iterator<Element> iterator() {
+      return new ViewIterator(false);
+    }
+
+    @Override
+    public Iterator<Element> iterateNonZero() {
+      return new ViewIterator(true);
+    }
+
+    private final class ViewIterator implements Iterator<Element>, Element {
+
+      private final boolean skipZeros;
+      private int index = -1;
+      private int next = -1;
+
+      ViewIterator(boolean skipZeros) {
+        this.skipZeros = skipZeros;
+        Advance();
+      }
+
+      private void Advance() {
+        this.next++;
+        while (this.skipZeros && this.next < size()
+            && 0.0 == getQuick(this.next)) {
+          this.next++;
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return this.next < size();
+      }
+
+      @Override
+      public Element next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        this.index = this.next;
+        Advance();
+        return this;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public double get() {
+        return getQuick(this.index);
+      }
+
+      @Override
+      public int index() {
+        return this.index;
+      }
+
+      @Override
+      public void set(double value) {
+        setQuick(this.index, value);
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.Matrix;
+
+/**
+ * Dense matrix backed by a single flat double[]
+ *
+ * Used for the POLR parameter vectors (beta) with the flat training kernel in
+ * ParallelOnlineLogisticRegression, which reads and writes getValues()
+ * directly instead of going through getQuick/setQuick.
+ *
+ * @author jpatterson
+ *
+ */
+public class FlatDenseMatrix extends FeatureMajorMatrix {
+
+  private double[] values;
+
+  public FlatDenseMatrix(int rows, int columns) {
+    super(rows, columns);
+    this.values = new double[rows * columns];
+  }
+
+  /**
+   * Copies the values of another matrix
+   */
+  public FlatDenseMatrix(Matrix other) {
+    this(other.numRows(), other.numCols());
+    assign(other);
+  }
+
+  /**
+   * @return the backing array, laid out as [column * numRows() + row]
+   */
+  public double[] getValues() {
+    return this.values;
+  }
+
+  @Override
+  protected double getFlat(int index) {
+    return this.values[index];
+  }
+
+  @Override
+  protected void setFlat(int index, double value) {
+    this.values[index] = value;
+  }
+
+  @Override
+  public Matrix clone() {
+    FlatDenseMatrix clone = new FlatDenseMatrix(numRows(), numCols());
+    System.arraycopy(this.values, 0, clone.values, 0, this.values.length);
+    return clone;
+  }
+
+  @Override
+  public Matrix like() {
+    return new FlatDenseMatrix(numRows(), numCols());
+  }
+
+  @Override
+  public Matrix like(int rows, int columns) {
+    return new FlatDenseMatrix(rows, columns);
+  }
+
+  @Override
+  public Matrix assign(double value) {
+    Arrays.fill(this.values, value);
+    return this;
+  }
+
+  @Override
+  public Matrix assign(Matrix other) {
+
+    if (other instanceof FlatDenseMatrix && other.numRows() == numRows()
+        && other.numCols() == numCols()) {
+      System.arraycopy(((FlatDenseMatrix) other).values, 0, this.values, 0,
+          this.values.length);
+      return this;
+    }
+    return super.assign(other);
+
+  }
+
+}
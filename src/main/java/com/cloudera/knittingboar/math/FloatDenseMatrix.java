@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.Matrix;
+
+/**
+ * Dense matrix that stores its values as single precision floats
+ *
+ * Used for the POLR parameter vectors (beta) when we want to halve the memory
+ * and network footprint of the model. Callers still read and write doubles, so
+ * any accumulation done outside the matrix keeps double precision; only the
+ * stored coefficients are rounded.
+ *
+ * @author jpatterson
+ *
+ */
+public class FloatDenseMatrix extends FeatureMajorMatrix {
+
+  private float[] values;
+
+  public FloatDenseMatrix(int rows, int columns) {
+    super(rows, columns);
+    this.values = new float[rows * columns];
+  }
+
+  /**
+   * Copies (and rounds) the values of another matrix
+   */
+  public FloatDenseMatrix(Matrix other) {
+    this(other.numRows(), other.numCols());
+    assign(other);
+  }
+
+  /**
+   * @return the backing array, laid out as [column * numRows() + row]
+   */
+  public float[] getValues() {
+    return this.values;
+  }
+
+  @Override
+  protected double getFlat(int index) {
+    return this.values[index];
+  }
+
+  @Override
+  protected void setFlat(int index, double value) {
+    this.values[index] = (float) value;
+  }
+
+  @Override
+  public Matrix clone() {
+    FloatDenseMatrix clone = new FloatDenseMatrix(numRows(), numCols());
+    System.arraycopy(this.values, 0, clone.values, 0, this.values.length);
+    return clone;
+  }
+
+  @Override
+  public Matrix like() {
+    return new FloatDenseMatrix(numRows(), numCols());
+  }
+
+  @Override
+  public Matrix like(int rows, int columns) {
+    return new FloatDenseMatrix(rows, columns);
+  }
+
+  @Override
+  public Matrix assign(double value) {
+    Arrays.fill(this.values, (float) value);
+    return this;
+  }
+
+  @Override
+  public Matrix assign(Matrix other) {
+
+    if (other instanceof FloatDenseMatrix && other.numRows() == numRows()
+        && other.numCols() == numCols()) {
+      System.arraycopy(((FloatDenseMatrix) other).values, 0, this.values, 0,
+          this.values.length);
+      return this;
+    }
+    return super.assign(other);
+
+  }
+
+}
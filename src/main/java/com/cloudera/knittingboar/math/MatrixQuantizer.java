@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import org.apache.mahout.math.Matrix;
+
+/**
+ * Quantizes the model matrices a node sends to 8 or 16 bits, with error
+ * feedback on gradient deltas
+ *
+ * Each block of blockSize values (feature-major) gets the scale max |value| /
+ * 127 (or 32767) and each value is rounded to the nearest multiple of it.
+ *
+ * A full model replaces the receiver's copy, so it's just rounded: the model
+ * the receiver ends up with is within half a step of what was sent, every
+ * superstep.
+ *
+ * Gradient deltas get added up by the receiver, so there what the rounding
+ * lost is kept in a residual, one per coefficient of the whole rows x cols
+ * model, and added to the same coefficient the next time a delta has it. The
+ * errors don't pile up over supersteps: the sum of the deltas the receiver
+ * got is within one rounding of the sum of the ones sent.
+ *
+ * One quantizer per stream of messages (a worker's updates, the master's
+ * broadcasts), and every delta moves its residual on, so each one has to be
+ * quantized exactly once.
+ *
+ * @author jpatterson
+ *
+ */
+public class MatrixQuantizer {
+
+  public static final int DEFAULT_BLOCK_SIZE = 256;
+
+  private final int rows;
+  private final int cols;
+  private final int bits;
+  private final int blockSize;
+  private final double levels;
+
+  // the deltas' lost rounding, feature-major, column * rows + row; only
+  // allocated once there's been a delta
+  private double[] residual = null;
+
+  // for the compression ratio
+  private long rawBytes = 0;
+  private long quantizedBytes = 0;
+
+  public MatrixQuantizer(int rows, int cols, int bits) {
+    this(rows, cols, bits, DEFAULT_BLOCK_SIZE);
+  }
+
+  public MatrixQuantizer(int rows, int cols, int bits, int blockSize) {
+
+    if (8 != bits && 16 != bits) {
+      throw new IllegalArgumentException("Can only quantize to 8 or 16 bits, not "
+          + bits);
+    }
+
+    this.rows = rows;
+    this.cols = cols;
+    this.bits = bits;
+    this.blockSize = Math.max(1, blockSize);
+    this.levels = (1 << (bits - 1)) - 1;
+
+  }
+
+  /**
+   * Quantizes a full rows x cols model, which the receiver replaces its own
+   * with: no error feedback, and the deltas' residual is left alone
+   */
+  public QuantizedMatrix Quantize(Matrix m) {
+    return Quantize(m, null, false);
+  }
+
+  /**
+   * Quantizes a gradient delta, which the receiver adds up: carries in what
+   * the last deltas' rounding lost on these columns, and keeps what this
+   * one's loses
+   *
+   * @param columns
+   *          the model column for each of m's columns, or null if m covers
+   *          the whole model
+   */
+  public QuantizedMatrix Quantize(Matrix m, int[] columns) {
+    return Quantize(m, columns, true);
+  }
+
+  private QuantizedMatrix Quantize(Matrix m, int[] columns, boolean feedback) {
+
+    int n = m.numCols();
+    if (m.numRows() != this.rows
+        || n != ((null == columns) ? this.cols : columns.length)) {
+      throw new IllegalArgumentException("Can't quantize a " + m.numRows()
+          + " x " + n + " matrix for a " + this.rows + " x " + this.cols
+          + " model");
+    }
+
+    QuantizedMatrix q = new QuantizedMatrix(this.rows, n, this.bits,
+        this.blockSize);
+    float[] scales = q.getScales();
+    byte[] codes8 = q.getCodes8();
+    short[] codes16 = q.getCodes16();
+
+    double[] flat = (m instanceof FlatDenseMatrix) ? ((FlatDenseMatrix) m)
+        .getValues() : null;
+
+    if (feedback && null == this.residual) {
+      this.residual = new double[this.rows * this.cols];
+    }
+    double[] carry = feedback ? this.residual : null;
+
+    int size = this.rows * n;
+    double[] block = new double[Math.min(this.blockSize, Math.max(1, size))];
+
+    for (int start = 0, b = 0; start < size; start += this.blockSize, b++) {
+
+      int end = Math.min(size, start + this.blockSize);
+
+      double max = 0;
+      for (int x = start; x < end; x++) {
+        int col = x / this.rows;
+        int row = x - col * this.rows;
+        double value = (null != flat) ? flat[x] : m.getQuick(row, col);
+        if (null != carry) {
+          value += carry[Residual(columns, col, row)];
+        }
+        block[x - start] = value;
+        max = Math.max(max, Math.abs(value));
+      }
+
+      // the receiver only has the float, round with that
+      float scale = (float) (max / this.levels);
+      scales[b] = scale;
+
+      for (int x = start; x < end; x++) {
+
+        double value = block[x - start];
+        long code = (0 == scale) ? 0 : Math.round(value / scale);
+        code = Math.max((long) -this.levels, Math.min((long) this.levels, code));
+        if (null != codes8) {
+          codes8[x] = (byte) code;
+        } else {
+          codes16[x] = (short) code;
+        }
+
+        if (null != carry) {
+          int col = x / this.rows;
+          carry[Residual(columns, col, x - col * this.rows)] = value - code
+              * scale;
+        }
+
+      }
+
+    }
+
+    this.rawBytes += 8L * size;
+    this.quantizedBytes += q.getPayloadBytes();
+    return q;
+
+  }
+
+  private int Residual(int[] columns, int col, int row) {
+    return ((null == columns) ? col : columns[col]) * this.rows + row;
+  }
+
+  /**
+   * @return bytes the matrices would have taken as doubles
+   */
+  public long getRawBytes() {
+    return this.rawBytes;
+  }
+
+  public long getQuantizedBytes() {
+    return this.quantizedBytes;
+  }
+
+  /**
+   * @return raw / quantized bytes over everything quantized so far, 0 before
+   *         anything was
+   */
+  public double getCompressionRatio() {
+    return (0 == this.quantizedBytes) ? 0 : (double) this.rawBytes
+        / this.quantizedBytes;
+  }
+
+  public int getBits() {
+    return this.bits;
+  }
+
+}
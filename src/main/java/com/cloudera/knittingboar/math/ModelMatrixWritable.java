@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+
+/**
+ * Reads and writes the dense model matrices (beta, gradient deltas) we send
+ * between the workers and the master and save in the model file
+ *
+ * Like MatrixWritable, but the precision travels with the matrix: a
+ * FloatDenseMatrix is written as 4 byte floats and read back as a
+ * FloatDenseMatrix, anything else goes out as doubles.
+ *
+ * Mostly zero matrices (e.g. FTRL-Proximal models) are written sparse, as
+ * (position, value) pairs for the non-zeros, whenever that's smaller.
+ *
+ * readMatrix(in, true) reads double precision matrices into a FlatDenseMatrix
+ * instead of a DenseMatrix, which is what the master's averaging wants.
+ *
+ * writeQuantized() writes a QuantizedMatrix (QUANTIZED format: bits, block
+ * size, the block scales, then the 8 or 16 bit codes); readMatrix() hands it
+ * back dequantized, as doubles.
+ *
+ * Format: format byte (precision | SPARSE), rows, columns, then either all of
+ * the values feature-major or the non-zero count followed by the pairs, with
+ * position = column * rows + row
+ *
+ * @author jpatterson
+ *
+ */
+public class ModelMatrixWritable {
+
+  public static final byte DOUBLE_PRECISION = 0;
+  public static final byte FLOAT_PRECISION = 1;
+  public static final byte SPARSE = 2;
+  public static final byte QUANTIZED = 4;
+
+  private ModelMatrixWritable() {}
+
+  public static void writeMatrix(DataOutput out, Matrix matrix)
+      throws IOException {
+
+    int rows = matrix.numRows();
+    int cols = matrix.numCols();
+
+    boolean isFloat = matrix instanceof FloatDenseMatrix;
+    int valueBytes = isFloat ? 4 : 8;
+
+    double[] flat = (matrix instanceof FlatDenseMatrix) ? ((FlatDenseMatrix) matrix)
+        .getValues() : null;
+
+    long nonZeros = 0;
+    if (null != flat) {
+      for (int x = 0; x < flat.length; x++) {
+        if (0 != flat[x]) {
+          nonZeros++;
+        }
+      }
+    } else {
+      for (int col = 0; col < cols; col++) {
+        for (int row = 0; row < rows; row++) {
+          if (0 != matrix.getQuick(row, col)) {
+            nonZeros++;
+          }
+        }
+      }
+    }
+
+    boolean sparse = nonZeros * (4 + valueBytes) + 4 < (long) rows * cols
+        * valueBytes;
+
+    out.writeByte((isFloat ? FLOAT_PRECISION : DOUBLE_PRECISION)
+        | (sparse ? SPARSE : 0));
+    out.writeInt(rows);
+    out.writeInt(cols);
+
+    if (sparse) {
+
+      out.writeInt((int) nonZeros);
+      for (int col = 0; col < cols; col++) {
+        for (int row = 0; row < rows; row++) {
+          double value = matrix.getQuick(row, col);
+          if (0 != value) {
+            out.writeInt(col * rows + row);
+            if (isFloat) {
+              out.writeFloat((float) value);
+            } else {
+              out.writeDouble(value);
+            }
+          }
+        }
+      }
+
+    } else if (isFloat) {
+
+      float[] values = ((FloatDenseMatrix) matrix).getValues();
+      for (int x = 0; x < values.length; x++) {
+        out.writeFloat(values[x]);
+      }
+
+    } else if (null != flat) {
+
+      for (int x = 0; x < flat.length; x++) {
+        out.writeDouble(flat[x]);
+      }
+
+    } else {
+
+      for (int col = 0; col < cols; col++) {
+        for (int row = 0; row < rows; row++) {
+          out.writeDouble(matrix.getQuick(row, col));
+        }
+      }
+
+    }
+
+  }
+
+  public static void writeQuantized(DataOutput out, QuantizedMatrix matrix)
+      throws IOException {
+
+    out.writeByte(QUANTIZED);
+    out.writeInt(matrix.numRows());
+    out.writeInt(matrix.numCols());
+    out.writeByte(matrix.getBits());
+    out.writeInt(matrix.getBlockSize());
+
+    float[] scales = matrix.getScales();
+    for (int x = 0; x < scales.length; x++) {
+      out.writeFloat(scales[x]);
+    }
+
+    if (8 == matrix.getBits()) {
+      out.write(matrix.getCodes8());
+    } else {
+      short[] codes = matrix.getCodes16();
+      for (int x = 0; x < codes.length; x++) {
+        out.writeShort(codes[x]);
+      }
+    }
+
+  }
+
+  public static Matrix readMatrix(DataInput in) throws IOException {
+    return readMatrix(in, false);
+  }
+
+  /**
+   * @param flat
+   *          read a double precision matrix into a FlatDenseMatrix
+   */
+  public static Matrix readMatrix(DataInput in, boolean flat)
+      throws IOException {
+
+    byte format = in.readByte();
+    int rows = in.readInt();
+    int cols = in.readInt();
+
+    if (QUANTIZED == format) {
+      return readQuantized(in, rows, cols, flat);
+    }
+
+    if ((format & ~(FLOAT_PRECISION | SPARSE)) != 0) {
+      throw new IOException("Unknown matrix format: " + format);
+    }
+
+    boolean isFloat = (format & FLOAT_PRECISION) != 0;
+    Matrix matrix;
+    if (isFloat) {
+      matrix = new FloatDenseMatrix(rows, cols);
+    } else if (flat) {
+      matrix = new FlatDenseMatrix(rows, cols);
+    } else {
+      matrix = new DenseMatrix(rows, cols);
+    }
+
+    if ((format & SPARSE) != 0) {
+
+      int nonZeros = in.readInt();
+      for (int x = 0; x < nonZeros; x++) {
+        int position = in.readInt();
+        double value = isFloat ? in.readFloat() : in.readDouble();
+        matrix.setQuick(position % rows, position / rows, value);
+      }
+
+    } else if (isFloat) {
+
+      float[] values = ((FloatDenseMatrix) matrix).getValues();
+      for (int x = 0; x < values.length; x++) {
+        values[x] = in.readFloat();
+      }
+
+    } else if (flat) {
+
+      double[] values = ((FlatDenseMatrix) matrix).getValues();
+      for (int x = 0; x < values.length; x++) {
+        values[x] = in.readDouble();
+      }
+
+    } else {
+
+      for (int col = 0; col < cols; col++) {
+        for (int row = 0; row < rows; row++) {
+          matrix.setQuick(row, col, in.readDouble());
+        }
+      }
+
+    }
+
+    return matrix;
+
+  }
+
+  private static Matrix readQuantized(DataInput in, int rows, int cols,
+      boolean flat) throws IOException {
+
+    int bits = in.readByte();
+    int blockSize = in.readInt();
+
+    QuantizedMatrix matrix;
+    try {
+      matrix = new QuantizedMatrix(rows, cols, bits, blockSize);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Bad quantized matrix", e);
+    }
+
+    float[] scales = matrix.getScales();
+    for (int x = 0; x < scales.length; x++) {
+      scales[x] = in.readFloat();
+    }
+
+    if (8 == bits) {
+      in.readFully(matrix.getCodes8());
+    } else {
+      short[] codes = matrix.getCodes16();
+      for (int x = 0; x < codes.length; x++) {
+        codes[x] = in.readShort();
+      }
+    }
+
+    return matrix.toMatrix(flat);
+
+  }
+
+}
@@ -0,0 +1,277 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.mahout.math.AbstractVector;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Reusable sparse vector backed by a sorted int[] of indexes and a parallel
+ * double[] of values
+ *
+ * Meant for the record -> train path: the worker keeps one of these, clear()s
+ * it for each record and lets the RecordFactory fill it through the normal
+ * Vector set()/get() calls. Once the arrays have grown to the largest record
+ * nothing is allocated per record, and POLR's flat kernel reads getIndexes()
+ * / getValues() directly.
+ *
+ * Only non-zeros are stored; setting an entry to 0 removes it.
+ *
+ * @author jpatterson
+ *
+ */
+public class PrimitiveSparseVector extends AbstractVector {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] indexes;
+  private double[] values;
+  private int numNonZeros = 0;
+
+  public PrimitiveSparseVector(int size) {
+    this(size, INITIAL_CAPACITY);
+  }
+
+  public PrimitiveSparseVector(int size, int initialCapacity) {
+    super(size);
+    this.indexes = new int[Math.max(1, initialCapacity)];
+    this.values = new double[Math.max(1, initialCapacity)];
+  }
+
+  /**
+   * Empty the vector, keeping the backing arrays for the next record
+   */
+  public void clear() {
+    this.numNonZeros = 0;
+  }
+
+  /**
+   * @return the indexes of the non-zeros in ascending order, only the first
+   *         getNumNondefaultElements() entries are valid
+   */
+  public int[] getIndexes() {
+    return this.indexes;
+  }
+
+  /**
+   * @return the values matching getIndexes()
+   */
+  public double[] getValues() {
+    return this.values;
+  }
+
+  @Override
+  public int getNumNondefaultElements() {
+    return this.numNonZeros;
+  }
+
+  @Override
+  public double getQuick(int index) {
+    int pos = Arrays.binarySearch(this.indexes, 0, this.numNonZeros, index);
+    return pos >= 0 ? this.values[pos] : 0.0;
+  }
+
+  @Override
+  public void setQuick(int index, double value) {
+
+    int pos = Arrays.binarySearch(this.indexes, 0, this.numNonZeros, index);
+
+    if (pos >= 0) {
+
+      if (0 != value) {
+        this.values[pos] = value;
+      } else {
+        // drop it, so we only ever hold non-zeros
+        int tail = this.numNonZeros - pos - 1;
+        System.arraycopy(this.indexes, pos + 1, this.indexes, pos, tail);
+        System.arraycopy(this.values, pos + 1, this.values, pos, tail);
+        this.numNonZeros--;
+      }
+
+    } else if (0 != value) {
+
+      int insert = -(pos + 1);
+
+      if (this.numNonZeros == this.indexes.length) {
+        this.indexes = Arrays.copyOf(this.indexes, this.numNonZeros * 2);
+        this.values = Arrays.copyOf(this.values, this.numNonZeros * 2);
+      }
+
+      int tail = this.numNonZeros - insert;
+      System.arraycopy(this.indexes, insert, this.indexes, insert + 1, tail);
+      System.arraycopy(this.values, insert, this.values, insert + 1, tail);
+      this.indexes[insert] = index;
+      this.values[insert] = value;
+      this.numNonZeros++;
+
+    }
+
+  }
+
+  /**
+   * Adds a non-zero past the end without searching - index has to be larger
+   * than every index already set, e.g. when reloading a vector that was
+   * written out in index order
+   */
+  public void appendQuick(int index, double value) {
+
+    if (this.numNonZeros == this.indexes.length) {
+      this.indexes = Arrays.copyOf(this.indexes, this.numNonZeros * 2);
+      this.values = Arrays.copyOf(this.values, this.numNonZeros * 2);
+    }
+    this.indexes[this.numNonZeros] = index;
+    this.values[this.numNonZeros] = value;
+    this.numNonZeros++;
+
+  }
+
+  @Override
+  public PrimitiveSparseVector clone() {
+
+    PrimitiveSparseVector clone = new PrimitiveSparseVector(size(),
+        this.indexes.length);
+    System.arraycopy(this.indexes, 0, clone.indexes, 0, this.numNonZeros);
+    System.arraycopy(this.values, 0, clone.values, 0, this.numNonZeros);
+    clone.numNonZeros = this.numNonZeros;
+    return clone;
+
+  }
+
+  @Override
+  public Vector like() {
+    return new PrimitiveSparseVector(size());
+  }
+
+  @Override
+  protected Matrix matrixLike(int rows, int columns) {
+    return new DenseMatrix(rows, columns);
+  }
+
+  @Override
+  public boolean isDense() {
+    return false;
+  }
+
+  @Override
+  public boolean isSequentialAccess() {
+    return true;
+  }
+
+  /**
+   * Walks the non-zeros in index order
+   */
+  @Override
+  public Iterator<Element> iterateNonZero() {
+    return new NonZeroIterator();
+  }
+
+  /**
+   * Walks every index, zeros included
+   */
+  @Override
+  public Iterator<Element> iterator() {
+    return new AllIterator();
+  }
+
+  private final class NonZeroIterator implements Iterator<Element>, Element {
+
+    private int pos = -1;
+
+    @Override
+    public boolean hasNext() {
+      return this.pos + 1 < numNonZeros;
+    }
+
+    @Override
+    public Element next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      this.pos++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public double get() {
+      return values[this.pos];
+    }
+
+    @Override
+    public int index() {
+      return indexes[this.pos];
+    }
+
+    @Override
+    public void set(double value) {
+      values[this.pos] = value;
+    }
+
+  }
+
+  private final class AllIterator implements Iterator<Element>, Element {
+
+    private int index = -1;
+
+    @Override
+    public boolean hasNext() {
+      return this.index + 1 < size();
+    }
+
+    @Override
+    public Element next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      this.index++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public double get() {
+      return getQuick(this.index);
+    }
+
+    @Override
+    public int index() {
+      return this.index;
+    }
+
+    @Override
+    public void set(double value) {
+      setQuick(this.index, value);
+    }
+
+  }
+
+}
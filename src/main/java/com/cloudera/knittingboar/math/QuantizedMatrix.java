@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.math;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+
+/**
+ * A matrix quantized to 8 or 16 bit integers, made by MatrixQuantizer
+ *
+ * The values are laid out feature-major like FlatDenseMatrix and cut into
+ * blocks of blockSize; each block has its own scale, and value x is
+ * code[x] * scale[x / blockSize].
+ *
+ * @author jpatterson
+ *
+ */
+public class QuantizedMatrix {
+
+  private final int rows;
+  private final int cols;
+  private final int bits;
+  private final int blockSize;
+
+  private final float[] scales;
+  // codes, one of these depending on bits
+  private final byte[] codes8;
+  private final short[] codes16;
+
+  public QuantizedMatrix(int rows, int cols, int bits, int blockSize) {
+
+    if (8 != bits && 16 != bits) {
+      throw new IllegalArgumentException("Can only quantize to 8 or 16 bits, not "
+          + bits);
+    }
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Bad quantization block size: "
+          + blockSize);
+    }
+
+    this.rows = rows;
+    this.cols = cols;
+    this.bits = bits;
+    this.blockSize = blockSize;
+
+    int size = rows * cols;
+    this.scales = new float[(size + blockSize - 1) / blockSize];
+    this.codes8 = (8 == bits) ? new byte[size] : null;
+    this.codes16 = (16 == bits) ? new short[size] : null;
+
+  }
+
+  public int numRows() {
+    return this.rows;
+  }
+
+  public int numCols() {
+    return this.cols;
+  }
+
+  public int getBits() {
+    return this.bits;
+  }
+
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  public float[] getScales() {
+    return this.scales;
+  }
+
+  /**
+   * @return the codes when bits is 8, else null
+   */
+  public byte[] getCodes8() {
+    return this.codes8;
+  }
+
+  /**
+   * @return the codes when bits is 16, else null
+   */
+  public short[] getCodes16() {
+    return this.codes16;
+  }
+
+  /**
+   * @param x
+   *          position, column * numRows() + row
+   */
+  public double get(int x) {
+    int code = (8 == this.bits) ? this.codes8[x] : this.codes16[x];
+    return code * this.scales[x / this.blockSize];
+  }
+
+  /**
+   * @return the bytes the scales and codes take up
+   */
+  public long getPayloadBytes() {
+    return 4L * this.scales.length + (long) this.rows * this.cols
+        * (this.bits / 8);
+  }
+
+  /**
+   * The dequantized values, in a FlatDenseMatrix if flat else a DenseMatrix
+   */
+  public Matrix toMatrix(boolean flat) {
+
+    if (flat) {
+      FlatDenseMatrix m = new FlatDenseMatrix(this.rows, this.cols);
+      double[] values = m.getValues();
+      for (int x = 0; x < values.length; x++) {
+        values[x] = get(x);
+      }
+      return m;
+    }
+
+    Matrix m = new DenseMatrix(this.rows, this.cols);
+    for (int col = 0; col < this.cols; col++) {
+      for (int row = 0; row < this.rows; row++) {
+        m.setQuick(row, col, get(col * this.rows + row));
+      }
+    }
+    return m;
+
+  }
+
+}
@@ -0,0 +1,711 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages.iterativereduce;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses serialized ParameterVector payloads in independent blocks, so
+ * both ends can spread the work over threads
+ *
+ * The payload (either Serialize()'s or ParameterVectorCodec's format) is cut
+ * into blocks of blockSize bytes and each is compressed on its own with the
+ * job's codec: NONE (stored, for comparison), DEFLATE (java.util.zip at
+ * BEST_SPEED) or LZ, a small pure Java LZ77 that's much cheaper than deflate
+ * and does well on what hashed text models mostly are, runs of exact zeros.
+ * A block the codec can't shrink is stored as is.
+ *
+ * Frame: MAGIC, codec id byte, raw length, block size, block count, the
+ * compressed length of every block, then the blocks back to back. Having the
+ * lengths up front is what lets Decompress() hand each block to a thread
+ * straight away, each writing its own slice of the output.
+ *
+ * The codec only matters for compressing, any BlockCompressor reads frames
+ * from all of them.
+ *
+ * @author jpatterson
+ *
+ */
+public class BlockCompressor {
+
+  // "KBCZ", doesn't collide with ParameterVectorCodec.MAGIC or the
+  // SrcWorkerPassCount that starts Serialize()'s format
+  public static final int MAGIC = 0x4B42435A;
+
+  public static final String NONE = "none";
+  public static final String DEFLATE = "deflate";
+  public static final String LZ = "lz";
+
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  // below this it's not worth waking the threads up
+  private static final int MIN_PARALLEL_BYTES = 256 * 1024;
+
+  /**
+   * Compresses one block at a time; has to be safe to call from several
+   * threads at once
+   */
+  public interface Codec {
+
+    byte Id();
+
+    String Name();
+
+    /**
+     * @return the compressed length, or -1 if it would be more than limit
+     *         bytes
+     */
+    int Compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+        int limit);
+
+    /**
+     * Fills dst[dstOff, dstOff + rawLen) exactly, or throws
+     */
+    void Decompress(byte[] src, int off, int len, byte[] dst, int dstOff,
+        int rawLen) throws IOException;
+
+  }
+
+  private static final Codec[] CODECS = new Codec[] { new Stored(),
+      new DeflateCodec(), new LZCodec() };
+
+  /**
+   * @param name
+   *          NONE, DEFLATE or LZ
+   */
+  public static Codec ForName(String name) {
+
+    for (Codec c : CODECS) {
+      if (c.Name().equalsIgnoreCase(name)) {
+        return c;
+      }
+    }
+    throw new IllegalArgumentException("Unknown payload compression '" + name
+        + "'");
+
+  }
+
+  private static Codec ForId(byte id) throws IOException {
+
+    if (id < 0 || id >= CODECS.length) {
+      throw new IOException("Unknown payload compression codec " + id);
+    }
+    return CODECS[id];
+
+  }
+
+  private final Codec codec;
+  private final int blockSize;
+  private final int threads;
+
+  private ExecutorService pool = null;
+
+  // totals, both ways, for the nodes' printouts
+  private final AtomicLong rawBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  public BlockCompressor(String codec) {
+    this(codec, DEFAULT_BLOCK_SIZE, 0);
+  }
+
+  /**
+   * @param threads
+   *          compress / decompress threads, 0 means one per core
+   */
+  public BlockCompressor(String codec, int blockSize, int threads) {
+
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Bad compression block size: "
+          + blockSize);
+    }
+
+    this.codec = ForName(codec);
+    this.blockSize = blockSize;
+    this.threads = (threads > 0) ? threads : Runtime.getRuntime()
+        .availableProcessors();
+
+  }
+
+  /**
+   * @return true if b (from its position on) is a compressed frame
+   */
+  public static boolean IsCompressed(ByteBuffer b) {
+    return b.remaining() >= 4 && MAGIC == b.getInt(b.position());
+  }
+
+  /**
+   * Compresses raw's remaining bytes (heap or direct, left untouched) into a
+   * new heap buffer
+   */
+  public ByteBuffer Compress(ByteBuffer raw) {
+
+    long start = System.nanoTime();
+
+    final byte[] src;
+    final int srcOff;
+    final int len = raw.remaining();
+    if (raw.hasArray()) {
+      src = raw.array();
+      srcOff = raw.arrayOffset() + raw.position();
+    } else {
+      src = new byte[len];
+      raw.duplicate().get(src);
+      srcOff = 0;
+    }
+
+    final int blocks = (len + this.blockSize - 1) / this.blockSize;
+    final int[] lengths = new int[blocks];
+    // block b compresses into scratch at b * blockSize, it has to come out
+    // smaller than that or it's stored
+    final byte[] scratch = new byte[len];
+
+    Run(blocks, len, new Block() {
+      @Override
+      public void Run(int b) {
+        int off = b * blockSize;
+        int n = Math.min(blockSize, len - off);
+        int c = codec.Compress(src, srcOff + off, n, scratch, off, n - 1);
+        if (c < 0) {
+          System.arraycopy(src, srcOff + off, scratch, off, n);
+          c = n;
+        }
+        lengths[b] = c;
+      }
+    });
+
+    int total = 0;
+    for (int l : lengths) {
+      total += l;
+    }
+
+    ByteBuffer out = ByteBuffer.allocate(4 + 1 + 4 + 4 + 4 + 4 * blocks
+        + total);
+    out.putInt(MAGIC);
+    out.put(this.codec.Id());
+    out.putInt(len);
+    out.putInt(this.blockSize);
+    out.putInt(blocks);
+    for (int l : lengths) {
+      out.putInt(l);
+    }
+    for (int b = 0; b < blocks; b++) {
+      out.put(scratch, b * this.blockSize, lengths[b]);
+    }
+    out.flip();
+
+    this.rawBytes.addAndGet(len);
+    this.compressedBytes.addAndGet(out.remaining());
+    this.compressNanos.addAndGet(System.nanoTime() - start);
+    return out;
+
+  }
+
+  /**
+   * Reads a frame from framed's position on, leaving it past the frame
+   *
+   * @return the payload, in a heap buffer
+   */
+  public ByteBuffer Decompress(ByteBuffer framed) throws IOException {
+
+    long start = System.nanoTime();
+
+    ByteBuffer in = framed.slice();
+    if (in.remaining() < 17 || MAGIC != in.getInt()) {
+      throw new IOException("Not a compressed ParameterVector payload");
+    }
+    final Codec c = ForId(in.get());
+    final int len = in.getInt();
+    final int size = in.getInt();
+    final int blocks = in.getInt();
+    if (len < 0 || size < 1 || blocks != (int) ((len + (long) size - 1) / size)
+        || in.remaining() < 4L * blocks) {
+      throw new IOException("Corrupt compressed payload header");
+    }
+
+    final int[] lengths = new int[blocks];
+    final int[] offsets = new int[blocks];
+    int data = in.position() + 4 * blocks;
+    long offset = 0;
+    for (int b = 0; b < blocks; b++) {
+      lengths[b] = in.getInt();
+      offsets[b] = data + (int) offset;
+      offset += lengths[b];
+      if (lengths[b] < 0 || lengths[b] > Math.min(size, len - b * size)) {
+        throw new IOException("Corrupt compressed block length");
+      }
+    }
+    if (offset > in.remaining()) {
+      throw new IOException("Compressed payload is truncated");
+    }
+
+    final byte[] src;
+    final int srcOff;
+    if (in.hasArray()) {
+      src = in.array();
+      srcOff = in.arrayOffset();
+    } else {
+      src = new byte[data + (int) offset];
+      ByteBuffer whole = in.duplicate();
+      whole.position(0);
+      whole.get(src);
+      srcOff = 0;
+    }
+
+    final byte[] out = new byte[len];
+    final IOException[] failed = new IOException[1];
+
+    Run(blocks, len, new Block() {
+      @Override
+      public void Run(int b) {
+        int n = Math.min(size, len - b * size);
+        try {
+          if (lengths[b] == n) {
+            System.arraycopy(src, srcOff + offsets[b], out, b * size, n);
+          } else {
+            c.Decompress(src, srcOff + offsets[b], lengths[b], out, b * size,
+                n);
+          }
+        } catch (IOException e) {
+          synchronized (failed) {
+            failed[0] = e;
+          }
+        }
+      }
+    });
+
+    synchronized (failed) {
+      if (null != failed[0]) {
+        throw failed[0];
+      }
+    }
+
+    framed.position(framed.position() + data + (int) offset);
+    this.decompressNanos.addAndGet(System.nanoTime() - start);
+    return ByteBuffer.wrap(out);
+
+  }
+
+  private interface Block {
+    void Run(int b);
+  }
+
+  /**
+   * Runs every block, spread over the pool when there's enough of them
+   */
+  private void Run(int blocks, int bytes, final Block block) {
+
+    if (this.threads <= 1 || blocks <= 1 || bytes < MIN_PARALLEL_BYTES) {
+      for (int b = 0; b < blocks; b++) {
+        block.Run(b);
+      }
+      return;
+    }
+
+    synchronized (this) {
+      if (null == this.pool) {
+        this.pool = Executors.newFixedThreadPool(this.threads,
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BlockCompressor");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+      }
+    }
+
+    // contiguous runs of blocks per task
+    int tasks = Math.min(this.threads, blocks);
+    final int perTask = (blocks + tasks - 1) / tasks;
+
+    List<Callable<Object>> work = new ArrayList<Callable<Object>>();
+    for (int first = 0; first < blocks; first += perTask) {
+      final int from = first;
+      final int to = Math.min(blocks, first + perTask);
+      work.add(new Callable<Object>() {
+        @Override
+        public Object call() {
+          for (int b = from; b < to; b++) {
+            block.Run(b);
+          }
+          return null;
+        }
+      });
+    }
+
+    try {
+      for (Future<Object> f : this.pool.invokeAll(work)) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while (de)compressing", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("(De)compressing a payload failed",
+          e.getCause());
+    }
+
+  }
+
+  public void Shutdown() {
+
+    synchronized (this) {
+      if (null != this.pool) {
+        this.pool.shutdown();
+        this.pool = null;
+      }
+    }
+
+  }
+
+  public String getCodec() {
+    return this.codec.Name();
+  }
+
+  /**
+   * @return payload bytes compressed so far
+   */
+  public long getRawBytes() {
+    return this.rawBytes.get();
+  }
+
+  /**
+   * @return what they compressed to, frames included
+   */
+  public long getCompressedBytes() {
+    return this.compressedBytes.get();
+  }
+
+  public long getCompressNanos() {
+    return this.compressNanos.get();
+  }
+
+  public long getDecompressNanos() {
+    return this.decompressNanos.get();
+  }
+
+  /**
+   * No compression, every block is stored
+   */
+  static class Stored implements Codec {
+
+    @Override
+    public byte Id() {
+      return 0;
+    }
+
+    @Override
+    public String Name() {
+      return NONE;
+    }
+
+    @Override
+    public int Compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+        int limit) {
+      return -1;
+    }
+
+    @Override
+    public void Decompress(byte[] src, int off, int len, byte[] dst,
+        int dstOff, int rawLen) throws IOException {
+      throw new IOException("Stored blocks aren't compressed");
+    }
+
+  }
+
+  /**
+   * java.util.zip, at BEST_SPEED; a Deflater / Inflater per thread, their
+   * native state is too expensive to make per block
+   */
+  static class DeflateCodec implements Codec {
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(Deflater.BEST_SPEED);
+      }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() {
+        return new Inflater();
+      }
+    };
+
+    @Override
+    public byte Id() {
+      return 1;
+    }
+
+    @Override
+    public String Name() {
+      return DEFLATE;
+    }
+
+    @Override
+    public int Compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+        int limit) {
+
+      Deflater deflater = deflaters.get();
+      deflater.reset();
+      deflater.setInput(src, off, len);
+      deflater.finish();
+
+      int n = 0;
+      while (!deflater.finished() && n < limit) {
+        n += deflater.deflate(dst, dstOff + n, limit - n);
+      }
+      return deflater.finished() ? n : -1;
+
+    }
+
+    @Override
+    public void Decompress(byte[] src, int off, int len, byte[] dst,
+        int dstOff, int rawLen) throws IOException {
+
+      Inflater inflater = inflaters.get();
+      inflater.reset();
+      inflater.setInput(src, off, len);
+
+      int n = 0;
+      try {
+        while (n < rawLen && !inflater.finished()) {
+          int got = inflater.inflate(dst, dstOff + n, rawLen - n);
+          if (0 == got && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          n += got;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt deflate block", e);
+      }
+      if (n != rawLen || !inflater.finished()) {
+        throw new IOException("Deflate block inflated to the wrong length");
+      }
+
+    }
+
+  }
+
+  /**
+   * A byte oriented LZ77 in the style of LZ4, no entropy coding
+   *
+   * A block is a run of sequences, each a varint literal count, the
+   * literals, a varint match length - MIN_MATCH and a 2 byte little endian
+   * offset back into the output. The last sequence stops after its literals
+   * (possibly none). Matches are found through a hash of the next 4 bytes
+   * with one candidate per slot, and the search skips ahead faster the
+   * longer it goes without a match so random doubles don't cost much.
+   */
+  static class LZCodec implements Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    private static final ThreadLocal<int[]> tables = new ThreadLocal<int[]>() {
+      @Override
+      protected int[] initialValue() {
+        return new int[1 << HASH_BITS];
+      }
+    };
+
+    @Override
+    public byte Id() {
+      return 2;
+    }
+
+    @Override
+    public String Name() {
+      return LZ;
+    }
+
+    private static int ReadInt(byte[] b, int x) {
+      return (b[x] & 0xff) | ((b[x + 1] & 0xff) << 8)
+          | ((b[x + 2] & 0xff) << 16) | ((b[x + 3] & 0xff) << 24);
+    }
+
+    private static int Hash(int v) {
+      return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int WriteVarInt(byte[] dst, int d, int v) {
+      while ((v & ~0x7f) != 0) {
+        dst[d++] = (byte) ((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      dst[d++] = (byte) v;
+      return d;
+    }
+
+    @Override
+    public int Compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+        int limit) {
+
+      int[] table = tables.get();
+      Arrays.fill(table, -1);
+
+      int end = dstOff + limit;
+      int d = dstOff;
+      int anchor = 0;
+      int p = 0;
+      int last = len - MIN_MATCH;
+
+      while (p <= last) {
+
+        int v = ReadInt(src, off + p);
+        int h = Hash(v);
+        int ref = table[h];
+        table[h] = p;
+
+        if (ref < 0 || p - ref > MAX_OFFSET || ReadInt(src, off + ref) != v) {
+          p += 1 + ((p - anchor) >>> 6);
+          continue;
+        }
+
+        int m = MIN_MATCH;
+        while (p + m < len && src[off + ref + m] == src[off + p + m]) {
+          m++;
+        }
+
+        // varints are at most 5 bytes
+        int literals = p - anchor;
+        if (d + 5 + literals + 5 + 2 > end) {
+          return -1;
+        }
+        d = WriteVarInt(dst, d, literals);
+        System.arraycopy(src, off + anchor, dst, d, literals);
+        d += literals;
+        d = WriteVarInt(dst, d, m - MIN_MATCH);
+        int o = p - ref;
+        dst[d++] = (byte) o;
+        dst[d++] = (byte) (o >>> 8);
+
+        p += m;
+        anchor = p;
+        if (p - 2 <= last) {
+          table[Hash(ReadInt(src, off + p - 2))] = p - 2;
+        }
+
+      }
+
+      int literals = len - anchor;
+      if (d + 5 + literals > end) {
+        return -1;
+      }
+      d = WriteVarInt(dst, d, literals);
+      System.arraycopy(src, off + anchor, dst, d, literals);
+      d += literals;
+
+      return d - dstOff;
+
+    }
+
+    @Override
+    public void Decompress(byte[] src, int off, int len, byte[] dst,
+        int dstOff, int rawLen) throws IOException {
+
+      int s = off;
+      int end = off + len;
+      int d = dstOff;
+      int dEnd = dstOff + rawLen;
+
+      while (true) {
+
+        int literals = 0;
+        for (int shift = 0;; shift += 7) {
+          if (s >= end || shift > 28) {
+            throw new IOException("Corrupt LZ block");
+          }
+          byte b = src[s++];
+          literals |= (b & 0x7f) << shift;
+          if (b >= 0) {
+            break;
+          }
+        }
+        if (literals < 0 || literals > end - s || literals > dEnd - d) {
+          throw new IOException("Corrupt LZ block");
+        }
+        System.arraycopy(src, s, dst, d, literals);
+        s += literals;
+        d += literals;
+
+        if (s == end) {
+          break;
+        }
+
+        int m = 0;
+        for (int shift = 0;; shift += 7) {
+          if (s >= end || shift > 28) {
+            throw new IOException("Corrupt LZ block");
+          }
+          byte b = src[s++];
+          m |= (b & 0x7f) << shift;
+          if (b >= 0) {
+            break;
+          }
+        }
+        m += MIN_MATCH;
+        if (s + 2 > end) {
+          throw new IOException("Corrupt LZ block");
+        }
+        int o = (src[s] & 0xff) | ((src[s + 1] & 0xff) << 8);
+        s += 2;
+        if (m < MIN_MATCH || 0 == o || o > d - dstOff || m > dEnd - d) {
+          throw new IOException("Corrupt LZ block");
+        }
+
+        // overlapping when o < m, a run with period o: every copy doubles
+        // what's there to copy from
+        int from = d - o;
+        int matchEnd = d + m;
+        while (d < matchEnd) {
+          int n = Math.min(d - from, matchEnd - d);
+          System.arraycopy(dst, from, dst, d, n);
+          d += n;
+        }
+
+      }
+
+      if (d != dEnd) {
+        throw new IOException("LZ block decompressed to the wrong length");
+      }
+
+    }
+
+  }
+
+}
@@ -26,9 +26,13 @@ import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.mahout.math.Matrix;
-import org.apache.mahout.math.MatrixWritable;
+
+import com.cloudera.knittingboar.math.ModelMatrixWritable;
+import com.cloudera.knittingboar.math.QuantizedMatrix;
 
 
 
@@ -40,6 +44,13 @@ public class ParameterVector {
   public Matrix parameter_vector = null;
   public int GlobalPassCount = 0; // what pass should the worker dealing with?
   
+  // sparse gradient delta ("gamma") mode: instead of the full beta in
+  // parameter_vector, gamma holds (beta - last global beta) for just the
+  // columns listed in gamma_columns
+  public int GradientDelta = 0; // 0 = no, 1 = yes
+  public int[] gamma_columns = null;
+  public Matrix gamma = null;
+  
   public int IterationComplete = 0; // 0 = no, 1 = yes
   public int CurrentIteration = 0;
   
@@ -47,9 +58,36 @@ public class ParameterVector {
   public float AvgLogLikelihood = 0;
   public float PercentCorrect = 0;
   
+  // with sampled metrics the two above are the means over MetricsSamples
+  // sampled records this superstep, +/- these 95% confidence intervals;
+  // 0 samples means they're the usual moving averages
+  public int MetricsSamples = 0;
+  public float LogLikelihoodCI = 0;
+  public float PercentCorrectCI = 0;
+  
+  // records the worker trained on this superstep, for weighting the average
+  public int SuperstepRecords = 0;
+  
+  // with a full beta: the columns the worker changed this superstep, so the
+  // master can average per coordinate; null means it didn't say
+  public int[] touched_columns = null;
+  
+  // the worker's phase timings for the superstep (POLRMetrics.PhaseReport()),
+  // written after the matrix so a message without them still parses
+  public Map<String,Long> WorkerMetrics = null;
+  
+  // set: Serialize() sends this quantized copy of parameter_vector (or of
+  // gamma, for a gradient delta) instead; it arrives dequantized
+  public QuantizedMatrix quantized = null;
+  
+  // set by Serialize(), for the worker's own accounting
+  public transient long SerializeNanos = 0;
+  public transient long SerializedBytes = 0;
+  
   public byte[] Serialize() throws IOException {
     
     // DataOutput d
+    long start = System.nanoTime();
     
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     DataOutput d = new DataOutputStream(out);
@@ -64,12 +102,60 @@ public class ParameterVector {
     d.writeInt(this.TrainedRecords);
     d.writeFloat(this.AvgLogLikelihood);
     d.writeFloat(this.PercentCorrect);
+    d.writeInt(this.MetricsSamples);
+    d.writeFloat(this.LogLikelihoodCI);
+    d.writeFloat(this.PercentCorrectCI);
+    d.writeInt(this.SuperstepRecords);
     // buf.write
     // MatrixWritable.writeMatrix(d, this.worker_gradient.getMatrix());
-    MatrixWritable.writeMatrix(d, this.parameter_vector);
+    d.writeInt(this.GradientDelta);
+    
+    if (this.GradientDelta == 1) {
+      
+      d.writeInt(this.gamma_columns.length);
+      for (int x = 0; x < this.gamma_columns.length; x++) {
+        d.writeInt(this.gamma_columns[x]);
+      }
+      if (this.gamma_columns.length > 0) {
+        WriteMatrix(d, this.gamma);
+      }
+      
+    } else {
+      WriteMatrix(d, this.parameter_vector);
+    }
     // MatrixWritable.
     
-    return out.toByteArray();
+    if (null == this.touched_columns) {
+      d.writeInt(-1);
+    } else {
+      d.writeInt(this.touched_columns.length);
+      for (int x = 0; x < this.touched_columns.length; x++) {
+        d.writeInt(this.touched_columns[x]);
+      }
+    }
+    
+    if (null != this.WorkerMetrics) {
+      d.writeInt(this.WorkerMetrics.size());
+      for (Map.Entry<String,Long> metric : this.WorkerMetrics.entrySet()) {
+        d.writeUTF(metric.getKey());
+        d.writeLong(metric.getValue());
+      }
+    }
+    
+    byte[] bytes = out.toByteArray();
+    this.SerializeNanos = System.nanoTime() - start;
+    this.SerializedBytes = bytes.length;
+    return bytes;
+  }
+  
+  private void WriteMatrix(DataOutput d, Matrix m) throws IOException {
+    
+    if (null != this.quantized) {
+      ModelMatrixWritable.writeQuantized(d, this.quantized);
+    } else {
+      ModelMatrixWritable.writeMatrix(d, m);
+    }
+    
   }
   
   public void Deserialize(byte[] bytes) throws IOException {
@@ -87,8 +173,49 @@ public class ParameterVector {
     this.TrainedRecords = in.readInt(); // d.writeInt(this.TrainedRecords);
     this.AvgLogLikelihood = in.readFloat(); // d.writeFloat(this.AvgLogLikelihood);
     this.PercentCorrect = in.readFloat(); // d.writeFloat(this.PercentCorrect);
+    this.MetricsSamples = in.readInt();
+    this.LogLikelihoodCI = in.readFloat();
+    this.PercentCorrectCI = in.readFloat();
+    this.SuperstepRecords = in.readInt();
     
-    this.parameter_vector = MatrixWritable.readMatrix(in);
+    this.GradientDelta = in.readInt();
+    
+    if (this.GradientDelta == 1) {
+      
+      this.gamma_columns = new int[in.readInt()];
+      for (int x = 0; x < this.gamma_columns.length; x++) {
+        this.gamma_columns[x] = in.readInt();
+      }
+      if (this.gamma_columns.length > 0) {
+        this.gamma = ModelMatrixWritable.readMatrix(in, true);
+      } else {
+        this.gamma = null;
+      }
+      
+    } else {
+      this.parameter_vector = ModelMatrixWritable.readMatrix(in, true);
+    }
+    
+    int touched = in.readInt();
+    if (touched < 0) {
+      this.touched_columns = null;
+    } else {
+      this.touched_columns = new int[touched];
+      for (int x = 0; x < touched; x++) {
+        this.touched_columns[x] = in.readInt();
+      }
+    }
+    
+    if (b.available() > 0) {
+      int count = in.readInt();
+      this.WorkerMetrics = new LinkedHashMap<String,Long>();
+      for (int x = 0; x < count; x++) {
+        String name = in.readUTF();
+        this.WorkerMetrics.put(name, in.readLong());
+      }
+    } else {
+      this.WorkerMetrics = null;
+    }
     
   }
   
@@ -135,6 +262,34 @@ public class ParameterVector {
 //    this.AccumulatedGradientsCount++;
     
   }
+  /**
+   * Adds a sparse gradient delta into the parameter vector, scaled by
+   * multiplier. Only the listed columns are visited.
+   * 
+   * @param columns
+   *          column in this.parameter_vector for each column of delta
+   * @param delta
+   *          (numCategories - 1) x columns.length
+   */
+  public void AccumulateGradientDelta(int[] columns, Matrix delta,
+      double multiplier) {
+    
+    for (int x = 0; x < columns.length; x++) {
+      
+      int col = columns[x];
+      
+      for (int row = 0; row < this.parameter_vector.rowSize(); row++) {
+        
+        this.parameter_vector.setQuick(row, col,
+            this.parameter_vector.getQuick(row, col) + multiplier
+                * delta.getQuick(row, x));
+        
+      }
+      
+    }
+    
+  }
+  
 /*  
   public void Accumulate(GradientBuffer other_gamma) {
     
@@ -0,0 +1,542 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages.iterativereduce;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.mahout.math.Matrix;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.math.ModelMatrixWritable;
+import com.cloudera.knittingboar.math.QuantizedMatrix;
+
+/**
+ * Writes ParameterVectors straight into ByteBuffers and reads them back out,
+ * instead of going through a DataOutputStream, a ByteArrayOutputStream and
+ * its toByteArray() copy
+ *
+ * A fixed header with the message's fields is followed by each matrix as its
+ * shape and the raw coefficient block, 8 byte aligned and in the machine's
+ * byte order, so a FlatDenseMatrix / FloatDenseMatrix goes in and comes out
+ * with one bulk DoubleBuffer / FloatBuffer put or get. Matrices are always
+ * written dense, at the precision they're stored in, unless the message
+ * carries a quantized copy (ParameterVector.quantized).
+ *
+ * Encode() sizes the message up front and writes it into a buffer from a
+ * small pool (direct buffers if asked for), which the caller hands back with
+ * Release() once it's been sent. Decode() works on any buffer, heap or
+ * direct, and can read the coefficients into the matrices of a message being
+ * reused.
+ *
+ * Format: MAGIC, byte order (0 big endian, 1 little endian), then in that
+ * order the header fields, the matrix or gradient delta, touched_columns and
+ * WorkerMetrics (-1 count for null). A matrix is a precision byte
+ * (ModelMatrixWritable's), rows, columns, zero padding to 8 bytes from the
+ * start of the message, then the values feature-major. A QUANTIZED one has
+ * its bits and block size before the padding, then the block scales and the
+ * codes.
+ *
+ * @author jpatterson
+ *
+ */
+public class ParameterVectorCodec {
+
+  // "KBPV", can't be mistaken for the SrcWorkerPassCount that starts
+  // ParameterVector.Serialize()'s format
+  public static final int MAGIC = 0x4B425056;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int DEFAULT_POOLED_BUFFERS = 8;
+
+  private final boolean direct;
+  private final int maxPooled;
+  private final LinkedList<ByteBuffer> pool = new LinkedList<ByteBuffer>();
+
+  // buffers allocated, for the tests and the metrics
+  private long allocated = 0;
+
+  /**
+   * @param direct
+   *          encode into direct buffers (outside the heap, no copy on the way
+   *          to a socket) instead of heap buffers
+   */
+  public ParameterVectorCodec(boolean direct) {
+    this(direct, DEFAULT_POOLED_BUFFERS);
+  }
+
+  public ParameterVectorCodec(boolean direct, int maxPooled) {
+    this.direct = direct;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * @return true if the buffer holds a message in this format, going by its
+   *         first bytes from position()
+   */
+  public static boolean IsEncoded(ByteBuffer b) {
+    return b.remaining() >= 4
+        && b.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(b.position()) == MAGIC;
+  }
+
+  /**
+   * Writes the message into a pooled buffer
+   *
+   * @return the buffer, from position 0 to the end of the message; give it
+   *         back with Release() once it's been sent
+   */
+  public ByteBuffer Encode(ParameterVector msg) {
+
+    long start = System.nanoTime();
+
+    ByteBuffer out = Take(Size(msg));
+    int base = out.position();
+
+    // the magic and the order byte are always big endian
+    out.order(ByteOrder.BIG_ENDIAN);
+    out.putInt(MAGIC);
+    out.put((byte) (ByteOrder.LITTLE_ENDIAN.equals(ByteOrder.nativeOrder()) ? 1
+        : 0));
+    out.order(ByteOrder.nativeOrder());
+
+    out.putInt(msg.SrcWorkerPassCount);
+    out.putInt(msg.GlobalPassCount);
+    out.putInt(msg.IterationComplete);
+    out.putInt(msg.CurrentIteration);
+    out.putInt(msg.TrainedRecords);
+    out.putFloat(msg.AvgLogLikelihood);
+    out.putFloat(msg.PercentCorrect);
+    out.putInt(msg.MetricsSamples);
+    out.putFloat(msg.LogLikelihoodCI);
+    out.putFloat(msg.PercentCorrectCI);
+    out.putInt(msg.SuperstepRecords);
+    out.putInt(msg.GradientDelta);
+
+    if (msg.GradientDelta == 1) {
+      PutInts(out, msg.gamma_columns);
+      if (msg.gamma_columns.length > 0) {
+        PutMatrix(out, base, msg.gamma, msg.quantized);
+      }
+    } else {
+      PutMatrix(out, base, msg.parameter_vector, msg.quantized);
+    }
+
+    PutInts(out, msg.touched_columns);
+
+    if (null == msg.WorkerMetrics) {
+      out.putInt(-1);
+    } else {
+      out.putInt(msg.WorkerMetrics.size());
+      for (Map.Entry<String,Long> metric : msg.WorkerMetrics.entrySet()) {
+        byte[] name = metric.getKey().getBytes(UTF8);
+        out.putInt(name.length);
+        out.put(name);
+        out.putLong(metric.getValue());
+      }
+    }
+
+    out.flip();
+    msg.SerializeNanos = System.nanoTime() - start;
+    msg.SerializedBytes = out.remaining();
+    return out;
+
+  }
+
+  /**
+   * Reads a message from the buffer's position() on, leaving the position
+   * after it
+   */
+  public static ParameterVector Decode(ByteBuffer in) throws IOException {
+    return Decode(in, null);
+  }
+
+  /**
+   * @param reuse
+   *          a message that isn't needed any more, its matrices are read into
+   *          if they're the same shape and precision; null for a new one
+   */
+  public static ParameterVector Decode(ByteBuffer b, ParameterVector reuse)
+      throws IOException {
+
+    // our own view, so the caller's buffer keeps its byte order
+    ByteBuffer in = b.slice().order(ByteOrder.BIG_ENDIAN);
+
+    ParameterVector msg = (null == reuse) ? new ParameterVector() : reuse;
+
+    try {
+
+      if (in.getInt() != MAGIC) {
+        throw new IOException("Not an encoded ParameterVector");
+      }
+      in.order((1 == in.get()) ? ByteOrder.LITTLE_ENDIAN
+          : ByteOrder.BIG_ENDIAN);
+
+      msg.SrcWorkerPassCount = in.getInt();
+      msg.GlobalPassCount = in.getInt();
+      msg.IterationComplete = in.getInt();
+      msg.CurrentIteration = in.getInt();
+      msg.TrainedRecords = in.getInt();
+      msg.AvgLogLikelihood = in.getFloat();
+      msg.PercentCorrect = in.getFloat();
+      msg.MetricsSamples = in.getInt();
+      msg.LogLikelihoodCI = in.getFloat();
+      msg.PercentCorrectCI = in.getFloat();
+      msg.SuperstepRecords = in.getInt();
+      msg.GradientDelta = in.getInt();
+
+      if (msg.GradientDelta == 1) {
+        msg.gamma_columns = GetInts(in);
+        if (null == msg.gamma_columns) {
+          throw new IOException("Gradient delta without its columns");
+        }
+        msg.gamma = (msg.gamma_columns.length > 0) ? GetMatrix(in, msg.gamma)
+            : null;
+        msg.parameter_vector = null;
+      } else {
+        msg.parameter_vector = GetMatrix(in, msg.parameter_vector);
+        msg.gamma_columns = null;
+        msg.gamma = null;
+      }
+
+      msg.touched_columns = GetInts(in);
+
+      int metrics = in.getInt();
+      if (metrics < 0) {
+        msg.WorkerMetrics = null;
+      } else {
+        msg.WorkerMetrics = new LinkedHashMap<String,Long>();
+        for (int x = 0; x < metrics; x++) {
+          byte[] name = new byte[in.getInt()];
+          in.get(name);
+          msg.WorkerMetrics.put(new String(name, UTF8), in.getLong());
+        }
+      }
+
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated ParameterVector", e);
+    } catch (NegativeArraySizeException e) {
+      throw new IOException("Corrupt ParameterVector", e);
+    }
+
+    b.position(b.position() + in.position());
+    return msg;
+
+  }
+
+  /**
+   * Gives a buffer from Encode() back to the pool
+   */
+  public synchronized void Release(ByteBuffer buffer) {
+
+    if (null == buffer || buffer.isDirect() != this.direct) {
+      return;
+    }
+    if (this.pool.size() < this.maxPooled) {
+      buffer.clear();
+      this.pool.add(buffer);
+    }
+
+  }
+
+  public synchronized long getAllocatedBuffers() {
+    return this.allocated;
+  }
+
+  public boolean isDirect() {
+    return this.direct;
+  }
+
+  /**
+   * The first pooled buffer big enough, or a new one
+   */
+  private synchronized ByteBuffer Take(int size) {
+
+    for (int x = 0; x < this.pool.size(); x++) {
+      if (this.pool.get(x).capacity() >= size) {
+        ByteBuffer buffer = this.pool.remove(x);
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+      }
+    }
+
+    // none fits, make room for this one
+    if (this.pool.size() >= this.maxPooled && !this.pool.isEmpty()) {
+      this.pool.removeFirst();
+    }
+
+    this.allocated++;
+    ByteBuffer buffer = this.direct ? ByteBuffer.allocateDirect(size)
+        : ByteBuffer.allocate(size);
+    return buffer;
+
+  }
+
+  /**
+   * An upper bound on the encoded size (matrix padding is counted at most)
+   */
+  static int Size(ParameterVector msg) {
+
+    // magic, order, then the header fields
+    long size = 4 + 1 + 8 * 4 + 4 * 4;
+
+    if (null != msg.quantized) {
+      size += 1 + 4 + 4 + 1 + 4 + 7 + msg.quantized.getPayloadBytes();
+      if (msg.GradientDelta == 1) {
+        size += IntsSize(msg.gamma_columns);
+      }
+    } else if (msg.GradientDelta == 1) {
+      size += IntsSize(msg.gamma_columns);
+      if (msg.gamma_columns.length > 0) {
+        size += MatrixSize(msg.gamma);
+      }
+    } else {
+      size += MatrixSize(msg.parameter_vector);
+    }
+
+    size += IntsSize(msg.touched_columns);
+
+    size += 4;
+    if (null != msg.WorkerMetrics) {
+      for (String name : msg.WorkerMetrics.keySet()) {
+        size += 4 + name.getBytes(UTF8).length + 8;
+      }
+    }
+
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("ParameterVector too big to encode: "
+          + size + " bytes");
+    }
+    return (int) size;
+
+  }
+
+  private static long IntsSize(int[] values) {
+    return 4 + ((null == values) ? 0 : 4L * values.length);
+  }
+
+  private static long MatrixSize(Matrix m) {
+    return 1 + 4 + 4 + 7 + (long) m.numRows() * m.numCols()
+        * ((m instanceof FloatDenseMatrix) ? 4 : 8);
+  }
+
+  private static void PutInts(ByteBuffer out, int[] values) {
+
+    if (null == values) {
+      out.putInt(-1);
+      return;
+    }
+    out.putInt(values.length);
+    out.asIntBuffer().put(values);
+    out.position(out.position() + 4 * values.length);
+
+  }
+
+  private static int[] GetInts(ByteBuffer in) {
+
+    int count = in.getInt();
+    if (count < 0) {
+      return null;
+    }
+    int[] values = new int[count];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * count);
+    return values;
+
+  }
+
+  /**
+   * Zero padding up to the next 8 bytes from base
+   */
+  private static void Align(ByteBuffer b, int base, boolean write) {
+
+    int pad = (8 - (b.position() - base) % 8) % 8;
+    for (int x = 0; x < pad; x++) {
+      if (write) {
+        b.put((byte) 0);
+      } else {
+        b.get();
+      }
+    }
+
+  }
+
+  /**
+   * @param q
+   *          a quantized copy of m to write instead, or null
+   */
+  private static void PutMatrix(ByteBuffer out, int base, Matrix m,
+      QuantizedMatrix q) {
+
+    if (null != q) {
+
+      out.put(ModelMatrixWritable.QUANTIZED);
+      out.putInt(q.numRows());
+      out.putInt(q.numCols());
+      out.put((byte) q.getBits());
+      out.putInt(q.getBlockSize());
+      Align(out, base, true);
+
+      float[] scales = q.getScales();
+      out.asFloatBuffer().put(scales);
+      out.position(out.position() + 4 * scales.length);
+      if (8 == q.getBits()) {
+        out.put(q.getCodes8());
+      } else {
+        short[] codes = q.getCodes16();
+        out.asShortBuffer().put(codes);
+        out.position(out.position() + 2 * codes.length);
+      }
+      return;
+
+    }
+
+    int rows = m.numRows();
+    int cols = m.numCols();
+    boolean isFloat = m instanceof FloatDenseMatrix;
+
+    out.put(isFloat ? ModelMatrixWritable.FLOAT_PRECISION
+        : ModelMatrixWritable.DOUBLE_PRECISION);
+    out.putInt(rows);
+    out.putInt(cols);
+    Align(out, base, true);
+
+    if (isFloat) {
+
+      float[] values = ((FloatDenseMatrix) m).getValues();
+      out.asFloatBuffer().put(values);
+      out.position(out.position() + 4 * values.length);
+
+    } else if (m instanceof FlatDenseMatrix) {
+
+      double[] values = ((FlatDenseMatrix) m).getValues();
+      out.asDoubleBuffer().put(values);
+      out.position(out.position() + 8 * values.length);
+
+    } else {
+
+      for (int col = 0; col < cols; col++) {
+        for (int row = 0; row < rows; row++) {
+          out.putDouble(m.getQuick(row, col));
+        }
+      }
+
+    }
+
+  }
+
+  private static Matrix GetMatrix(ByteBuffer in, Matrix reuse)
+      throws IOException {
+
+    // the slice in Decode() starts at the message, so base is 0
+    byte precision = in.get();
+    int rows = in.getInt();
+    int cols = in.getInt();
+
+    if (precision == ModelMatrixWritable.QUANTIZED) {
+      return GetQuantized(in, rows, cols, reuse);
+    }
+
+    Align(in, 0, false);
+
+    int valueBytes = (precision == ModelMatrixWritable.FLOAT_PRECISION) ? 4 : 8;
+    if (rows < 0 || cols < 0
+        || (long) rows * cols * valueBytes > in.remaining()) {
+      throw new IOException("Truncated " + rows + " x " + cols + " matrix");
+    }
+
+    if (precision == ModelMatrixWritable.FLOAT_PRECISION) {
+
+      FloatDenseMatrix m = (reuse instanceof FloatDenseMatrix && SameShape(
+          reuse, rows, cols)) ? (FloatDenseMatrix) reuse
+          : new FloatDenseMatrix(rows, cols);
+      float[] values = m.getValues();
+      in.asFloatBuffer().get(values);
+      in.position(in.position() + 4 * values.length);
+      return m;
+
+    } else if (precision == ModelMatrixWritable.DOUBLE_PRECISION) {
+
+      FlatDenseMatrix m = (reuse instanceof FlatDenseMatrix && SameShape(
+          reuse, rows, cols)) ? (FlatDenseMatrix) reuse
+          : new FlatDenseMatrix(rows, cols);
+      double[] values = m.getValues();
+      in.asDoubleBuffer().get(values);
+      in.position(in.position() + 8 * values.length);
+      return m;
+
+    }
+
+    throw new IOException("Unknown matrix precision: " + precision);
+
+  }
+
+  /**
+   * Dequantizes straight into a FlatDenseMatrix
+   */
+  private static Matrix GetQuantized(ByteBuffer in, int rows, int cols,
+      Matrix reuse) throws IOException {
+
+    int bits = in.get();
+    int blockSize = in.getInt();
+    Align(in, 0, false);
+
+    QuantizedMatrix q;
+    try {
+      q = new QuantizedMatrix(rows, cols, bits, blockSize);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Bad quantized matrix", e);
+    }
+    if (q.getPayloadBytes() > in.remaining()) {
+      throw new IOException("Truncated " + rows + " x " + cols + " matrix");
+    }
+
+    float[] scales = q.getScales();
+    in.asFloatBuffer().get(scales);
+    in.position(in.position() + 4 * scales.length);
+    if (8 == bits) {
+      in.get(q.getCodes8());
+    } else {
+      short[] codes = q.getCodes16();
+      in.asShortBuffer().get(codes);
+      in.position(in.position() + 2 * codes.length);
+    }
+
+    FlatDenseMatrix m = (reuse instanceof FlatDenseMatrix && SameShape(reuse,
+        rows, cols)) ? (FlatDenseMatrix) reuse : new FlatDenseMatrix(rows, cols);
+    double[] values = m.getValues();
+    for (int x = 0; x < values.length; x++) {
+      values[x] = q.get(x);
+    }
+    return m;
+
+  }
+
+  private static boolean SameShape(Matrix m, int rows, int cols) {
+    return m.numRows() == rows && m.numCols() == cols;
+  }
+
+}
@@ -19,6 +19,8 @@ package com.cloudera.knittingboar.messages.iterativereduce;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.mahout.math.Matrix;
 
@@ -29,49 +31,233 @@ public class ParameterVectorUpdatable implements
     Updateable<ParameterVector> {
   
   
+  // reads compressed payloads when the node hasn't set its compressor
+  private static final BlockCompressor DECOMPRESSOR = new BlockCompressor(
+      BlockCompressor.NONE, BlockCompressor.DEFAULT_BLOCK_SIZE, 1);
+  
   ParameterVector param_msg = null;
   
+  // set: toBytes() encodes with ParameterVectorCodec instead of Serialize()
+  private volatile ParameterVectorCodec codec = null;
+  
+  // set: toBytes() block compresses the payload
+  private volatile BlockCompressor compressor = null;
+  
+  // what fromBytes() got, until get() or Decode() reads it
+  private ByteBuffer received = null;
+  
+  // why reading what fromBytes() got failed, every get() after that throws
+  private Exception failure = null;
+  
+  // who sent it, for the exception
+  private volatile String source = "a ParameterVector message";
+  
+  // the codec's buffers toBytes() handed out, until release()
+  private final List<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+  private ParameterVectorCodec encodedWith = null;
+  
+  // Broadcast(): encoded on the first toBytes(), every call after that gets
+  // a view of the same bytes until release()
+  private boolean shared = false;
+  private ByteBuffer sharedBytes = null;
+  private long served = 0;
+  private long hits = 0;
+  private long bytesServed = 0;
+  
   public ParameterVectorUpdatable() {}
   
   public ParameterVectorUpdatable(ParameterVector g) {
     this.param_msg = g;
   }
   
+  /**
+   * The codec toBytes() encodes with (the node's own, so its buffer pool),
+   * null to Serialize(); whatever it's set to, fromBytes() reads both
+   */
+  public void setCodec(ParameterVectorCodec c) {
+    this.codec = c;
+  }
+  
+  /**
+   * The node's compressor: toBytes() block compresses the payload with it and
+   * Decode() decompresses with it, so it's in that node's totals. Null sends
+   * uncompressed, compressed payloads are still read (single threaded).
+   */
+  public void setCompressor(BlockCompressor c) {
+    this.compressor = c;
+  }
+  
+  /**
+   * Names the sender in the exception get() and Decode() throw when the
+   * message can't be read, e.g. "worker 3"
+   */
+  public void setSource(String s) {
+    this.source = s;
+  }
+  
+  /**
+   * A message that's sent more than once, like the master's global model
+   * that every worker fetches: it's serialized (encoded, compressed) once
+   * and each toBytes() returns a duplicate() of the one buffer, so the
+   * callers each get their own position but share the bytes. Nobody may
+   * write to them, and the message mustn't change once it's been sent.
+   */
+  public static ParameterVectorUpdatable Broadcast(ParameterVector msg) {
+    
+    ParameterVectorUpdatable u = new ParameterVectorUpdatable(msg);
+    u.shared = true;
+    return u;
+    
+  }
+  
+  /**
+   * Only keeps the buffer, the message is read the first time get() or
+   * Decode() wants it; the buffer mustn't be reused until then
+   */
   @Override
-  public void fromBytes(ByteBuffer b) {
+  public synchronized void fromBytes(ByteBuffer b) {
     
     b.rewind();
     
     // System.out.println( " > ParameterVectorGradient::fromBytes > b: " +
     // b.array().length + ", remaining: " + b.remaining() );
     
+    this.received = b;
+    this.param_msg = null;
+    this.failure = null;
+    
+  }
+  
+  /**
+   * The message, read from what fromBytes() got if that hasn't happened yet
+   * 
+   * @param reuse
+   *          a message that isn't needed any more: a ParameterVectorCodec
+   *          payload is read into its matrices if they're the same shape and
+   *          precision; null for a new one. Unused if the message has been
+   *          read already, or was Serialize()d. If the message can't be
+   *          read, reuse may have been partly overwritten.
+   * @throws IllegalStateException
+   *           naming the source if the message is corrupt or truncated; it
+   *           stays unreadable, there's never a stale or partial message
+   */
+  public synchronized ParameterVector Decode(ParameterVector reuse) {
+    
+    if (null != this.failure) {
+      throw Unreadable(this.failure);
+    }
+    if (null == this.received) {
+      return this.param_msg;
+    }
+    
+    ByteBuffer b = this.received;
+    this.received = null;
+    
     try {
-      this.param_msg = new ParameterVector();
-      this.param_msg.Deserialize(b.array());
+      if (BlockCompressor.IsCompressed(b)) {
+        BlockCompressor c = this.compressor;
+        b = ((null == c) ? DECOMPRESSOR : c).Decompress(b);
+      }
+      
+      if (ParameterVectorCodec.IsEncoded(b)) {
+        this.param_msg = ParameterVectorCodec.Decode(b, reuse);
+      } else {
+        ParameterVector msg = new ParameterVector();
+        msg.Deserialize(Bytes(b));
+        this.param_msg = msg;
+      }
+      
     } catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      this.failure = e;
+    } catch (RuntimeException e) {
+      // the compressor's threads failing
+      this.failure = e;
+    }
+    
+    if (null != this.failure) {
+      this.param_msg = null;
+      throw Unreadable(this.failure);
     }
+    return this.param_msg;
+    
+  }
+  
+  private IllegalStateException Unreadable(Exception e) {
+    return new IllegalStateException("Couldn't read " + this.source, e);
+  }
+  
+  /**
+   * The buffer's contents as a byte[], without a copy when it's a whole heap
+   * array
+   */
+  private static byte[] Bytes(ByteBuffer b) {
+    
+    if (b.hasArray() && 0 == b.arrayOffset() && 0 == b.position()
+        && b.remaining() == b.array().length) {
+      return b.array();
+    }
+    byte[] bytes = new byte[b.remaining()];
+    b.duplicate().get(bytes);
+    return bytes;
+    
   }
   
   @Override
   public ParameterVector get() {
-    // TODO Auto-generated method stub
-    return this.param_msg;
+    return Decode(null);
   }
   
   @Override
-  public void set(ParameterVector t) {
-    // TODO Auto-generated method stub
+  public synchronized void set(ParameterVector t) {
+    this.received = null;
+    this.failure = null;
     this.param_msg = t;
   }
   
   @Override
   public ByteBuffer toBytes() {
-    // TODO Auto-generated method stub
+    
+    if (!this.shared) {
+      return Encode();
+    }
+    
+    synchronized (this.encoded) {
+      if (null == this.sharedBytes) {
+        this.sharedBytes = Encode();
+      } else {
+        this.hits++;
+      }
+      this.served++;
+      this.bytesServed += this.sharedBytes.remaining();
+      return this.sharedBytes.duplicate();
+    }
+    
+  }
+  
+  private ByteBuffer Encode() {
+    
+    ParameterVector msg = get();
+    ParameterVectorCodec c = this.codec;
+    BlockCompressor z = this.compressor;
+    if (null != c) {
+      ByteBuffer buf = c.Encode(msg);
+      if (null != z) {
+        // the compressed copy is what goes out, the codec's buffer can go
+        // straight back
+        ByteBuffer compressed = z.Compress(buf);
+        c.Release(buf);
+        return compressed;
+      }
+      synchronized (this.encoded) {
+        this.encoded.add(buf);
+        this.encodedWith = c;
+      }
+      return buf;
+    }
+    
     byte[] bytes = null;
     try {
-      bytes = this.param_msg.Serialize();
+      bytes = msg.Serialize();
     } catch (IOException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
@@ -81,7 +267,51 @@ public class ParameterVectorUpdatable implements
     // buf.put(bytes);
     ByteBuffer buf = ByteBuffer.wrap(bytes);
     
-    return buf;
+    return (null != z) ? z.Compress(buf) : buf;
+  }
+  
+  /**
+   * Gives the buffers toBytes() handed out back to the codec's pool, once
+   * they've been sent, and drops a Broadcast()'s shared buffer
+   */
+  public void release() {
+    
+    synchronized (this.encoded) {
+      for (ByteBuffer buf : this.encoded) {
+        this.encodedWith.Release(buf);
+      }
+      this.encoded.clear();
+      this.sharedBytes = null;
+    }
+    
+  }
+  
+  /**
+   * @return a Broadcast()'s toBytes() calls so far
+   */
+  public long getServed() {
+    synchronized (this.encoded) {
+      return this.served;
+    }
+  }
+  
+  /**
+   * @return a Broadcast()'s toBytes() calls served from the shared buffer,
+   *         without encoding
+   */
+  public long getCacheHits() {
+    synchronized (this.encoded) {
+      return this.hits;
+    }
+  }
+  
+  /**
+   * @return bytes a Broadcast()'s toBytes() calls have returned, summed
+   */
+  public long getBytesServed() {
+    synchronized (this.encoded) {
+      return this.bytesServed;
+    }
   }
   
   @Override
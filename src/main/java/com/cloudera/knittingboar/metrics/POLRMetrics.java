@@ -17,14 +17,41 @@
 
 package com.cloudera.knittingboar.metrics;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
 /**
  * this is the class we'll use to report worker node perf to master node
  * 
+ * Besides the running model stats it keeps per superstep phase timings: total
+ * nanoseconds, event count and a log2 histogram for each phase, plus records
+ * and bytes sent. PhaseReport() flattens them into the name -> long map that
+ * rides along with the ParameterVector to the master.
+ * 
+ * With a sample rate set, TakeSample() picks about 1 in N records for the
+ * progressive validation stats, which then go into SampledLogLikelihood and
+ * SampledCorrect instead of the moving averages.
+ * 
  * @author jpatterson
  *
  */
 public class POLRMetrics {
   
+  // the phases we time
+  public static final int PHASE_READ = 0;
+  public static final int PHASE_VECTORIZE = 1;
+  // score and train are one pass over the record (scoreAndTrain())
+  public static final int PHASE_TRAIN = 2;
+  public static final int PHASE_SERIALIZE = 3;
+  public static final int PHASE_BARRIER_WAIT = 4;
+  
+  public static final String[] PHASE_NAMES = new String[] {"read",
+      "vectorize", "train", "serialize", "barrier"};
+  
+  // bucket b counts the events that took [2^b, 2^(b+1)) ns
+  private static final int HISTOGRAM_BUCKETS = 40;
+  
   public String WorkerNodeIPAddress = null;
   public String WorkerNodeInputDataSplit = null;
   
@@ -35,5 +62,187 @@ public class POLRMetrics {
   
   public double AvgLogLikelihood = 0.0;
   public double AvgCorrect = 0.0;
+  
+  // this superstep's timings
+  public final long[] PhaseNanos = new long[PHASE_NAMES.length];
+  public final long[] PhaseEvents = new long[PHASE_NAMES.length];
+  public final long[][] PhaseHistograms = new long[PHASE_NAMES.length][HISTOGRAM_BUCKETS];
+  
+  public long SuperstepRecords = 0;
+  public long SuperstepNanos = 0;
+  public long BytesSent = 0;
+  // quantized transport: the update as doubles and as it went out
+  public long QuantizedRawBytes = 0;
+  public long QuantizedBytes = 0;
+  
+  // progressive validation on a sample of the records, this superstep
+  public final RunningEstimate SampledLogLikelihood = new RunningEstimate();
+  public final RunningEstimate SampledCorrect = new RunningEstimate();
+  
+  private int sampleRate = 0;
+  private int recordsUntilSample = 0;
+  private Random sampleRandom = null;
+  
+  /**
+   * Samples about 1 in rate records from here on, 0 turns sampling off
+   */
+  public void SetSampleRate(int rate, long seed) {
+    
+    this.sampleRate = rate;
+    this.sampleRandom = new Random(seed);
+    this.recordsUntilSample = (rate > 0) ? NextSampleGap() : 0;
+    
+  }
+  
+  public boolean IsSampling() {
+    return this.sampleRate > 0;
+  }
+  
+  /**
+   * @return whether to score the next record for the sampled stats. The gaps
+   *         between samples are random (uniform over 1 .. 2 * rate - 1) so a
+   *         periodic pattern in the split can't bias the estimate.
+   */
+  public boolean TakeSample() {
+    
+    if (--this.recordsUntilSample > 0) {
+      return false;
+    }
+    this.recordsUntilSample = NextSampleGap();
+    return true;
+    
+  }
+  
+  private int NextSampleGap() {
+    return 1 + this.sampleRandom.nextInt(2 * this.sampleRate - 1);
+  }
+  
+  public void AddSample(double logLikelihood, boolean correct) {
+    
+    if (!Double.isNaN(logLikelihood)) {
+      this.SampledLogLikelihood.Add(logLikelihood);
+    }
+    this.SampledCorrect.Add(correct ? 1.0 : 0.0);
+    
+  }
+  
+  public void MergeSamples(POLRMetrics other) {
+    this.SampledLogLikelihood.Merge(other.SampledLogLikelihood);
+    this.SampledCorrect.Merge(other.SampledCorrect);
+  }
+  
+  public void ResetSamples() {
+    this.SampledLogLikelihood.Reset();
+    this.SampledCorrect.Reset();
+  }
+  
+  /**
+   * Counts one event of the phase that took nanos
+   */
+  public void AddPhaseTime(int phase, long nanos) {
+    
+    this.PhaseNanos[phase] += nanos;
+    this.PhaseEvents[phase]++;
+    
+    int bucket = (nanos > 0) ? 63 - Long.numberOfLeadingZeros(nanos) : 0;
+    this.PhaseHistograms[phase][Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+    
+  }
+  
+  /**
+   * Adds another thread's phase timings into ours
+   */
+  public void MergePhaseTimes(POLRMetrics other) {
+    
+    for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+      this.PhaseNanos[phase] += other.PhaseNanos[phase];
+      this.PhaseEvents[phase] += other.PhaseEvents[phase];
+      for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+        this.PhaseHistograms[phase][b] += other.PhaseHistograms[phase][b];
+      }
+    }
+    
+  }
+  
+  public void ResetPhaseTimes() {
+    
+    for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+      this.PhaseNanos[phase] = 0;
+      this.PhaseEvents[phase] = 0;
+      for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+        this.PhaseHistograms[phase][b] = 0;
+      }
+    }
+    this.SuperstepRecords = 0;
+    this.SuperstepNanos = 0;
+    this.BytesSent = 0;
+    this.QuantizedRawBytes = 0;
+    this.QuantizedBytes = 0;
+    
+  }
+  
+  /**
+   * @return the p-th percentile (0 to 1) of the phase's event times, rounded up
+   *         to its histogram bucket's upper bound
+   */
+  public long PhasePercentileNanos(int phase, double p) {
+    
+    long events = this.PhaseEvents[phase];
+    if (0 == events) {
+      return 0;
+    }
+    
+    long rank = (long) Math.ceil(p * events);
+    long seen = 0;
+    for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+      seen += this.PhaseHistograms[phase][b];
+      if (seen >= rank) {
+        return 1L << (b + 1);
+      }
+    }
+    return 1L << HISTOGRAM_BUCKETS;
+    
+  }
+  
+  public long RecordsPerSecond() {
+    
+    if (this.SuperstepNanos <= 0) {
+      return 0;
+    }
+    return (long) (this.SuperstepRecords * 1.0e9 / this.SuperstepNanos);
+    
+  }
+  
+  /**
+   * The superstep's timings as a flat map, e.g. "train.ns", "train.count",
+   * "train.p50.ns", "train.p99.ns", "records", "records.per.sec",
+   * "superstep.ns", "bytes.sent" (and "quantize.*" with quantized updates) -
+   * the same shape as the metricsReport() map in KnittingBoarService.avdl
+   */
+  public Map<String,Long> PhaseReport() {
+    
+    Map<String,Long> report = new LinkedHashMap<String,Long>();
+    
+    for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+      String name = PHASE_NAMES[phase];
+      report.put(name + ".ns", this.PhaseNanos[phase]);
+      report.put(name + ".count", this.PhaseEvents[phase]);
+      report.put(name + ".p50.ns", PhasePercentileNanos(phase, 0.5));
+      report.put(name + ".p99.ns", PhasePercentileNanos(phase, 0.99));
+    }
+    report.put("records", this.SuperstepRecords);
+    report.put("records.per.sec", RecordsPerSecond());
+    report.put("superstep.ns", this.SuperstepNanos);
+    report.put("bytes.sent", this.BytesSent);
+    if (this.QuantizedBytes > 0) {
+      report.put("quantize.raw.bytes", this.QuantizedRawBytes);
+      report.put("quantize.bytes", this.QuantizedBytes);
+      report.put("quantize.ratio.x100", this.QuantizedRawBytes * 100
+          / this.QuantizedBytes);
+    }
+    
+    return report;
+    
+  }
 
 }
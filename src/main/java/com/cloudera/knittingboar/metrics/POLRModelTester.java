@@ -27,10 +27,10 @@ import org.apache.hadoop.io.Text;
 import org.apache.mahout.classifier.sgd.L1;
 import org.apache.mahout.classifier.sgd.ModelDissector;
 import org.apache.mahout.math.DenseVector;
-import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.knittingboar.io.InputRecordsSplit;
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
 import com.cloudera.knittingboar.records.CSVBasedDatasetRecordFactory;
 import com.cloudera.knittingboar.records.RCV1RecordFactory;
 import com.cloudera.knittingboar.records.RecordFactory;
@@ -298,6 +298,10 @@ public class POLRModelTester {
     k = 0;
     int num_correct = 0;
     
+    // reused for every record
+    PrimitiveSparseVector v = new PrimitiveSparseVector(this.FeatureVectorSize);
+    Vector p = new DenseVector(20);
+    
 //    for (int x = 0; x < this.BatchSize; x++) {
     while (true) {
       
@@ -305,7 +309,7 @@ public class POLRModelTester {
         
         long startTime = System.currentTimeMillis();
         
-        Vector v = new RandomAccessSparseVector(this.FeatureVectorSize);
+        v.clear();
         int actual = this.VectorFactory.processLine(value.toString(), v);
         
         long endTime = System.currentTimeMillis();
@@ -320,7 +324,11 @@ public class POLRModelTester {
         // calc stats ---------
         
         double mu = Math.min(k + 1, 200);
-        double ll = this.polr.logLikelihood(actual, v);
+        
+        // one classify pass for both stats, the log likelihood is just the
+        // log of actual's probability (what logLikelihood() computes)
+        this.polr.classifyFull(p, v);
+        double ll = Math.max(-100.0, Math.log(p.get(actual)));
         
         if (Double.isNaN(ll)) {
 
@@ -338,8 +346,6 @@ public class POLRModelTester {
           
         }
         
-        Vector p = new DenseVector(20);
-        this.polr.classifyFull(p, v);
         int estimated = p.maxValueIndex();
         
         int correct = (estimated == actual ? 1 : 0);
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.metrics;
+
+/**
+ * Running mean and variance of a sampled metric (Welford's update), so the
+ * worker can report an estimate with a confidence interval instead of a
+ * moving average over every record
+ * 
+ * Merge() combines two estimates (Chan et al.'s parallel form), which is how
+ * the Hogwild threads' samples get folded together.
+ * 
+ * @author jpatterson
+ *
+ */
+public class RunningEstimate {
+  
+  // two sided 95% normal quantile
+  private static final double Z_95 = 1.96;
+  
+  private long count = 0;
+  private double mean = 0.0;
+  // sum of squared differences from the mean
+  private double m2 = 0.0;
+  
+  public void Add(double x) {
+    
+    this.count++;
+    double delta = x - this.mean;
+    this.mean += delta / this.count;
+    this.m2 += delta * (x - this.mean);
+    
+  }
+  
+  public void Merge(RunningEstimate other) {
+    
+    if (0 == other.count) {
+      return;
+    }
+    
+    long n = this.count + other.count;
+    double delta = other.mean - this.mean;
+    this.mean += delta * other.count / n;
+    this.m2 += other.m2 + delta * delta * this.count * other.count / n;
+    this.count = n;
+    
+  }
+  
+  public void Reset() {
+    this.count = 0;
+    this.mean = 0.0;
+    this.m2 = 0.0;
+  }
+  
+  public long getCount() {
+    return this.count;
+  }
+  
+  public double getMean() {
+    return this.mean;
+  }
+  
+  /**
+   * @return the sample variance, 0 until there are two samples
+   */
+  public double getVariance() {
+    return (this.count < 2) ? 0.0 : this.m2 / (this.count - 1);
+  }
+  
+  /**
+   * @return the half width of the 95% confidence interval of the mean (normal
+   *         approximation), 0 until there are two samples
+   */
+  public double getConfidenceInterval95() {
+    return (this.count < 2) ? 0.0 : Z_95
+        * Math.sqrt(getVariance() / this.count);
+  }
+  
+}
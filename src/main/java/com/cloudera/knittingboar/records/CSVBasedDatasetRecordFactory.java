@@ -73,7 +73,8 @@ public class CSVBasedDatasetRecordFactory implements RecordFactory {
   private final Map<String,Set<Integer>> traceDictionary = Maps.newTreeMap();
   
   private int target;
-  private final Dictionary targetDictionary;
+  // may be shared with other factories, see shareTargetDictionary()
+  private Dictionary targetDictionary;
   
   // Which column is used for identify a CSV file line
   private String idName;
@@ -110,6 +111,15 @@ public class CSVBasedDatasetRecordFactory implements RecordFactory {
     this.idName = idName;
   }
   
+  /**
+   * Use the other factory's target value -> category id mapping, so several
+   * factories parsing the same split on different threads hand out the same
+   * ids for the same target values
+   */
+  public void shareTargetDictionary(CSVBasedDatasetRecordFactory other) {
+    this.targetDictionary = other.targetDictionary;
+  }
+  
   @Override
   public String GetClassnameByID(int id) {
     // TODO Auto-generated method stub
@@ -126,7 +136,10 @@ public class CSVBasedDatasetRecordFactory implements RecordFactory {
     
     // System.out.println( line + " //values.size(): " + values.size() );
     
-    int targetValue = targetDictionary.intern(values.get(target));
+    int targetValue;
+    synchronized (targetDictionary) {
+      targetValue = targetDictionary.intern(values.get(target));
+    }
     if (targetValue >= maxTargetValue) {
       targetValue = maxTargetValue - 1;
     }
@@ -185,8 +198,10 @@ public class CSVBasedDatasetRecordFactory implements RecordFactory {
       maxTargetValue = values.size();
     }
     
-    for (String value : values) {
-      targetDictionary.intern(value);
+    synchronized (targetDictionary) {
+      for (String value : values) {
+        targetDictionary.intern(value);
+      }
     }
   }
   
@@ -335,7 +350,9 @@ public class CSVBasedDatasetRecordFactory implements RecordFactory {
     List<String> values = Lists.newArrayList(COMMA.split(line));
     int targetValue = -1;
     if (returnTarget) {
-      targetValue = targetDictionary.intern(values.get(target));
+      synchronized (targetDictionary) {
+        targetValue = targetDictionary.intern(values.get(target));
+      }
       if (targetValue >= maxTargetValue) {
         targetValue = maxTargetValue - 1;
       }
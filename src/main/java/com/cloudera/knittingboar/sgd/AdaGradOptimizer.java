@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.map.OpenIntDoubleHashMap;
+
+/**
+ * AdaGrad: each coordinate's step is scaled by 1 / sqrt(sum of its squared
+ * gradients), so rare features keep taking big steps while common ones settle
+ * down.
+ *
+ * The squared gradient sums are kept in one hash map per category, so the
+ * state only grows with the features we've actually seen. The sums are this
+ * worker's own: they aren't sent to the master or saved with the model, so a
+ * reloaded model takes full size steps again until they build back up.
+ *
+ * @author jpatterson
+ *
+ */
+public class AdaGradOptimizer implements POLROptimizer {
+
+  private static final double EPSILON = 1.0e-8;
+
+  private final double learningRate;
+
+  // per category: feature -> sum of squared gradients
+  private final OpenIntDoubleHashMap[] sumSquaredGradients;
+
+  public AdaGradOptimizer(int numCategories, double learningRate) {
+
+    this.learningRate = learningRate;
+    this.sumSquaredGradients = new OpenIntDoubleHashMap[numCategories - 1];
+    for (int row = 0; row < numCategories - 1; row++) {
+      this.sumSquaredGradients[row] = new OpenIntDoubleHashMap();
+    }
+
+  }
+
+  @Override
+  public void Update(Matrix beta, int row, int col, double gradient) {
+
+    if (0 == gradient) {
+      return;
+    }
+
+    OpenIntDoubleHashMap g2 = this.sumSquaredGradients[row];
+    double sum = g2.get(col) + gradient * gradient;
+    g2.put(col, sum);
+
+    beta.setQuick(row, col, beta.getQuick(row, col) + this.learningRate
+        * gradient / (Math.sqrt(sum) + EPSILON));
+
+  }
+
+  /**
+   * nothing to do, the state doesn't depend on beta
+   */
+  @Override
+  public void Sync(Matrix beta) {}
+
+}
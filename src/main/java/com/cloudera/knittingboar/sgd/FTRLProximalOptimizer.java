@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.map.OpenIntDoubleHashMap;
+
+/**
+ * FTRL-Proximal (McMahan et al., "Ad Click Prediction: a View from the
+ * Trenches")
+ *
+ * Keeps z (the accumulated gradients, adjusted for the per coordinate learning
+ * rate changes) and n (the sum of squared gradients) for each coordinate, and
+ * sets beta(row, col) from them after every update. With L1 > 0 most
+ * coordinates come out exactly 0, so the model is genuinely sparse.
+ *
+ * z and n live in one hash map per category, keyed by feature. They're this
+ * worker's own history: they aren't sent to the master or saved with the
+ * model, so a reloaded model starts them again from nothing.
+ *
+ * @author jpatterson
+ *
+ */
+public class FTRLProximalOptimizer implements POLROptimizer {
+
+  private final double alpha;
+  private final double beta;
+  private final double l1;
+  private final double l2;
+
+  // per category: feature -> z, feature -> n
+  private final OpenIntDoubleHashMap[] z;
+  private final OpenIntDoubleHashMap[] n;
+
+  /**
+   * @param alpha
+   *          learning rate
+   * @param beta
+   *          learning rate smoothing, usually 1
+   * @param l1
+   *          L1 regularization, larger gives a sparser model
+   * @param l2
+   *          L2 regularization
+   */
+  public FTRLProximalOptimizer(int numCategories, double alpha, double beta,
+      double l1, double l2) {
+
+    this.alpha = alpha;
+    this.beta = beta;
+    this.l1 = l1;
+    this.l2 = l2;
+
+    this.z = new OpenIntDoubleHashMap[numCategories - 1];
+    this.n = new OpenIntDoubleHashMap[numCategories - 1];
+    for (int row = 0; row < numCategories - 1; row++) {
+      this.z[row] = new OpenIntDoubleHashMap();
+      this.n[row] = new OpenIntDoubleHashMap();
+    }
+
+  }
+
+  private double Denominator(double n) {
+    return (this.beta + Math.sqrt(n)) / this.alpha + this.l2;
+  }
+
+  /**
+   * the closed form FTRL-Proximal weight for a coordinate's z and n
+   */
+  private double Weight(double z, double n) {
+
+    if (Math.abs(z) <= this.l1) {
+      return 0;
+    }
+    return -(z - Math.signum(z) * this.l1) / Denominator(n);
+
+  }
+
+  @Override
+  public void Update(Matrix beta, int row, int col, double gradient) {
+
+    // FTRL minimizes the loss, whose gradient is -(target - p) * x
+    double g = -gradient;
+    if (0 == g) {
+      return;
+    }
+
+    double nOld = this.n[row].get(col);
+    double nNew = nOld + g * g;
+    double sigma = (Math.sqrt(nNew) - Math.sqrt(nOld)) / this.alpha;
+    double zNew = this.z[row].get(col) + g - sigma * beta.getQuick(row, col);
+
+    this.z[row].put(col, zNew);
+    this.n[row].put(col, nNew);
+
+    beta.setQuick(row, col, Weight(zNew, nNew));
+
+  }
+
+  /**
+   * Re-derives z so that Weight(z, n) gives back the new beta - otherwise the
+   * next Update() would snap each coordinate back to our local weight and
+   * throw away the master's average. n (the gradient history) is kept.
+   *
+   * Only the coordinates we have history for and the master's non zero
+   * weights touch the hash maps; everything else is 0 with no z, which
+   * Weight() already agrees with.
+   */
+  @Override
+  public void Sync(Matrix beta) {
+
+    for (int row = 0; row < this.z.length; row++) {
+
+      OpenIntDoubleHashMap zRow = this.z[row];
+      OpenIntDoubleHashMap nRow = this.n[row];
+
+      // any |z| <= l1 gives 0, keep as much of the history as we can
+      IntArrayList seen = zRow.keys();
+      for (int k = 0; k < seen.size(); k++) {
+        int col = seen.getQuick(k);
+        if (0 == beta.getQuick(row, col)) {
+          double zOld = zRow.get(col);
+          zRow.put(col, Math.max(-this.l1, Math.min(this.l1, zOld)));
+        }
+      }
+
+      for (int col = 0; col < beta.numCols(); col++) {
+
+        double w = beta.getQuick(row, col);
+
+        if (0 != w) {
+          zRow.put(col, -w * Denominator(nRow.get(col)) - Math.signum(w)
+              * this.l1);
+        }
+
+      }
+    }
+
+  }
+
+}
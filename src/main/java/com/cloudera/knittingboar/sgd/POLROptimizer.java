@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import org.apache.mahout.math.Matrix;
+
+/**
+ * Per coordinate update rule for POLR
+ *
+ * When POLR has an optimizer set, train() still does the forward pass and
+ * computes the gradient for each (category, feature) coordinate, but hands the
+ * update itself to the optimizer instead of applying Mahout's annealed SGD
+ * step and prior.
+ *
+ * @author jpatterson
+ *
+ */
+public interface POLROptimizer {
+
+  public static final String SGD = "sgd";
+  public static final String ADAGRAD = "adagrad";
+  public static final String FTRL = "ftrl";
+
+  /**
+   * Update beta(row, col).
+   *
+   * @param gradient
+   *          gradient of the log likelihood for this coordinate, (target - p)
+   *          * x, so moving beta along it is an improvement
+   */
+  public void Update(Matrix beta, int row, int col, double gradient);
+
+  /**
+   * Called after beta has been replaced from outside (e.g. with the master's
+   * averaged parameter vector) so the optimizer can bring any state derived
+   * from beta in line with the new values.
+   */
+  public void Sync(Matrix beta);
+
+}
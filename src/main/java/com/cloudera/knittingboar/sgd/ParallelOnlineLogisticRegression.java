@@ -20,12 +20,12 @@ package com.cloudera.knittingboar.sgd;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.mahout.classifier.sgd.AbstractOnlineLogisticRegression;
-import org.apache.mahout.classifier.sgd.DefaultGradient;
-import org.apache.mahout.classifier.sgd.Gradient;
 import org.apache.mahout.classifier.sgd.PolymorphicWritable;
 import org.apache.mahout.classifier.sgd.PriorFunction;
 import org.apache.mahout.math.DenseMatrix;
@@ -35,6 +35,10 @@ import org.apache.mahout.math.MatrixWritable;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.math.ModelMatrixWritable;
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
 import com.cloudera.knittingboar.utils.Utils;
 
 /**
@@ -51,7 +55,10 @@ import com.cloudera.knittingboar.utils.Utils;
  */
 public class ParallelOnlineLogisticRegression extends
     AbstractOnlineLogisticRegression implements Writable {
-  public static final int WRITABLE_VERSION = 1;
+  public static final int WRITABLE_VERSION = 2;
+  
+  // version 1 wrote beta with MatrixWritable, always in double precision
+  public static final int WRITABLE_VERSION_DOUBLE_BETA = 1;
   
   // these next two control decayFactor^steps exponential type of annealing
   // learning rate and decay factor
@@ -67,13 +74,57 @@ public class ParallelOnlineLogisticRegression extends
   // controls how per term annealing works
   private int perTermAnnealingOffset = 20;
   
-  // had to add this because its private in the base class
-  private Gradient default_gradient = new DefaultGradient();
-  
   // ####### This is NEW ######################
-  // that is (numCategories-1) x numFeatures
-  //protected MultinomialLogisticRegressionParameterVectors gamma; // this is the saved updated gradient we merge
-                                  // at the super step
+  // sparse record of which columns changed since the last super step, null
+  // unless we're sending gradient deltas to the master
+  protected SparseGradientBuffer gamma = null;
+  
+  // per coordinate update rule, null means Mahout's annealed SGD + prior
+  protected POLROptimizer optimizer = null;
+  
+  // perTermLearningRate(j) for every feature, see incrementUpdateCount()
+  private double[] perTermRates = null;
+  
+  // currentLearningRate() as of one step, one per training thread so it's
+  // updated in place instead of allocated every step
+  private static class StepRate {
+    int version = -1;
+    int step = -1;
+    double decay;
+    double rate;
+  }
+  
+  private final ThreadLocal<StepRate> stepRates = new ThreadLocal<StepRate>() {
+    @Override
+    protected StepRate initialValue() {
+      return new StepRate();
+    }
+  };
+  
+  // bumped whenever the schedule changes, so the StepRates start over
+  private volatile int rateVersion = 0;
+  
+  // the step, shared by every thread training this POLR (Hogwild) so no
+  // records get lost off the annealing schedule; step is kept in line
+  private final AtomicInteger stepCounter = new AtomicInteger();
+  
+  // how far we'll multiply decayFactor forward before falling back to pow()
+  private static final int MAX_DECAY_CARRY_STEPS = 4;
+  
+  // scratch space for trainFlat(), one per thread so several training threads
+  // can share this POLR (see POLRWorkerNode's TrainingThreads)
+  private static class FlatScratch {
+    int[] indexes = new int[0];
+    double[] values = new double[0];
+    double[] scores = new double[0];
+  }
+  
+  private final ThreadLocal<FlatScratch> flatScratch = new ThreadLocal<FlatScratch>() {
+    @Override
+    protected FlatScratch initialValue() {
+      return new FlatScratch();
+    }
+  };
   
   public ParallelOnlineLogisticRegression() {
   // private constructor available for serialization, but not normal use
@@ -98,8 +149,87 @@ public class ParallelOnlineLogisticRegression extends
     updateCounts = new DenseVector(numFeatures).assign(perTermAnnealingOffset);
     beta = new DenseMatrix(numCategories - 1, numFeatures);
     
-    // brand new factor for parallelization
-//    this.gamma = new MultinomialLogisticRegressionParameterVectors(numCategories, numFeatures);
+    resetLearningRates();
+    
+  }
+  
+  /**
+   * Chainable configuration option.
+   * 
+   * @param useFloat
+   *          If true, store beta in single precision (FloatDenseMatrix). The
+   *          per term counts and the update arithmetic stay in double.
+   * @return This, so other configurations can be chained.
+   */
+  public ParallelOnlineLogisticRegression floatBeta(boolean useFloat) {
+    if (useFloat && !(beta instanceof FloatDenseMatrix)) {
+      beta = new FloatDenseMatrix(beta);
+    } else if (!useFloat && beta instanceof FloatDenseMatrix) {
+      beta = new DenseMatrix(beta.numRows(), beta.numCols()).assign(beta);
+    }
+    return this;
+  }
+  
+  public boolean isFloatBeta() {
+    return beta instanceof FloatDenseMatrix;
+  }
+  
+  /**
+   * Chainable configuration option.
+   * 
+   * @param useFlat
+   *          If true, store beta in a FlatDenseMatrix so train() can use the
+   *          flat primitive array kernel (see trainFlat()). Takes precedence
+   *          over floatBeta() if both are set.
+   * @return This, so other configurations can be chained.
+   */
+  public ParallelOnlineLogisticRegression flatBeta(boolean useFlat) {
+    if (useFlat && !(beta instanceof FlatDenseMatrix)) {
+      beta = new FlatDenseMatrix(beta);
+    } else if (!useFlat && beta instanceof FlatDenseMatrix) {
+      beta = new DenseMatrix(beta.numRows(), beta.numCols()).assign(beta);
+    }
+    return this;
+  }
+  
+  public boolean isFlatBeta() {
+    return beta instanceof FlatDenseMatrix;
+  }
+  
+  /**
+   * Chainable configuration option.
+   * 
+   * @param optimizer
+   *          Per coordinate update rule (AdaGrad, FTRL-Proximal) to use in
+   *          place of the annealed SGD step, or null for the default. The
+   *          optimizer also replaces the prior / lambda regularization.
+   * @return This, so other configurations can be chained.
+   */
+  public ParallelOnlineLogisticRegression optimizer(POLROptimizer optimizer) {
+    this.optimizer = optimizer;
+    return this;
+  }
+  
+  public POLROptimizer getOptimizer() {
+    return this.optimizer;
+  }
+  
+  /**
+   * Chainable configuration option.
+   * 
+   * @param track
+   *          If true, keep a sparse gamma buffer of the columns touched since
+   *          the last FlushGamma() so the worker can send gradient deltas
+   *          instead of the full beta.
+   * @return This, so other configurations can be chained.
+   */
+  public ParallelOnlineLogisticRegression gammaBuffer(boolean track) {
+    if (track) {
+      this.gamma = new SparseGradientBuffer(numCategories, beta.numCols());
+    } else {
+      this.gamma = null;
+    }
+    return this;
   }
   
   /**
@@ -112,6 +242,7 @@ public class ParallelOnlineLogisticRegression extends
    */
   public ParallelOnlineLogisticRegression alpha(double alpha) {
     this.decayFactor = alpha;
+    this.rateVersion++;
     return this;
   }
   
@@ -131,11 +262,13 @@ public class ParallelOnlineLogisticRegression extends
    */
   public ParallelOnlineLogisticRegression learningRate(double learningRate) {
     this.learningRate = learningRate;
+    this.rateVersion++;
     return this;
   }
   
   public ParallelOnlineLogisticRegression stepOffset(int stepOffset) {
     this.stepOffset = stepOffset;
+    this.rateVersion++;
     return this;
   }
   
@@ -144,22 +277,106 @@ public class ParallelOnlineLogisticRegression extends
       decayExponent = -decayExponent;
     }
     this.forgettingExponent = decayExponent;
+    this.rateVersion++;
     return this;
   }
   
+  /**
+   * sqrt(perTermAnnealingOffset / updateCounts[j]), served from perTermRates
+   * which we update whenever a count changes
+   */
   @Override
   public double perTermLearningRate(int j) {
-    return Math.sqrt(perTermAnnealingOffset / updateCounts.get(j));
+    return perTermRates[j];
   }
   
+  /**
+   * learningRate * decayFactor^step * (step + stepOffset)^forgettingExponent
+   * 
+   * Only computed once per step. decayFactor^step is carried forward from the
+   * last step we saw, so moving ahead a step or two costs a multiply instead
+   * of a Math.pow.
+   */
   @Override
   public double currentLearningRate() {
-    return learningRate * Math.pow(decayFactor, getStep())
-        * Math.pow(getStep() + stepOffset, forgettingExponent);
+    
+    StepRate cached = this.stepRates.get();
+    int step = getStep();
+    int version = this.rateVersion;
+    
+    if (cached.version == version && cached.step == step) {
+      return cached.rate;
+    }
+    
+    double decay;
+    if (cached.version == version && step > cached.step
+        && step - cached.step <= MAX_DECAY_CARRY_STEPS) {
+      decay = cached.decay;
+      for (int x = cached.step; x < step; x++) {
+        decay *= decayFactor;
+      }
+    } else {
+      decay = Math.pow(decayFactor, step);
+    }
+    
+    double rate = learningRate * decay
+        * Math.pow(step + stepOffset, forgettingExponent);
+    cached.version = version;
+    cached.step = step;
+    cached.decay = decay;
+    cached.rate = rate;
+    return rate;
+    
+  }
+  
+  /**
+   * The optimizers do their own regularization, so the lazy prior only applies
+   * to the default SGD update
+   */
+  @Override
+  public void regularize(Vector instance) {
+    if (null == this.optimizer) {
+      super.regularize(instance);
+    }
+  }
+  
+  /**
+   * Rebuild perTermRates from updateCounts
+   */
+  private void resetLearningRates() {
+    
+    this.rateVersion++;
+    
+    if (null == updateCounts) {
+      return;
+    }
+    
+    int numFeatures = updateCounts.size();
+    if (null == perTermRates || perTermRates.length != numFeatures) {
+      perTermRates = new double[numFeatures];
+    }
+    for (int j = 0; j < numFeatures; j++) {
+      perTermRates[j] = Math.sqrt(perTermAnnealingOffset
+          / updateCounts.getQuick(j));
+    }
+    
+  }
+  
+  /**
+   * updateCounts[j]++, keeping the cached per term rate in step
+   */
+  private void incrementUpdateCount(int j) {
+    
+    double count = updateCounts.getQuick(j) + 1;
+    updateCounts.setQuick(j, count);
+    perTermRates[j] = Math.sqrt(perTermAnnealingOffset / count);
+    
   }
   
   public void copyFrom(ParallelOnlineLogisticRegression other) {
     super.copyFrom(other);
+    step = other.getStep();
+    stepCounter.set(step);
     learningRate = other.learningRate;
     decayFactor = other.decayFactor;
     
@@ -167,12 +384,16 @@ public class ParallelOnlineLogisticRegression extends
     forgettingExponent = other.forgettingExponent;
     
     perTermAnnealingOffset = other.perTermAnnealingOffset;
+    
+    resetLearningRates();
   }
   
   public ParallelOnlineLogisticRegression copy() {
     close();
     ParallelOnlineLogisticRegression r = new ParallelOnlineLogisticRegression(
         numCategories(), numFeatures(), prior);
+    // keep the same beta storage (float, flat or dense)
+    r.beta = beta.like();
     r.copyFrom(this);
     return r;
   }
@@ -187,11 +408,11 @@ public class ParallelOnlineLogisticRegression extends
     out.writeDouble(learningRate);
     out.writeDouble(decayFactor);
     out.writeInt(stepOffset);
-    out.writeInt(step);
+    out.writeInt(getStep());
     out.writeDouble(forgettingExponent);
     out.writeInt(perTermAnnealingOffset);
     out.writeInt(numCategories);
-    MatrixWritable.writeMatrix(out, beta);
+    ModelMatrixWritable.writeMatrix(out, beta);
     PolymorphicWritable.write(out, prior);
     VectorWritable.writeVector(out, updateCounts);
     VectorWritable.writeVector(out, updateSteps);
@@ -201,19 +422,26 @@ public class ParallelOnlineLogisticRegression extends
   @Override
   public void readFields(DataInput in) throws IOException {
     int version = in.readInt();
-    if (version == WRITABLE_VERSION) {
+    if (version == WRITABLE_VERSION || version == WRITABLE_VERSION_DOUBLE_BETA) {
       learningRate = in.readDouble();
       decayFactor = in.readDouble();
       stepOffset = in.readInt();
       step = in.readInt();
+      stepCounter.set(step);
       forgettingExponent = in.readDouble();
       perTermAnnealingOffset = in.readInt();
       numCategories = in.readInt();
-      beta = MatrixWritable.readMatrix(in);
+      if (version == WRITABLE_VERSION_DOUBLE_BETA) {
+        beta = MatrixWritable.readMatrix(in);
+      } else {
+        beta = ModelMatrixWritable.readMatrix(in);
+      }
       prior = PolymorphicWritable.read(in, PriorFunction.class);
       
       updateCounts = VectorWritable.readVector(in);
       updateSteps = VectorWritable.readVector(in);
+      
+      resetLearningRates();
     } else {
       throw new IOException("Incorrect object version, wanted "
           + WRITABLE_VERSION + " got " + version);
@@ -230,19 +458,66 @@ public class ParallelOnlineLogisticRegression extends
   @Override
   public void train(long trackingKey, String groupKey, int actual,
       Vector instance) {
+    
+    scoreAndTrain(actual, instance, null);
+    
+  }
+  
+  /**
+   * Fused score and train step: classifies the instance once and uses those
+   * probabilities both for the metrics and for the gradient, instead of
+   * logLikelihood() + classifyFull() + train() each doing their own pass over
+   * beta.
+   * 
+   * The probabilities are computed after the lazy regularization of the
+   * touched columns, i.e. they're the same ones train() uses for the update.
+   * 
+   * @param actual
+   *          the target category
+   * @param instance
+   *          the feature vector
+   * @param probabilities
+   *          if not null, filled in like classifyFull() (numCategories
+   *          entries, category 0 first) so the caller can take the argmax
+   * @return the log likelihood of actual, as logLikelihood() would compute it
+   */
+  public double scoreAndTrain(int actual, Vector instance, Vector probabilities) {
+    
+    if (beta instanceof FlatDenseMatrix && null == this.optimizer) {
+      return trainFlat(actual, instance, probabilities);
+    }
+    
     unseal();
     double learningRate = currentLearningRate();
     
+    // snapshot any columns we're about to touch for the first time since the
+    // last flush
+    if (null != this.gamma) {
+      Iterator<Vector.Element> touched = instance.iterateNonZero();
+      while (touched.hasNext()) {
+        this.gamma.Track(touched.next().index(), beta);
+      }
+    }
+    
     // push coefficients back to zero based on the prior
     regularize(instance);
     
-    // basically this only gets the results for each classification
-    // update each row of coefficients according to result
-    Vector gradient = this.default_gradient.apply(groupKey, actual, instance,
-        this);
+    // the one forward pass, the gradient is just target - p
+    Vector p = classify(instance);
+    double logLikelihood = logLikelihood(actual, p, probabilities);
+    
     for (int i = 0; i < numCategories - 1; i++) {
       
-      double gradientBase = gradient.get(i);
+      double gradientBase = (i == actual - 1 ? 1.0 : 0.0) - p.get(i);
+      
+      if (null != this.optimizer) {
+        Iterator<Vector.Element> nonZeros = instance.iterateNonZero();
+        while (nonZeros.hasNext()) {
+          Vector.Element e = nonZeros.next();
+          this.optimizer.Update(beta, i, e.index(), gradientBase * e.get());
+        }
+        continue;
+      }
       
       // we're only going to look at the non-zero elements of the vector
       // then we apply the gradientBase to the resulting element.
@@ -252,25 +527,10 @@ public class ParallelOnlineLogisticRegression extends
         Vector.Element updateLocation = nonZeros.next();
         int j = updateLocation.index();
         
-        double gradient_to_add = gradientBase * learningRate
-            * perTermLearningRate(j) * instance.get(j);
-        
-        // double old_beta = beta.getQuick(i, j);
-        
         double newValue = beta.getQuick(i, j) + gradientBase * learningRate
-            * perTermLearningRate(j) * instance.get(j);
+            * perTermLearningRate(j) * updateLocation.get();
         beta.setQuick(i, j, newValue);
         
-        // now update gamma --- we only want the gradient since the last time
-/*        
-        double old_gamma = gamma.getCell(i, j);
-        double new_gamma = old_gamma + gradient_to_add; // gradientBase *
-                                                        // learningRate *
-                                                        // perTermLearningRate(j)
-                                                        // * instance.get(j);
-        
-        gamma.setCell(i, j, new_gamma);
-  */      
       }
     }
     
@@ -280,10 +540,211 @@ public class ParallelOnlineLogisticRegression extends
       Vector.Element element = i.next();
       int j = element.index();
       updateSteps.setQuick(j, getStep());
-      updateCounts.setQuick(j, updateCounts.getQuick(j) + 1);
+      incrementUpdateCount(j);
+    }
+    nextStep();
+    
+    return logLikelihood;
+    
+  }
+  
+  /**
+   * Moves the step on once a record has been trained, the way calling close()
+   * after every record did, but without close()'s regularizeAll() over every
+   * column: the lazy prior catches a column up the next time it's trained,
+   * and one close() per superstep catches them all up before the model goes
+   * out.
+   */
+  public void endRecord() {
+    nextStep();
+  }
+  
+  @Override
+  public int getStep() {
+    return this.stepCounter.get();
+  }
+  
+  @Override
+  protected void nextStep() {
+    step = this.stepCounter.incrementAndGet();
+  }
+  
+  @Override
+  public void close() {
+    if (!isSealed()) {
+      // super.close() moves step on itself, then regularizes at getStep()
+      step = this.stepCounter.getAndIncrement();
+      super.close();
+    }
+  }
+  
+  /**
+   * Same as AbstractVectorClassifier.logLikelihood(), but from the
+   * (numCategories - 1) probabilities we already have. Optionally expands them
+   * into full like classifyFull().
+   */
+  private double logLikelihood(int actual, Vector p, Vector full) {
+    
+    double sum = p.zSum();
+    
+    if (null != full) {
+      full.setQuick(0, 1.0 - sum);
+      for (int i = 0; i < numCategories - 1; i++) {
+        full.setQuick(i + 1, p.getQuick(i));
+      }
+    }
+    
+    if (actual > 0) {
+      return Math.max(-100.0, Math.log(p.getQuick(actual - 1)));
+    } else {
+      return Math.max(-100.0, Math.log1p(-sum));
+    }
+    
+  }
+  
+  /**
+   * Same step as scoreAndTrain(), but works straight off the FlatDenseMatrix
+   * double[] and copies the instance into parallel index / value arrays once
+   * (or reads them in place for a PrimitiveSparseVector), so the inner loops have no Matrix/Vector dispatch or Element iterators.
+   * 
+   * Matches the generic path: the lazy prior is applied per non-zero (like
+   * regularize(), which only ever catches up row 0 since updateSteps is
+   * bumped on the first row), the gradient is target - link(beta * x), and
+   * every row of a touched column gets gradient[i] * rate * perTermRate * x.
+   */
+  protected double trainFlat(int actual, Vector instance, Vector probabilities) {
+    
+    unseal();
+    double learningRate = currentLearningRate();
+    
+    int rows = numCategories - 1;
+    double[] b = ((FlatDenseMatrix) beta).getValues();
+    
+    FlatScratch scratch = this.flatScratch.get();
+    if (scratch.scores.length != rows) {
+      scratch.scores = new double[rows];
+    }
+    double[] scores = scratch.scores;
+    
+    int[] idx;
+    double[] val;
+    int n;
+    
+    if (instance instanceof PrimitiveSparseVector) {
+      
+      // already in index / value arrays, read them in place
+      PrimitiveSparseVector sparse = (PrimitiveSparseVector) instance;
+      idx = sparse.getIndexes();
+      val = sparse.getValues();
+      n = sparse.getNumNondefaultElements();
+      
+    } else {
+      
+      // copy the non-zeros out once
+      int nnz = instance.getNumNondefaultElements();
+      if (scratch.indexes.length < nnz) {
+        scratch.indexes = new int[nnz];
+        scratch.values = new double[nnz];
+      }
+      idx = scratch.indexes;
+      val = scratch.values;
+      
+      n = 0;
+      Iterator<Vector.Element> nonZeros = instance.iterateNonZero();
+      while (nonZeros.hasNext()) {
+        Vector.Element e = nonZeros.next();
+        idx[n] = e.index();
+        val[n] = e.get();
+        n++;
+      }
+      
+    }
+    
+    if (null != this.gamma) {
+      for (int k = 0; k < n; k++) {
+        this.gamma.Track(idx[k], beta);
+      }
+    }
+    
+    // lazy regularization, as in regularize()
+    double lambda = getLambda();
+    int step = getStep();
+    for (int k = 0; k < n; k++) {
+      int j = idx[k];
+      double missingUpdates = step - updateSteps.getQuick(j);
+      if (missingUpdates > 0) {
+        double rate = lambda * learningRate * perTermRates[j];
+        int base = j * rows;
+        b[base] = prior.age(b[base], missingUpdates, rate);
+        updateSteps.setQuick(j, step);
+      }
+    }
+    
+    // scores = beta * x
+    for (int i = 0; i < rows; i++) {
+      scores[i] = 0;
+    }
+    for (int k = 0; k < n; k++) {
+      int base = idx[k] * rows;
+      double x = val[k];
+      for (int i = 0; i < rows; i++) {
+        scores[i] += b[base + i] * x;
+      }
+    }
+    
+    // link(), then gradient = target - p
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < rows; i++) {
+      max = Math.max(max, scores[i]);
+    }
+    double shift = max >= 40 ? max : 0;
+    double norm = 0;
+    for (int i = 0; i < rows; i++) {
+      scores[i] = Math.exp(scores[i] - shift);
+      norm += scores[i];
+    }
+    if (max < 40) {
+      norm += 1;
+    }
+    double sum = 0;
+    for (int i = 0; i < rows; i++) {
+      scores[i] = scores[i] / norm;
+      sum += scores[i];
+    }
+    
+    double logLikelihood;
+    if (actual > 0) {
+      logLikelihood = Math.max(-100.0, Math.log(scores[actual - 1]));
+    } else {
+      logLikelihood = Math.max(-100.0, Math.log1p(-sum));
+    }
+    if (null != probabilities) {
+      probabilities.setQuick(0, 1.0 - sum);
+      for (int i = 0; i < rows; i++) {
+        probabilities.setQuick(i + 1, scores[i]);
+      }
+    }
+    
+    // gradient = target - p
+    for (int i = 0; i < rows; i++) {
+      scores[i] = (i == actual - 1 ? 1.0 : 0.0) - scores[i];
+    }
+    
+    // one pass per non-zero over its column of beta
+    for (int k = 0; k < n; k++) {
+      int j = idx[k];
+      double scale = learningRate * perTermRates[j] * val[k];
+      int base = j * rows;
+      for (int i = 0; i < rows; i++) {
+        b[base + i] += scores[i] * scale;
+      }
+      updateSteps.setQuick(j, step);
+      incrementUpdateCount(j);
     }
     nextStep();
     
+    return logLikelihood;
+    
   }
   
   /**
@@ -297,9 +758,22 @@ public class ParallelOnlineLogisticRegression extends
     
   }
   
+  /**
+   * Replace the parameter vector with a copy of beta_mstr_cpy. If the shapes
+   * match we copy into the existing beta so we keep its storage precision.
+   */
   public void SetBeta(Matrix beta_mstr_cpy) {
     
-    this.beta = beta_mstr_cpy.clone();
+    if (this.beta.numRows() == beta_mstr_cpy.numRows()
+        && this.beta.numCols() == beta_mstr_cpy.numCols()) {
+      this.beta.assign(beta_mstr_cpy);
+    } else {
+      this.beta = beta_mstr_cpy.clone();
+    }
+    
+    if (null != this.optimizer) {
+      this.optimizer.Sync(this.beta);
+    }
     
   }
   
@@ -310,23 +784,74 @@ public class ParallelOnlineLogisticRegression extends
    */
   public void Debug_PrintGamma() {
     
+    if (null != this.gamma) {
+      System.out.println("# Debug_PrintGamma > Touched Columns: "
+          + this.gamma.size());
+    }
     System.out.println("# Debug_PrintGamma > Beta: ");
     Utils.PrintVectorSectionNonZero(this.noReallyGetBeta().viewRow(0), 10);
     
   }
   
   /**
-   * Reset all values in Gamma (gradient buffer) back to zero
+   * Reset Gamma (gradient buffer) so the next delta is relative to the current
+   * beta
    * 
    */
-/*  public void FlushGamma() {
+  public void FlushGamma() {
     
-    this.gamma.Reset();
+    if (null != this.gamma) {
+      this.gamma.Flush();
+    }
     
   }
   
-  public MultinomialLogisticRegressionParameterVectors getGamma() {
+  public SparseGradientBuffer getGamma() {
     return this.gamma;
   }
-*/  
+  
+  /**
+   * The columns trained on since the last call, found by comparing
+   * updateCounts against the caller's copy of them from getUpdateCounts(),
+   * which gets brought up to date
+   * 
+   * @return the changed columns, or null if lastCounts is missing or the
+   *         wrong size
+   */
+  public int[] getColumnsUpdatedSince(double[] lastCounts) {
+    
+    int numFeatures = updateCounts.size();
+    if (null == lastCounts || lastCounts.length != numFeatures) {
+      return null;
+    }
+    
+    int[] columns = new int[16];
+    int count = 0;
+    for (int j = 0; j < numFeatures; j++) {
+      double now = updateCounts.getQuick(j);
+      if (now != lastCounts[j]) {
+        if (count == columns.length) {
+          columns = Arrays.copyOf(columns, count * 2);
+        }
+        columns[count++] = j;
+        lastCounts[j] = now;
+      }
+    }
+    return Arrays.copyOf(columns, count);
+    
+  }
+  
+  /**
+   * A copy of updateCounts to pass to getColumnsUpdatedSince()
+   */
+  public double[] getUpdateCounts() {
+    
+    double[] counts = new double[updateCounts.size()];
+    for (int j = 0; j < counts.length; j++) {
+      counts[j] = updateCounts.getQuick(j);
+    }
+    return counts;
+    
+  }
+  
 }
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import java.util.Arrays;
+
+import org.apache.mahout.math.Matrix;
+
+/**
+ * The sparse gradient buffer ("gamma") for POLR
+ *
+ * Tracks which columns of beta a worker has touched since the last global
+ * sync. The first time a column is touched we snapshot its value, so the delta
+ * we ship to the master is just (beta - snapshot) over the touched columns.
+ * This also picks up any lazy regularization applied to those columns.
+ *
+ * Storage is a column -> slot index plus a packed snapshot block, so the cost
+ * scales with the number of active features rather than the full
+ * (numCategories - 1) x numFeatures matrix.
+ *
+ * @author jpatterson
+ *
+ */
+public class SparseGradientBuffer {
+
+  private static final int INITIAL_SLOTS = 1024;
+
+  private final int numRows;
+
+  // column -> slot, -1 if the column has not been touched since the last flush
+  private final int[] slots;
+
+  // slot -> column
+  private int[] columns;
+
+  // slot * numRows + row -> value of beta(row, column) at the last sync
+  private double[] snapshot;
+
+  private int size = 0;
+
+  public SparseGradientBuffer(int numCategories, int numFeatures) {
+
+    this.numRows = numCategories - 1;
+    this.slots = new int[numFeatures];
+    Arrays.fill(this.slots, -1);
+
+    this.columns = new int[INITIAL_SLOTS];
+    this.snapshot = new double[INITIAL_SLOTS * this.numRows];
+
+  }
+
+  /**
+   * Marks a column as touched, saving its current beta values if this is the
+   * first touch since the last flush. Must be called before beta(*, col) is
+   * modified.
+   *
+   * Safe to call from several training threads: the common already-tracked
+   * case doesn't lock, and a new column is only published in slots once its
+   * snapshot has been taken.
+   */
+  public void Track(int col, Matrix beta) {
+
+    if (this.slots[col] >= 0) {
+      return;
+    }
+
+    TrackNewColumn(col, beta);
+
+  }
+
+  private synchronized void TrackNewColumn(int col, Matrix beta) {
+
+    if (this.slots[col] >= 0) {
+      return;
+    }
+
+    if (this.size == this.columns.length) {
+      this.columns = Arrays.copyOf(this.columns, this.size * 2);
+      this.snapshot = Arrays.copyOf(this.snapshot, this.size * 2
+          * this.numRows);
+    }
+
+    int slot = this.size;
+    this.columns[slot] = col;
+
+    int base = slot * this.numRows;
+    for (int row = 0; row < this.numRows; row++) {
+      this.snapshot[base + row] = beta.getQuick(row, col);
+    }
+
+    this.size++;
+    this.slots[col] = slot;
+
+  }
+
+  public boolean isTracked(int col) {
+    return this.slots[col] >= 0;
+  }
+
+  /**
+   * @return the number of columns touched since the last flush
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return the touched columns, in ascending order
+   */
+  public int[] getColumns() {
+
+    int[] out = Arrays.copyOf(this.columns, this.size);
+    Arrays.sort(out);
+    return out;
+
+  }
+
+  /**
+   * Builds the compact delta matrix for the touched columns: entry (row, x) is
+   * beta(row, columns[x]) - snapshot, where columns is the output of
+   * getColumns(). The delta has the same storage precision as beta.
+   */
+  public Matrix getDelta(Matrix beta, int[] columns) {
+
+    Matrix delta = beta.like(this.numRows, columns.length);
+
+    for (int x = 0; x < columns.length; x++) {
+
+      int col = columns[x];
+      int base = this.slots[col] * this.numRows;
+
+      for (int row = 0; row < this.numRows; row++) {
+        delta.setQuick(row, x, beta.getQuick(row, col)
+            - this.snapshot[base + row]);
+      }
+
+    }
+
+    return delta;
+
+  }
+
+  /**
+   * Reset the buffer - called once the worker has taken on the new global
+   * parameter vector
+   */
+  public void Flush() {
+
+    for (int slot = 0; slot < this.size; slot++) {
+      this.slots[this.columns[slot]] = -1;
+    }
+    this.size = 0;
+
+  }
+
+}
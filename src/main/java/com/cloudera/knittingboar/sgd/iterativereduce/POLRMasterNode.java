@@ -19,9 +19,11 @@ package com.cloudera.knittingboar.sgd.iterativereduce;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,11 +31,15 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.classifier.sgd.L1;
 import org.apache.mahout.classifier.sgd.UniformPrior;
-import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
 
 //import com.cloudera.knittingboar.messages.GlobalParameterVectorUpdateMessage;
 //import com.cloudera.knittingboar.messages.GradientUpdateMessage;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.math.MatrixQuantizer;
+import com.cloudera.knittingboar.messages.iterativereduce.BlockCompressor;
 import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
 import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorUpdatable;
 import com.cloudera.knittingboar.records.CSVBasedDatasetRecordFactory;
 import com.cloudera.knittingboar.records.RCV1RecordFactory;
@@ -75,6 +81,27 @@ public class POLRMasterNode extends POLRNodeBase implements
   public POLRModelParameters polr_modelparams;
   private RecordFactory VectorFactory = null;
   
+  // merges the worker updates into the global beta
+  private ParameterVectorAverager averager = null;
+  
+  // last superstep's broadcast, serialized once for all the workers; its
+  // buffer is released once every worker has reported again
+  private ParameterVectorUpdatable LastBroadcast = null;
+  
+  // last superstep's worker messages, in the order compute() got them; each
+  // slot's next one is read into the same matrices
+  private List<ParameterVector> LastReceived = new ArrayList<ParameterVector>();
+  
+  // over the whole job: fetches of the broadcasts, how many of those were
+  // served without serializing, and the bytes sent
+  private long BroadcastsServed = 0;
+  private long BroadcastCacheHits = 0;
+  private long BroadcastBytesServed = 0;
+  
+  // QuantizeBits > 0: quantizes the broadcasts; the workers replace their
+  // model with each one, so there's no rounding error to carry over
+  private MatrixQuantizer BroadcastQuantizer = null;
+  
   @Override
   public ParameterVectorUpdatable compute(
       Collection<ParameterVectorUpdatable> workerUpdates,
@@ -82,14 +109,28 @@ public class POLRMasterNode extends POLRNodeBase implements
     
     System.out.println("\nMaster Compute: SuperStep - Worker Info ----- ");
     int x = 0;
+    
+    if (null != this.LastBroadcast) {
+      PrintBroadcastServed(this.LastBroadcast);
+      this.LastBroadcast.release();
+      this.LastBroadcast = null;
+    }
 
     // reset
     //this.Global_Min_IterationCount = this.NumberPasses;
     boolean iterationComplete = true;
-    this.global_parameter_vector.parameter_vector = new DenseMatrix(this.num_categories - 1, this.FeatureVectorSize);
+    
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
 
     for (ParameterVectorUpdatable i : workerUpdates) {
       
+      // no-op for the ones StreamingMerge already read and folded;
+      // decompressing counts in our totals
+      i.setCompressor(this.Compressor);
+      i.setSource("the update from worker " + x);
+      i.Decode((x < this.LastReceived.size()) ? this.LastReceived.get(x)
+          : null);
+      
       // not sure we still need this ---------------
       if (i.get().SrcWorkerPassCount > this.GlobalMaxPassCount) {
         
@@ -110,23 +151,43 @@ public class POLRMasterNode extends POLRNodeBase implements
           + i.get().AvgLogLikelihood + " PercentCorrect: "
           + i.get().PercentCorrect);
    
+      if (i.get().MetricsSamples > 0) {
+        System.out.println("[Master] WorkerReport[" + x + "]: sampled "
+            + i.get().MetricsSamples + " recs, AvgLogLikelihood: "
+            + i.get().AvgLogLikelihood + " +/- " + i.get().LogLikelihoodCI
+            + ", PercentCorrect: " + i.get().PercentCorrect + " +/- "
+            + i.get().PercentCorrectCI + " (95%)");
+      }
+   
       if ( i.get().IterationComplete == 1) {
         System.out.println( "> worker " + x + " is done with current iteration" );
       }
       x++;
-      // accumulate gradient of parameter vectors
-      //this.global_parameter_vector.AccumulateGradient(i.get().parameter_vector);
-      this.global_parameter_vector.AccumulateParameterVector(i.get().parameter_vector);
+      updates.add(i.get());
       
     }
+    this.LastReceived = new ArrayList<ParameterVector>(updates);
     
-    // now average the parameter vectors together
-    //this.global_parameter_vector.AverageAccumulations(workerUpdates.size());
-    this.global_parameter_vector.AverageParameterVectors(workerUpdates.size());
+    // now average the parameter vectors together (full betas and / or
+    // gradient deltas against the last global beta)
+    this.global_parameter_vector.parameter_vector = this.averager
+        .Merge(updates);
     
     LOG.debug("Master node accumulating and averaging " + workerUpdates.size()
         + " worker updates.");
     
+    PrintWorkerPhaseTimes(workerUpdates);
+    
+    if (null != this.Compressor) {
+      // running totals, the updates in and the broadcasts out
+      System.out.printf(
+          "[Master] Payloads (%s): %d -> %d bytes compressed, %.1f ms compressing, %.1f ms decompressing\n",
+          this.Compressor.getCodec(), this.Compressor.getRawBytes(),
+          this.Compressor.getCompressedBytes(),
+          this.Compressor.getCompressNanos() / 1.0e6,
+          this.Compressor.getDecompressNanos() / 1.0e6);
+    }
+    
     
     
     
@@ -140,15 +201,38 @@ public class POLRMasterNode extends POLRNodeBase implements
       gradient_msg.IterationComplete = 0;
     }
     */
-    gradient_msg.parameter_vector = this.global_parameter_vector.parameter_vector.clone();
+    if (this.FloatParameters) {
+      // we keep accumulating in double, only the broadcast copy is rounded
+      gradient_msg.parameter_vector = new FloatDenseMatrix(this.global_parameter_vector.parameter_vector);
+    } else {
+      // no copy, the averager leaves this buffer alone until after it's
+      // been sent
+      gradient_msg.parameter_vector = this.global_parameter_vector.parameter_vector;
+    }
     
     
     
-    ParameterVectorUpdatable return_msg = new ParameterVectorUpdatable();
-    return_msg.set(gradient_msg);
+    if (null != this.BroadcastQuantizer) {
+      // once per superstep, however many workers it's served to
+      Matrix global = this.global_parameter_vector.parameter_vector;
+      gradient_msg.quantized = this.BroadcastQuantizer.Quantize(global);
+      long raw = 8L * global.numRows() * global.numCols();
+      long quantized = gradient_msg.quantized.getPayloadBytes();
+      System.out.printf(
+          "[Master] Broadcast quantized to %d bits: %d -> %d bytes (%.1fx)\n",
+          this.BroadcastQuantizer.getBits(), raw, quantized, (double) raw
+              / quantized);
+    }
     
-    // set the master copy!
-    this.polr.SetBeta(this.global_parameter_vector.parameter_vector.clone());
+    // every worker's fetch gets the same serialized bytes
+    ParameterVectorUpdatable return_msg = ParameterVectorUpdatable
+        .Broadcast(gradient_msg);
+    return_msg.setCodec(this.Codec);
+    return_msg.setCompressor(this.Compressor);
+    this.LastBroadcast = return_msg;
+    
+    // the master copy (polr) only gets the global beta in complete(), when
+    // the model is saved
     
     // THIS NEEDS TO BE DONE, probably automated!
     workerUpdates.clear();
@@ -156,6 +240,97 @@ public class POLRMasterNode extends POLRNodeBase implements
     return return_msg;
   }
   
+  /**
+   * One line per worker with where its superstep went, from the phase timings
+   * the workers attach to their updates (POLRMetrics.PhaseReport()). The
+   * serialize and barrier times are the previous superstep's.
+   */
+  private void PrintWorkerPhaseTimes(
+      Collection<ParameterVectorUpdatable> workerUpdates) {
+    
+    boolean any = false;
+    for (ParameterVectorUpdatable i : workerUpdates) {
+      if (null != i.get().WorkerMetrics) {
+        any = true;
+      }
+    }
+    if (!any) {
+      return;
+    }
+    
+    System.out.printf("[Master] %-7s %10s %10s %9s %9s %9s %9s %9s %12s %12s\n",
+        "Worker", "Recs", "Recs/s", "Read ms", "Vec ms", "Train ms", "Ser ms",
+        "Wait ms", "Train p99 ns", "Bytes sent");
+    
+    int x = 0;
+    for (ParameterVectorUpdatable i : workerUpdates) {
+      
+      Map<String,Long> m = i.get().WorkerMetrics;
+      if (null != m) {
+        System.out.printf(
+            "[Master] %-7d %10d %10d %9d %9d %9d %9d %9d %12d %12d\n", x,
+            Metric(m, "records"), Metric(m, "records.per.sec"),
+            Metric(m, "read.ns") / 1000000,
+            Metric(m, "vectorize.ns") / 1000000,
+            Metric(m, "train.ns") / 1000000,
+            Metric(m, "serialize.ns") / 1000000,
+            Metric(m, "barrier.ns") / 1000000, Metric(m, "train.p99.ns"),
+            Metric(m, "bytes.sent"));
+      }
+      x++;
+      
+    }
+    
+    long raw = 0;
+    long quantized = 0;
+    for (ParameterVectorUpdatable i : workerUpdates) {
+      if (null != i.get().WorkerMetrics) {
+        raw += Metric(i.get().WorkerMetrics, "quantize.raw.bytes");
+        quantized += Metric(i.get().WorkerMetrics, "quantize.bytes");
+      }
+    }
+    if (quantized > 0) {
+      System.out.printf("[Master] Worker updates quantized: %d -> %d bytes "
+          + "(%.1fx)\n", raw, quantized, (double) raw / quantized);
+    }
+    
+  }
+  
+  /**
+   * How often last superstep's broadcast was fetched and how much of that
+   * came out of its serialize-once buffer, plus the totals for the job
+   */
+  private void PrintBroadcastServed(ParameterVectorUpdatable broadcast) {
+    
+    this.BroadcastsServed += broadcast.getServed();
+    this.BroadcastCacheHits += broadcast.getCacheHits();
+    this.BroadcastBytesServed += broadcast.getBytesServed();
+    
+    System.out.println("[Master] Broadcast served " + broadcast.getServed()
+        + " times (" + broadcast.getCacheHits() + " cache hits), "
+        + broadcast.getBytesServed() + " bytes; job total "
+        + this.BroadcastsServed + " (" + this.BroadcastCacheHits
+        + " hits), " + this.BroadcastBytesServed + " bytes");
+    
+  }
+  
+  public long getBroadcastsServed() {
+    return this.BroadcastsServed;
+  }
+  
+  public long getBroadcastCacheHits() {
+    return this.BroadcastCacheHits;
+  }
+  
+  public long getBroadcastBytesServed() {
+    return this.BroadcastBytesServed;
+  }
+  
+  private static long Metric(Map<String,Long> metrics, String name) {
+    Long value = metrics.get(name);
+    return (null == value) ? 0 : value.longValue();
+  }
+  
   @Override
   public ParameterVectorUpdatable getResults() {
     System.out.println(">>> getResults() - null!!!");
@@ -195,6 +370,52 @@ public class POLRMasterNode extends POLRNodeBase implements
       this.LearningRate = Double.parseDouble(this.conf.get(
           "com.cloudera.knittingboar.setup.LearningRate", "10"));
       
+      // store and ship the parameter vectors in single precision
+      this.FloatParameters = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.FloatParameters", false);
+      
+      // threads averaging the worker updates, 0 means one per core
+      this.MasterMergeThreads = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.MasterMergeThreads", 0);
+      
+      // fold each worker update into the running average as it arrives
+      this.StreamingMerge = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.StreamingMerge", false);
+      
+      // uniform (default), records (weighted by records trained) or
+      // coordinate (each coefficient over the workers that touched it)
+      this.ModelAveraging = this.conf.get(
+          "com.cloudera.knittingboar.setup.ModelAveraging",
+          ParameterVectorAverager.UNIFORM);
+      
+      // encode the messages straight into (direct) ByteBuffers
+      this.ByteBufferCodec = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.ByteBufferCodec", false);
+      this.DirectBuffers = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.DirectBuffers", false);
+      if (this.ByteBufferCodec) {
+        this.Codec = new ParameterVectorCodec(this.DirectBuffers);
+      }
+      
+      // block compress the payloads (none, deflate or lz); compressed ones
+      // are read whatever this is set to
+      this.PayloadCompression = this.conf.get(
+          "com.cloudera.knittingboar.setup.PayloadCompression",
+          BlockCompressor.NONE);
+      this.PayloadBlockSize = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.PayloadBlockSize",
+          BlockCompressor.DEFAULT_BLOCK_SIZE);
+      this.CompressionThreads = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.CompressionThreads", 0);
+      if (!BlockCompressor.NONE.equalsIgnoreCase(this.PayloadCompression)) {
+        this.Compressor = new BlockCompressor(this.PayloadCompression,
+            this.PayloadBlockSize, this.CompressionThreads);
+      }
+      
+      // broadcast the model quantized to 8 or 16 bits, 0 means full precision
+      this.QuantizeBits = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.QuantizeBits", 0);
+      
       // local input split path
       // this.LocalInputSplitPath = LoadStringConfVarOrException(
       // "com.cloudera.knittingboar.setup.LocalInputSplitPath",
@@ -318,11 +539,100 @@ public class POLRMasterNode extends POLRNodeBase implements
     
     this.polr = new ParallelOnlineLogisticRegression(this.num_categories,
         this.FeatureVectorSize, new UniformPrior()).alpha(1).stepOffset(1000)
-        .decayExponent(0.9).lambda(this.Lambda).learningRate(this.LearningRate);
+        .decayExponent(0.9).lambda(this.Lambda).learningRate(this.LearningRate)
+        .floatBeta(this.FloatParameters);
     
     polr_modelparams.setPOLR(polr);
     // this.bSetup = true;
     
+    if (!ParameterVectorAverager.UNIFORM.equals(this.ModelAveraging)
+        && !ParameterVectorAverager.RECORDS.equals(this.ModelAveraging)
+        && !ParameterVectorAverager.COORDINATE.equals(this.ModelAveraging)) {
+      System.err.println("POLRMasterNode: unknown model averaging '"
+          + this.ModelAveraging + "', using uniform");
+      this.ModelAveraging = ParameterVectorAverager.UNIFORM;
+    }
+    
+    this.averager = new ParameterVectorAverager(this.num_categories - 1,
+        this.FeatureVectorSize, this.MasterMergeThreads, this.ModelAveraging);
+    
+    if (this.StreamingMerge) {
+      StartStreamingMerge();
+    }
+    
+    if (8 == this.QuantizeBits || 16 == this.QuantizeBits) {
+      this.BroadcastQuantizer = new MatrixQuantizer(this.num_categories - 1,
+          this.FeatureVectorSize, this.QuantizeBits);
+    } else if (0 != this.QuantizeBits) {
+      System.err.println("POLRMasterNode: can't quantize to "
+          + this.QuantizeBits + " bits, sending full precision");
+    }
+    
+  }
+  
+  /**
+   * Has every worker update folded into the averager's running sum as soon as
+   * the master's RPC thread deserializes it (WorkerUpdate.fromBytes()), and
+   * its matrices dropped. By the time the last worker reports, compute() only
+   * has to add that one and finish the average.
+   */
+  private void StartStreamingMerge() {
+    WorkerUpdate.receiver = this;
+  }
+  
+  /**
+   * Folds a worker update that just arrived, see StartStreamingMerge()
+   */
+  void Arrived(ParameterVector msg) {
+    
+    try {
+      this.averager.Fold(msg);
+    } catch (IllegalArgumentException e) {
+      // left as it was, compute() reports it
+      e.printStackTrace();
+    }
+    
+  }
+  
+  /**
+   * What the master's service deserializes the worker updates into: main()
+   * hands this class to the ApplicationMaster, so only updates the master
+   * receives go past Arrived(), never the broadcasts a worker deserializes
+   * (which are plain ParameterVectorUpdatables, even in the same JVM).
+   * 
+   * The service creates these reflectively, so the master they report to is
+   * registered on the class; it's set by StartStreamingMerge() and cleared
+   * again in complete().
+   */
+  public static class WorkerUpdate extends ParameterVectorUpdatable {
+    
+    private static volatile POLRMasterNode receiver = null;
+    
+    public WorkerUpdate() {}
+    
+    @Override
+    public void fromBytes(ByteBuffer b) {
+      
+      super.fromBytes(b);
+      
+      POLRMasterNode master = receiver;
+      if (null != master) {
+        // decompressed in the master's totals
+        setCompressor(master.Compressor);
+        ParameterVector msg;
+        try {
+          msg = get();
+        } catch (IllegalStateException e) {
+          // not folded, compute() throws it again naming the worker
+          return;
+        }
+        if (null != msg) {
+          master.Arrived(msg);
+        }
+      }
+      
+    }
+    
   }
   
   @Override
@@ -333,6 +643,22 @@ public class POLRMasterNode extends POLRNodeBase implements
     
     LOG.debug("Master complete, saving model.");
     
+    if (null != this.global_parameter_vector.parameter_vector) {
+      this.polr.SetBeta(this.global_parameter_vector.parameter_vector);
+    }
+    this.averager.Shutdown();
+    if (null != this.LastBroadcast) {
+      PrintBroadcastServed(this.LastBroadcast);
+      this.LastBroadcast.release();
+      this.LastBroadcast = null;
+    }
+    if (null != this.Compressor) {
+      this.Compressor.Shutdown();
+    }
+    if (this == WorkerUpdate.receiver) {
+      WorkerUpdate.receiver = null;
+    }
+    
     try {
       this.polr_modelparams.saveTo(out);
     } catch (Exception ex) {
@@ -340,10 +666,12 @@ public class POLRMasterNode extends POLRNodeBase implements
     }
   }
   
+  @SuppressWarnings("unchecked")
   public static void main(String[] args) throws Exception {
     POLRMasterNode pmn = new POLRMasterNode();
+    // the worker updates come in as WorkerUpdates, see StartStreamingMerge()
     ApplicationMaster<ParameterVectorUpdatable> am = new ApplicationMaster<ParameterVectorUpdatable>(
-        pmn, ParameterVectorUpdatable.class);
+        pmn, (Class<ParameterVectorUpdatable>) (Class<?>) WorkerUpdate.class);
     
     ToolRunner.run(am, args);
   }
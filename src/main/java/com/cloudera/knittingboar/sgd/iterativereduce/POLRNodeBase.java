@@ -19,6 +19,10 @@ package com.cloudera.knittingboar.sgd.iterativereduce;
 
 import org.apache.hadoop.conf.Configuration;
 
+import com.cloudera.knittingboar.messages.iterativereduce.BlockCompressor;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
+import com.cloudera.knittingboar.sgd.POLROptimizer;
+
 /**
  * Base class for IR-KnittingBoar nodes
  * 
@@ -30,9 +34,48 @@ public class POLRNodeBase {
   protected Configuration conf = null;
   protected int num_categories = 2;
   protected int FeatureVectorSize = -1;
-//  protected int BatchSize = 200;
+  // records / milliseconds per superstep, 0 means the whole split
+  protected int BatchSize = 0;
+  protected long BatchTimeMS = 0;
   protected double Lambda = 1.0e-4;
   protected double LearningRate = 10;
+  protected boolean GradientDeltaUpdates = false;
+  protected boolean FloatParameters = false;
+  protected boolean FlatTrainingKernel = false;
+  protected int TrainingThreads = 1;
+  // vectorizer threads feeding the training thread, 0 = no pipeline
+  protected int VectorizerThreads = 0;
+  protected boolean PipelineOrdered = false;
+  // local disk cache of the vectorized split for passes after the first
+  protected boolean VectorCache = false;
+  protected String VectorCacheDir = "";
+  // or keep it in memory, shuffled every pass
+  protected boolean InMemoryDataset = false;
+  protected int InMemoryDatasetMaxMB = 0;
+  protected boolean InMemoryShuffle = true;
+  // score 1 in N records for the progress stats, 0 = moving averages over
+  // every record
+  protected int MetricsSampleRate = 0;
+  // master threads averaging the worker updates, 0 = one per core
+  protected int MasterMergeThreads = 0;
+  // fold worker updates into the average as they arrive
+  protected boolean StreamingMerge = false;
+  // how the master weights the worker updates, see ParameterVectorAverager
+  protected String ModelAveraging = ParameterVectorAverager.UNIFORM;
+  // messages through ParameterVectorCodec, into direct buffers or not
+  protected boolean ByteBufferCodec = false;
+  protected boolean DirectBuffers = false;
+  // what this node's messages are encoded with, null = Serialize()
+  protected ParameterVectorCodec Codec = null;
+  // quantize the models / updates sent to 8 or 16 bits, 0 = off
+  protected int QuantizeBits = 0;
+  // block compress the payloads: none, deflate or lz, see BlockCompressor
+  protected String PayloadCompression = BlockCompressor.NONE;
+  protected int PayloadBlockSize = BlockCompressor.DEFAULT_BLOCK_SIZE;
+  // (de)compression threads, 0 = one per core
+  protected int CompressionThreads = 0;
+  protected BlockCompressor Compressor = null;
+  protected String Optimizer = POLROptimizer.SGD;
   
   String LocalInputSplitPath = "";
   String PredictorLabelNames = "";
@@ -17,9 +17,14 @@
 
 package com.cloudera.knittingboar.sgd.iterativereduce;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,11 +34,19 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.classifier.sgd.L1;
 import org.apache.mahout.classifier.sgd.UniformPrior;
 import org.apache.mahout.math.DenseVector;
-import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.Vector;
 
+import com.cloudera.knittingboar.io.InMemoryCSRDataset;
+import com.cloudera.knittingboar.io.VectorizedRecordCache;
+import com.cloudera.knittingboar.io.VectorizedRecordStore;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.math.MatrixQuantizer;
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+import com.cloudera.knittingboar.messages.iterativereduce.BlockCompressor;
 import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
 
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
 import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorUpdatable;
 import com.cloudera.knittingboar.metrics.POLRMetrics;
 import com.cloudera.knittingboar.records.CSVBasedDatasetRecordFactory;
@@ -41,7 +54,10 @@ import com.cloudera.knittingboar.records.RCV1RecordFactory;
 import com.cloudera.knittingboar.records.RecordFactory;
 import com.cloudera.knittingboar.records.TwentyNewsgroupsRecordFactory;
 
+import com.cloudera.knittingboar.sgd.AdaGradOptimizer;
+import com.cloudera.knittingboar.sgd.FTRLProximalOptimizer;
 import com.cloudera.knittingboar.sgd.POLRModelParameters;
+import com.cloudera.knittingboar.sgd.POLROptimizer;
 import com.cloudera.knittingboar.sgd.ParallelOnlineLogisticRegression; //import com.cloudera.knittingboar.yarn.CompoundAdditionWorker;
 
 import com.cloudera.iterativereduce.ComputableWorker;
@@ -77,6 +93,29 @@ public class POLRWorkerNode extends POLRNodeBase implements
   private boolean IterationComplete = false;
   private int CurrentIteration = 0;
   
+  // records trained and start time of the current superstep
+  private int SuperstepRecords = 0;
+  private long SuperstepStartTime = 0;
+  private long SuperstepStartNanos = 0;
+  
+  // the last update we sent and when compute() handed it off, update() works
+  // out its serialize time and how long we waited on the other workers
+  private ParameterVector LastUpdate = null;
+  private long LastUpdateSentNanos = 0;
+  // and the message it went out in, holding any codec buffers
+  private ParameterVectorUpdatable LastSent = null;
+  
+  // the master's last broadcast, the next one is read into its matrices
+  private ParameterVector LastGlobal = null;
+  
+  // QuantizeBits > 0: quantizes our updates, carrying a gradient delta's
+  // rounding error over to the next delta (full betas are just rounded)
+  private MatrixQuantizer Quantizer = null;
+  
+  // ModelAveraging=coordinate with full betas: the POLR's update counts as of
+  // the last update, to find the columns trained since
+  private double[] ColumnUpdateCounts = null;
+  
   // basic stats tracking
   POLRMetrics metrics = new POLRMetrics();
   
@@ -86,6 +125,37 @@ public class POLRWorkerNode extends POLRNodeBase implements
   int[] bumps = new int[] {1, 2, 5};
   double lineCount = 0;
   
+  // per record class probabilities, reused across records
+  Vector probabilities = null;
+  
+  // the record's feature vector, cleared and refilled for each record
+  PrimitiveSparseVector instance = null;
+  
+  // lines a training thread takes from the parser at a time
+  private static final int LINES_PER_FETCH = 64;
+  
+  // one record factory per training thread when TrainingThreads > 1
+  private RecordFactory[] ThreadRecordFactories = null;
+  
+  // pipeline blocks per vectorizer thread, bounds how far the reader and
+  // vectorizers can run ahead of training
+  private static final int PIPELINE_BLOCKS_PER_VECTORIZER = 4;
+  
+  // the VectorizerThreads pipeline: blocks cycle free -> read -> vectorized
+  // -> trained -> free
+  private RecordFactory[] VectorizerRecordFactories = null;
+  private ArrayBlockingQueue<PipelineBlock> FreeBlocks = null;
+  private ArrayBlockingQueue<PipelineBlock> ReadBlocks = null;
+  private ArrayBlockingQueue<PipelineBlock> VectorizedBlocks = null;
+  
+  // the first pass writes the vectorized records here (local disk or memory),
+  // the later passes train straight off it instead of the text split
+  private volatile VectorizedRecordStore RecordCache = null;
+  private volatile boolean ReadingCache = false;
+  
+  // what a training thread gets from NextCachedRecord() when there's no record
+  private static final int NO_CACHED_RECORD = Integer.MIN_VALUE;
+  
   /**
    * Sends a full copy of the multinomial logistic regression array of parameter
    * vectors to the master - this method plugs the local parameter vector into
@@ -93,11 +163,41 @@ public class POLRWorkerNode extends POLRNodeBase implements
    */
   public ParameterVector GenerateUpdate() {
     
+    // the superstep's one regularizeAll(), training only moves the step on
+    this.polr.close();
+    
     ParameterVector gradient = new ParameterVector();
-    gradient.parameter_vector = this.polr.getBeta().clone(); // this.polr.getGamma().getMatrix().clone();
+    
+    if (this.GradientDeltaUpdates) {
+      
+      // only ship the columns we touched since the last global update
+      Matrix beta = this.polr.getBeta();
+      gradient.GradientDelta = 1;
+      gradient.gamma_columns = this.polr.getGamma().getColumns();
+      gradient.gamma = this.polr.getGamma().getDelta(beta,
+          gradient.gamma_columns);
+      if (this.FloatParameters && null != gradient.gamma) {
+        gradient.gamma = new FloatDenseMatrix(gradient.gamma);
+      }
+      
+    } else {
+      // trained in double, FloatParameters only rounds what goes out
+      Matrix beta = this.polr.getBeta();
+      gradient.parameter_vector = this.FloatParameters ? new FloatDenseMatrix(
+          beta) : beta.clone();
+      if (null != this.ColumnUpdateCounts) {
+        gradient.touched_columns = this.polr
+            .getColumnsUpdatedSince(this.ColumnUpdateCounts);
+      }
+    }
+    if (null != this.Quantizer) {
+      Quantize(gradient);
+    }
+    
     gradient.SrcWorkerPassCount = this.LocalBatchCountForIteration;
+    gradient.SuperstepRecords = this.SuperstepRecords;
     
-    if (this.lineParser.hasMoreRecords()) {
+    if (HasMoreRecords()) {
       gradient.IterationComplete = 0;
     } else {
       gradient.IterationComplete = 1;
@@ -112,10 +212,66 @@ public class POLRWorkerNode extends POLRNodeBase implements
     gradient.TrainedRecords = (new Long(metrics.TotalRecordsProcessed))
         .intValue();
     
+    if (metrics.IsSampling()) {
+      // progressive validation over this superstep's sampled records
+      gradient.MetricsSamples = (int) metrics.SampledCorrect.getCount();
+      gradient.AvgLogLikelihood = (float) metrics.SampledLogLikelihood
+          .getMean();
+      gradient.LogLikelihoodCI = (float) metrics.SampledLogLikelihood
+          .getConfidenceInterval95();
+      gradient.PercentCorrect = (float) (metrics.SampledCorrect.getMean() * 100);
+      gradient.PercentCorrectCI = (float) (metrics.SampledCorrect
+          .getConfidenceInterval95() * 100);
+      metrics.ResetSamples();
+    }
+    
+    // this superstep's phase timings go along with the update
+    metrics.SuperstepRecords = this.SuperstepRecords;
+    metrics.SuperstepNanos = System.nanoTime() - this.SuperstepStartNanos;
+    gradient.WorkerMetrics = metrics.PhaseReport();
+    metrics.ResetPhaseTimes();
+    
+    this.LastUpdate = gradient;
+    this.LastUpdateSentNanos = System.nanoTime();
+    
     return gradient;
     
   }
   
+  /**
+   * Attaches the quantized copy of the update's matrix that goes out instead
+   * of it
+   */
+  private void Quantize(ParameterVector gradient) {
+    
+    long raw = this.Quantizer.getRawBytes();
+    long quantized = this.Quantizer.getQuantizedBytes();
+    
+    if (gradient.GradientDelta == 1) {
+      if (gradient.gamma_columns.length > 0) {
+        gradient.quantized = this.Quantizer.Quantize(gradient.gamma,
+            gradient.gamma_columns);
+      }
+    } else {
+      gradient.quantized = this.Quantizer.Quantize(gradient.parameter_vector);
+    }
+    
+    metrics.QuantizedRawBytes += this.Quantizer.getRawBytes() - raw;
+    metrics.QuantizedBytes += this.Quantizer.getQuantizedBytes() - quantized;
+    
+  }
+  
+  /**
+   * Wraps GenerateUpdate() for compute(), keeping the message so update() can
+   * give its encoded buffers back once the master has it
+   */
+  private ParameterVectorUpdatable SendUpdate() {
+    this.LastSent = new ParameterVectorUpdatable(this.GenerateUpdate());
+    this.LastSent.setCodec(this.Codec);
+    this.LastSent.setCompressor(this.Compressor);
+    return this.LastSent;
+  }
+  
   /**
    * The IR::Compute method - this is where we do the next batch of records for
    * SGD
@@ -123,8 +279,29 @@ public class POLRWorkerNode extends POLRNodeBase implements
   @Override
   public ParameterVectorUpdatable compute() {
     
+    StartSuperstep();
+    
+    if ((this.VectorCache || this.InMemoryDataset)
+        && 0 == this.CurrentIteration && null == this.RecordCache) {
+      StartRecordCache();
+    }
+    
+    if (this.TrainingThreads > 1) {
+      TrainMultiThreaded();
+      return SendUpdate();
+    }
+    
+    if (this.ReadingCache) {
+      TrainFromCache();
+      return SendUpdate();
+    }
+    
+    if (this.VectorizerThreads > 0) {
+      TrainPipelined();
+      return SendUpdate();
+    }
+    
     Text value = new Text();
-    long batch_vec_factory_time = 0;
     
     boolean result = true;
     //boolean processBatch = false;
@@ -149,8 +326,9 @@ public class POLRWorkerNode extends POLRNodeBase implements
   
 //    if (this.lineParser.hasMoreRecords()) {
       //for (int x = 0; x < this.BatchSize; x++) {
-    while (this.lineParser.hasMoreRecords()) {
+    while (this.lineParser.hasMoreRecords() && !SuperstepBudgetSpent()) {
         
+        long readStart = System.nanoTime();
         try {
           result = this.lineParser.next(value);
         } catch (IOException e1) {
@@ -160,9 +338,11 @@ public class POLRWorkerNode extends POLRNodeBase implements
         
         if (result) {
           
-          long startTime = System.currentTimeMillis();
+          long startTime = System.nanoTime();
+          metrics.AddPhaseTime(POLRMetrics.PHASE_READ, startTime - readStart);
           
-          Vector v = new RandomAccessSparseVector(this.FeatureVectorSize);
+          PrimitiveSparseVector v = this.instance;
+          v.clear();
           int actual = -1;
           try {
             
@@ -172,32 +352,12 @@ public class POLRWorkerNode extends POLRNodeBase implements
             e.printStackTrace();
           }
           
-          long endTime = System.currentTimeMillis();
-          
-          batch_vec_factory_time += (endTime - startTime);
-          
-          // calc stats ---------
-          
-          double mu = Math.min(k + 1, 200);
-          double ll = this.polr.logLikelihood(actual, v);
+          metrics.AddPhaseTime(POLRMetrics.PHASE_VECTORIZE, System.nanoTime()
+              - startTime);
           
-          metrics.AvgLogLikelihood = metrics.AvgLogLikelihood
-              + (ll - metrics.AvgLogLikelihood) / mu;
-          
-          if (Double.isNaN(metrics.AvgLogLikelihood)) {
-            metrics.AvgLogLikelihood = 0;
-          }
-          
-          Vector p = new DenseVector(this.num_categories);
-          this.polr.classifyFull(p, v);
-          int estimated = p.maxValueIndex();
-          int correct = (estimated == actual ? 1 : 0);
-          metrics.AvgCorrect = metrics.AvgCorrect
-              + (correct - metrics.AvgCorrect) / mu;
-          this.polr.train(actual, v);
-          
-          k++;
-          metrics.TotalRecordsProcessed = k;
+          CacheRecord(actual, v);
+          TrainRecord(actual, v);
+          this.SuperstepRecords++;
 //          if (x == this.BatchSize - 1) {
             
 /*            System.err
@@ -208,8 +368,6 @@ public class POLRWorkerNode extends POLRNodeBase implements
   */          
 //          }
           
-          this.polr.close();
-          
         } else {
           
 //          this.LocalBatchCountForIteration++;
@@ -225,7 +383,7 @@ public class POLRWorkerNode extends POLRNodeBase implements
     .printf(
         "Worker %s:\t Iteration: %s, Trained Recs: %10d, AvgLL: %10.3f, Percent Correct: %10.2f, VF: %d\n",
         this.internalID, this.CurrentIteration, k, metrics.AvgLogLikelihood,
-        metrics.AvgCorrect * 100, batch_vec_factory_time);
+        metrics.AvgCorrect * 100, VectorizeMillis());
     
     
     
@@ -238,11 +396,782 @@ public class POLRWorkerNode extends POLRNodeBase implements
       
     } // if 
   */  
-    return new ParameterVectorUpdatable(this.GenerateUpdate());
+    return SendUpdate();
+  }
+  
+  /**
+   * Trains one record on this thread's POLR and folds it into the running
+   * stats. Allocates nothing on the flat kernel, GenerateUpdate() does the
+   * superstep's regularization.
+   */
+  void TrainRecord(int actual, Vector v) {
+    
+    long startTime = System.nanoTime();
+    
+    if (metrics.IsSampling()) {
+      
+      // only the sampled records need the full probabilities and stats
+      boolean sample = metrics.TakeSample();
+      double ll = this.polr.scoreAndTrain(actual, v,
+          sample ? this.probabilities : null);
+      if (sample) {
+        metrics.AddSample(ll, MaxIndex(this.probabilities) == actual);
+        metrics.AvgLogLikelihood = metrics.SampledLogLikelihood.getMean();
+        metrics.AvgCorrect = metrics.SampledCorrect.getMean();
+      }
+      
+    } else {
+      
+      // calc stats ---------
+      
+      double mu = Math.min(k + 1, 200);
+      
+      // one classify pass for the stats and the update
+      double ll = this.polr.scoreAndTrain(actual, v, this.probabilities);
+      
+      metrics.AvgLogLikelihood = metrics.AvgLogLikelihood
+          + (ll - metrics.AvgLogLikelihood) / mu;
+      
+      if (Double.isNaN(metrics.AvgLogLikelihood)) {
+        metrics.AvgLogLikelihood = 0;
+      }
+      
+      int estimated = MaxIndex(this.probabilities);
+      int correct = (estimated == actual ? 1 : 0);
+      metrics.AvgCorrect = metrics.AvgCorrect
+          + (correct - metrics.AvgCorrect) / mu;
+      
+    }
+    
+    k++;
+    metrics.TotalRecordsProcessed = k;
+    
+    this.polr.endRecord();
+    
+    metrics.AddPhaseTime(POLRMetrics.PHASE_TRAIN, System.nanoTime()
+        - startTime);
+    
+  }
+  
+  /**
+   * Vector.maxValueIndex() without the iterator it allocates
+   */
+  private static int MaxIndex(Vector p) {
+    
+    int max = 0;
+    for (int x = 1; x < p.size(); x++) {
+      if (p.getQuick(x) > p.getQuick(max)) {
+        max = x;
+      }
+    }
+    return max;
+    
+  }
+  
+  private long MetricsSampleSeed() {
+    return 31L * this.internalID.hashCode() + 5;
+  }
+  
+  /**
+   * @return the vectorize time so far this superstep, for the "VF" printouts
+   */
+  private long VectorizeMillis() {
+    return metrics.PhaseNanos[POLRMetrics.PHASE_VECTORIZE] / 1000000;
+  }
+  
+  /**
+   * compute() loop for the passes after the first when VectorCache or
+   * InMemoryDataset is on: the records come straight out of the cache, no
+   * parsing or vectorizing
+   */
+  private void TrainFromCache() {
+    
+    PrimitiveSparseVector v = this.instance;
+    
+    while (HasMoreRecords() && !SuperstepBudgetSpent()) {
+      
+      long readStart = System.nanoTime();
+      int actual = NextCachedRecord(v);
+      if (NO_CACHED_RECORD == actual) {
+        break;
+      }
+      metrics.AddPhaseTime(POLRMetrics.PHASE_READ, System.nanoTime()
+          - readStart);
+      TrainRecord(actual, v);
+      
+    }
+    
+    System.err
+    .printf(
+        "Worker %s:\t Iteration: %s, Trained Recs: %10d, AvgLL: %10.3f, Percent Correct: %10.2f, [cached]\n",
+        this.internalID, this.CurrentIteration, k, metrics.AvgLogLikelihood,
+        metrics.AvgCorrect * 100);
+    
+  }
+  
+  /**
+   * @return whether the current pass has records left, from the cache or the
+   *         text split
+   */
+  private boolean HasMoreRecords() {
+    
+    if (this.ReadingCache) {
+      return this.RecordCache.HasNext();
+    }
+    return this.lineParser.hasMoreRecords();
+    
+  }
+  
+  /**
+   * Loads the next cached record into v, within the superstep budget - safe to
+   * call from several training threads
+   * 
+   * @return the record's label, or NO_CACHED_RECORD once the pass or superstep
+   *         is done
+   */
+  private int NextCachedRecord(PrimitiveSparseVector v) {
+    
+    VectorizedRecordStore cache = this.RecordCache;
+    if (null == cache) {
+      return NO_CACHED_RECORD;
+    }
+    
+    synchronized (cache) {
+      
+      if (!this.ReadingCache || !cache.HasNext() || SuperstepBudgetSpent()) {
+        return NO_CACHED_RECORD;
+      }
+      
+      try {
+        int actual = cache.Next(v);
+        this.SuperstepRecords++;
+        return actual;
+      } catch (IOException e) {
+        // the rest of this pass comes from the text split
+        e.printStackTrace();
+        DropRecordCache();
+        return NO_CACHED_RECORD;
+      }
+      
+    }
+    
+  }
+  
+  /**
+   * Sets up the in memory dataset, or a new cache file, for the first pass to
+   * write to
+   */
+  private void StartRecordCache() {
+    
+    if (this.InMemoryDataset) {
+      
+      long maxBytes = this.InMemoryDatasetMaxMB * 1024L * 1024L;
+      if (maxBytes <= 0) {
+        maxBytes = Runtime.getRuntime().maxMemory() / 4;
+      }
+      this.RecordCache = new InMemoryCSRDataset(maxBytes,
+          this.InMemoryShuffle, 31L * this.internalID.hashCode() + 17);
+      return;
+      
+    }
+    
+    try {
+      
+      File f = File.createTempFile("kb-vectors-" + this.internalID + "-",
+          ".bin", new File(this.VectorCacheDir));
+      f.deleteOnExit();
+      
+      VectorizedRecordCache cache = new VectorizedRecordCache(f,
+          RecordCacheKey());
+      this.RecordCache = cache;
+      cache.BeginWrite();
+      
+    } catch (IOException e) {
+      System.err.println("POLRWorkerNode: could not create the vector cache"
+          + " in " + this.VectorCacheDir + ", every pass will parse the text");
+      e.printStackTrace();
+      DropRecordCache();
+      this.VectorCache = false;
+    }
+    
+  }
+  
+  /**
+   * Adds a record to the cache during the first pass
+   */
+  private void CacheRecord(int actual, PrimitiveSparseVector v) {
+    
+    VectorizedRecordStore cache = this.RecordCache;
+    if (null == cache || this.ReadingCache) {
+      return;
+    }
+    
+    try {
+      cache.Append(actual, v);
+    } catch (IOException e) {
+      e.printStackTrace();
+      synchronized (cache) {
+        DropRecordCache();
+      }
+    }
+    
+  }
+  
+  /**
+   * At the end of a pass: the first one finishes writing the cache and opens
+   * it for reading, the later ones just go back to its start (reshuffled, for
+   * the in memory dataset). Any problem drops the cache and the next pass
+   * reads the text again.
+   */
+  private void RewindRecordCache() {
+    
+    try {
+      
+      if (this.ReadingCache) {
+        this.RecordCache.Reset();
+      } else {
+        this.RecordCache.StartReading();
+        this.ReadingCache = true;
+        System.out.println("POLRWorkerNode: cached "
+            + this.RecordCache.getRecordCount() + " vectorized records ("
+            + this.RecordCache.getClass().getSimpleName() + ")");
+      }
+      
+    } catch (IOException e) {
+      e.printStackTrace();
+      DropRecordCache();
+    }
+    
+    if (this.CurrentIteration >= this.NumberIterations) {
+      // no more passes to use it for
+      DropRecordCache();
+    }
+    
+  }
+  
+  /**
+   * Gives up on the cache and goes back to parsing the text split
+   */
+  private void DropRecordCache() {
+    
+    if (null != this.RecordCache) {
+      this.RecordCache.Delete();
+    }
+    this.RecordCache = null;
+    this.ReadingCache = false;
+    
+  }
+  
+  /**
+   * Identifies the records in the cache: the worker and every setting that
+   * changes how its lines get vectorized. The cache file is this run's own
+   * temp file, deleted after the last pass (or on exit), so the key only has
+   * to tie it to the settings that wrote it, and stays the same from run to
+   * run.
+   */
+  private String RecordCacheKey() {
+    
+    return "worker=" + this.internalID
+        + ";factory=" + this.RecordFactoryClassname + ";features="
+        + this.FeatureVectorSize + ";categories=" + this.num_categories
+        + ";predictors=" + this.PredictorLabelNames + ";types="
+        + this.PredictorVariableTypes + ";target=" + this.TargetVariableName
+        + ";columns=" + this.ColumnHeaderNames;
+    
+  }
+  
+  /**
+   * Resets the mini batch budget at the start of compute()
+   */
+  private void StartSuperstep() {
+    
+    this.SuperstepRecords = 0;
+    this.SuperstepStartTime = System.currentTimeMillis();
+    this.SuperstepStartNanos = System.nanoTime();
+    this.LocalBatchCountForIteration++;
+    
+  }
+  
+  /**
+   * @return true once this superstep has used up its BatchSize records or
+   *         BatchTimeMS milliseconds (0 means no limit), at which point
+   *         compute() sends its update to the master even if the split isn't
+   *         done yet
+   */
+  private boolean SuperstepBudgetSpent() {
+    
+    if (this.BatchSize > 0 && this.SuperstepRecords >= this.BatchSize) {
+      return true;
+    }
+    
+    if (this.BatchTimeMS > 0
+        && System.currentTimeMillis() - this.SuperstepStartTime >= this.BatchTimeMS) {
+      return true;
+    }
+    
+    return false;
+    
+  }
+  
+  /**
+   * Multi-threaded version of the compute() loop: TrainingThreads threads pull
+   * blocks of lines off the shared record parser (so each thread works a
+   * disjoint part of the split) and all train the one shared POLR without
+   * locking beta, Hogwild style. On sparse text two threads rarely touch the
+   * same column at once, so the occasional lost update doesn't matter. The
+   * step is shared and atomic, so the learning rate anneals per record just
+   * like the single threaded loop.
+   * 
+   * As in the single threaded loop the POLR isn't closed per record - that
+   * regularizes every column, which would stomp on the other threads'
+   * updates - GenerateUpdate() closes it once at the end of the superstep.
+   */
+  private void TrainMultiThreaded() {
+    
+    TrainingThread[] threads = new TrainingThread[this.TrainingThreads];
+    for (int x = 0; x < threads.length; x++) {
+      threads[x] = new TrainingThread(this.ThreadRecordFactories[x], x);
+      threads[x].start();
+    }
+    
+    long total = 0;
+    double sumLogLikelihood = 0;
+    double sumCorrect = 0;
+    
+    for (int x = 0; x < threads.length; x++) {
+      
+      try {
+        threads[x].join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        e.printStackTrace();
+      }
+      
+      total += threads[x].records;
+      sumLogLikelihood += threads[x].avgLogLikelihood * threads[x].records;
+      sumCorrect += threads[x].avgCorrect * threads[x].records;
+      metrics.MergePhaseTimes(threads[x].timings);
+      metrics.MergeSamples(threads[x].timings);
+      
+    }
+    
+    if (metrics.IsSampling()) {
+      metrics.AvgLogLikelihood = metrics.SampledLogLikelihood.getMean();
+      metrics.AvgCorrect = metrics.SampledCorrect.getMean();
+    } else if (total > 0) {
+      metrics.AvgLogLikelihood = sumLogLikelihood / total;
+      metrics.AvgCorrect = sumCorrect / total;
+    }
+    if (Double.isNaN(metrics.AvgLogLikelihood)) {
+      metrics.AvgLogLikelihood = 0;
+    }
+    
+    k += total;
+    metrics.TotalRecordsProcessed = k;
+    
+    System.err
+    .printf(
+        "Worker %s:\t Iteration: %s, Trained Recs: %10d, AvgLL: %10.3f, Percent Correct: %10.2f, VF: %d, Threads: %d\n",
+        this.internalID, this.CurrentIteration, k, metrics.AvgLogLikelihood,
+        metrics.AvgCorrect * 100, VectorizeMillis(), threads.length);
+    
+  }
+  
+  /**
+   * Hands the next block of lines from the split to a training thread
+   * 
+   * @return false once the split is exhausted
+   */
+  private boolean NextLines(List<String> lines) {
+    
+    lines.clear();
+    Text value = new Text();
+    
+    synchronized (this.lineParser) {
+      
+      try {
+        while (lines.size() < LINES_PER_FETCH
+            && this.lineParser.hasMoreRecords() && !SuperstepBudgetSpent()) {
+          if (this.lineParser.next(value)) {
+            lines.add(value.toString());
+            this.SuperstepRecords++;
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      
+    }
+    
+    return !lines.isEmpty();
+    
+  }
+  
+  /**
+   * One Hogwild training thread - own record factory and stats, shared POLR
+   */
+  private class TrainingThread extends Thread {
+    
+    private final RecordFactory factory;
+    private final Vector probabilities = new DenseVector(num_categories);
+    private final PrimitiveSparseVector instance = new PrimitiveSparseVector(
+        FeatureVectorSize);
+    
+    long records = 0;
+    // this thread's phase timings, merged into metrics after the join
+    final POLRMetrics timings = new POLRMetrics();
+    double avgLogLikelihood = metrics.AvgLogLikelihood;
+    double avgCorrect = metrics.AvgCorrect;
+    
+    TrainingThread(RecordFactory factory, int thread) {
+      super("POLRWorkerNode-" + internalID + "-train");
+      this.factory = factory;
+      this.timings.SetSampleRate(MetricsSampleRate, MetricsSampleSeed()
+          + thread + 1);
+    }
+    
+    @Override
+    public void run() {
+      
+      if (ReadingCache) {
+        
+        int actual;
+        long readStart = System.nanoTime();
+        while (NO_CACHED_RECORD != (actual = NextCachedRecord(this.instance))) {
+          this.timings.AddPhaseTime(POLRMetrics.PHASE_READ, System.nanoTime()
+              - readStart);
+          Train(actual, this.instance);
+          readStart = System.nanoTime();
+        }
+        return;
+        
+      }
+      
+      List<String> lines = new ArrayList<String>(LINES_PER_FETCH);
+      
+      long readStart = System.nanoTime();
+      while (NextLines(lines)) {
+        
+        // one read event per block of lines, lock wait included
+        this.timings.AddPhaseTime(POLRMetrics.PHASE_READ, System.nanoTime()
+            - readStart);
+        
+        for (String line : lines) {
+          
+          long startTime = System.nanoTime();
+          
+          PrimitiveSparseVector v = this.instance;
+          v.clear();
+          int actual = -1;
+          try {
+            actual = this.factory.processLine(line, v);
+          } catch (Exception e) {
+            e.printStackTrace();
+            continue;
+          }
+          
+          this.timings.AddPhaseTime(POLRMetrics.PHASE_VECTORIZE,
+              System.nanoTime() - startTime);
+          
+          CacheRecord(actual, v);
+          Train(actual, v);
+          
+        }
+        
+        readStart = System.nanoTime();
+        
+      }
+      
+    }
+    
+    private void Train(int actual, Vector v) {
+      
+      long startTime = System.nanoTime();
+      
+      if (this.timings.IsSampling()) {
+        
+        boolean sample = this.timings.TakeSample();
+        double ll = polr.scoreAndTrain(actual, v, sample ? this.probabilities
+            : null);
+        if (sample) {
+          this.timings.AddSample(ll,
+              MaxIndex(this.probabilities) == actual);
+        }
+        polr.endRecord();
+        this.records++;
+        this.timings.AddPhaseTime(POLRMetrics.PHASE_TRAIN, System.nanoTime()
+            - startTime);
+        return;
+        
+      }
+      
+      double mu = Math.min(k + this.records + 1, 200);
+      double ll = polr.scoreAndTrain(actual, v, this.probabilities);
+      
+      this.avgLogLikelihood = this.avgLogLikelihood
+          + (ll - this.avgLogLikelihood) / mu;
+      
+      int correct = (MaxIndex(this.probabilities) == actual ? 1 : 0);
+      this.avgCorrect = this.avgCorrect + (correct - this.avgCorrect) / mu;
+      
+      polr.endRecord();
+      this.records++;
+      
+      this.timings.AddPhaseTime(POLRMetrics.PHASE_TRAIN, System.nanoTime()
+          - startTime);
+      
+    }
+    
+  }
+  
+  /**
+   * Pipelined version of the compute() loop: a reader thread pulls blocks of
+   * lines off the record parser, VectorizerThreads threads run them through
+   * their own RecordFactory, and this thread only trains. The stages hand
+   * blocks over bounded queues, and the blocks (with their reused
+   * PrimitiveSparseVectors) come back to the reader once trained, so a slow
+   * trainer backs up the reader instead of piling up records.
+   * 
+   * With PipelineOrdered the blocks are trained in split order, so the model
+   * comes out the same as the single threaded loop's; otherwise they're
+   * trained in whatever order the vectorizers finish them.
+   */
+  private void TrainPipelined() {
+    
+    PipelineReader reader = new PipelineReader();
+    Vectorizer[] vectorizers = new Vectorizer[this.VectorizerThreads];
+    
+    reader.start();
+    for (int x = 0; x < vectorizers.length; x++) {
+      vectorizers[x] = new Vectorizer(this.VectorizerRecordFactories[x]);
+      vectorizers[x].start();
+    }
+    
+    // blocks that showed up ahead of their turn, PipelineOrdered only
+    Map<Long,PipelineBlock> early = new HashMap<Long,PipelineBlock>();
+    long nextSeq = 0;
+    int finished = 0;
+    
+    try {
+      
+      while (finished < vectorizers.length) {
+        
+        PipelineBlock block = this.VectorizedBlocks.take();
+        
+        if (PipelineBlock.END == block) {
+          finished++;
+        } else if (!this.PipelineOrdered) {
+          TrainBlock(block);
+        } else {
+          early.put(block.seq, block);
+          while (null != (block = early.remove(nextSeq))) {
+            TrainBlock(block);
+            nextSeq++;
+          }
+        }
+        
+      }
+      
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      e.printStackTrace();
+      reader.interrupt();
+      for (int x = 0; x < vectorizers.length; x++) {
+        vectorizers[x].interrupt();
+      }
+    }
+    
+    try {
+      reader.join();
+      metrics.MergePhaseTimes(reader.timings);
+      for (int x = 0; x < vectorizers.length; x++) {
+        vectorizers[x].join();
+        metrics.MergePhaseTimes(vectorizers[x].timings);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      e.printStackTrace();
+    }
+    
+    System.err
+    .printf(
+        "Worker %s:\t Iteration: %s, Trained Recs: %10d, AvgLL: %10.3f, Percent Correct: %10.2f, VF: %d, Vectorizers: %d\n",
+        this.internalID, this.CurrentIteration, k, metrics.AvgLogLikelihood,
+        metrics.AvgCorrect * 100, VectorizeMillis(), vectorizers.length);
+    
+  }
+  
+  /**
+   * Trains a vectorized block and hands it back to the reader
+   */
+  private void TrainBlock(PipelineBlock block) throws InterruptedException {
+    
+    for (int x = 0; x < block.count; x++) {
+      if (block.actuals[x] >= 0) {
+        CacheRecord(block.actuals[x], block.vectors[x]);
+        TrainRecord(block.actuals[x], block.vectors[x]);
+      }
+    }
+    this.FreeBlocks.put(block);
+    
+  }
+  
+  /**
+   * A block of lines and their vectors, passed between the pipeline stages
+   */
+  private static class PipelineBlock {
+    
+    // tells a vectorizer (and then the trainer) the split is done
+    static final PipelineBlock END = new PipelineBlock();
+    
+    final String[] lines;
+    final PrimitiveSparseVector[] vectors;
+    final int[] actuals;
+    int count = 0;
+    long seq = 0;
+    
+    private PipelineBlock() {
+      this.lines = null;
+      this.vectors = null;
+      this.actuals = null;
+    }
+    
+    PipelineBlock(int featureVectorSize) {
+      this.lines = new String[LINES_PER_FETCH];
+      this.vectors = new PrimitiveSparseVector[LINES_PER_FETCH];
+      this.actuals = new int[LINES_PER_FETCH];
+      for (int x = 0; x < LINES_PER_FETCH; x++) {
+        this.vectors[x] = new PrimitiveSparseVector(featureVectorSize);
+      }
+    }
+    
+  }
+  
+  /**
+   * Pipeline stage 1: fills free blocks with lines from the split, within the
+   * superstep budget, then tells each vectorizer it's done
+   */
+  private class PipelineReader extends Thread {
+    
+    final POLRMetrics timings = new POLRMetrics();
+    
+    PipelineReader() {
+      super("POLRWorkerNode-" + internalID + "-read");
+    }
+    
+    @Override
+    public void run() {
+      
+      Text value = new Text();
+      long seq = 0;
+      
+      try {
+        
+        while (true) {
+          
+          PipelineBlock block = FreeBlocks.take();
+          block.count = 0;
+          
+          while (block.count < LINES_PER_FETCH && lineParser.hasMoreRecords()
+              && !SuperstepBudgetSpent()) {
+            long readStart = System.nanoTime();
+            if (lineParser.next(value)) {
+              block.lines[block.count++] = value.toString();
+              SuperstepRecords++;
+              this.timings.AddPhaseTime(POLRMetrics.PHASE_READ,
+                  System.nanoTime() - readStart);
+            }
+          }
+          
+          if (0 == block.count) {
+            FreeBlocks.put(block);
+            break;
+          }
+          
+          block.seq = seq++;
+          ReadBlocks.put(block);
+          
+        }
+        
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        // the queue has a spare slot per vectorizer for these
+        for (int x = 0; x < VectorizerThreads; x++) {
+          ReadBlocks.offer(PipelineBlock.END);
+        }
+      }
+      
+    }
+    
+  }
+  
+  /**
+   * Pipeline stage 2: turns a block of lines into vectors with its own
+   * RecordFactory
+   */
+  private class Vectorizer extends Thread {
+    
+    private final RecordFactory factory;
+    
+    final POLRMetrics timings = new POLRMetrics();
+    
+    Vectorizer(RecordFactory factory) {
+      super("POLRWorkerNode-" + internalID + "-vectorize");
+      this.factory = factory;
+    }
+    
+    @Override
+    public void run() {
+      
+      try {
+        
+        while (true) {
+          
+          PipelineBlock block = ReadBlocks.take();
+          if (PipelineBlock.END == block) {
+            break;
+          }
+          
+          for (int x = 0; x < block.count; x++) {
+            
+            long startTime = System.nanoTime();
+            block.vectors[x].clear();
+            try {
+              block.actuals[x] = this.factory.processLine(block.lines[x],
+                  block.vectors[x]);
+            } catch (Exception e) {
+              e.printStackTrace();
+              block.actuals[x] = -1;
+            }
+            block.lines[x] = null;
+            this.timings.AddPhaseTime(POLRMetrics.PHASE_VECTORIZE,
+                System.nanoTime() - startTime);
+            
+          }
+          
+          VectorizedBlocks.put(block);
+          
+        }
+        
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        VectorizedBlocks.offer(PipelineBlock.END);
+      }
+      
+    }
+    
   }
   
   public ParameterVectorUpdatable getResults() {
-    return new ParameterVectorUpdatable(GenerateUpdate());
+    ParameterVectorUpdatable results = new ParameterVectorUpdatable(
+        GenerateUpdate());
+    results.setCodec(this.Codec);
+    results.setCompressor(this.Compressor);
+    return results;
   }
   
   /**
@@ -254,7 +1183,28 @@ public class POLRWorkerNode extends POLRNodeBase implements
   @Override
   public void update(ParameterVectorUpdatable t) {
     // masterTotal = t.get();
-    ParameterVector global_update = t.get();
+    t.setCompressor(this.Compressor);
+    t.setSource("the global model from the master");
+    // SetBeta() copies the model out, so the message can be read into again
+    ParameterVector global_update = t.Decode(this.LastGlobal);
+    this.LastGlobal = global_update;
+    
+    // our last update has been serialized and sent by now, everything after
+    // that until the master's answer got here was waiting on the barrier;
+    // both get reported with the next superstep
+    if (null != this.LastUpdate) {
+      long waited = System.nanoTime() - this.LastUpdateSentNanos
+          - this.LastUpdate.SerializeNanos;
+      metrics.AddPhaseTime(POLRMetrics.PHASE_SERIALIZE,
+          this.LastUpdate.SerializeNanos);
+      metrics.AddPhaseTime(POLRMetrics.PHASE_BARRIER_WAIT, Math.max(0, waited));
+      metrics.BytesSent += this.LastUpdate.SerializedBytes;
+      this.LastUpdate = null;
+    }
+    if (null != this.LastSent) {
+      this.LastSent.release();
+      this.LastSent = null;
+    }
     
     // set the local parameter vector to the global aggregate ("beta")
     this.polr.SetBeta(global_update.parameter_vector);
@@ -263,7 +1213,7 @@ public class POLRWorkerNode extends POLRNodeBase implements
     this.GlobalBatchCountForIteration = global_update.GlobalPassCount;
     
     // flush the local gradient delta buffer ("gamma")
-//    this.polr.FlushGamma();
+    this.polr.FlushGamma();
     
 /*    if (global_update.IterationComplete == 0) {
       this.IterationComplete = false;
@@ -310,6 +1260,116 @@ public class POLRWorkerNode extends POLRNodeBase implements
       this.LearningRate = Double.parseDouble(this.conf.get(
           "com.cloudera.knittingboar.setup.LearningRate", "10"));
       
+      // send sparse gradient deltas instead of the full parameter vector
+      this.GradientDeltaUpdates = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.GradientDeltaUpdates", false);
+      
+      // ship the parameter vectors in single precision, still training in
+      // double
+      this.FloatParameters = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.FloatParameters", false);
+      
+      // train off a flat double[] beta instead of through the Matrix API
+      this.FlatTrainingKernel = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.FlatTrainingKernel", false);
+      
+      // mini batch supersteps: send an update to the master after this many
+      // records and / or milliseconds, 0 means train on the whole split
+      this.BatchSize = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.BatchSize", 0);
+      this.BatchTimeMS = this.conf.getLong(
+          "com.cloudera.knittingboar.setup.BatchTimeMS", 0);
+      
+      // number of Hogwild training threads sharing this worker's POLR
+      this.TrainingThreads = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.TrainingThreads", 1);
+      
+      // sgd (default), adagrad or ftrl
+      this.Optimizer = this.conf.get(
+          "com.cloudera.knittingboar.setup.Optimizer", POLROptimizer.SGD);
+      
+      // threads vectorizing records ahead of the training thread, 0 means
+      // vectorize on the training thread
+      this.VectorizerThreads = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.VectorizerThreads", 0);
+      this.PipelineOrdered = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.PipelineOrdered", false);
+      
+      // cache the vectorized records on local disk during the first pass, so
+      // the later passes don't have to parse the text again
+      this.VectorCache = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.VectorCache", false)
+          && this.NumberIterations > 1;
+      this.VectorCacheDir = this.conf.get(
+          "com.cloudera.knittingboar.setup.VectorCacheDir",
+          System.getProperty("java.io.tmpdir"));
+      
+      // or keep the vectorized split in memory (when it fits in
+      // InMemoryDatasetMaxMB, default a quarter of the heap) and shuffle it
+      // for every pass
+      this.InMemoryDataset = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.InMemoryDataset", false)
+          && this.NumberIterations > 1;
+      this.InMemoryDatasetMaxMB = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.InMemoryDatasetMaxMB", 0);
+      this.InMemoryShuffle = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.InMemoryShuffle", true);
+      
+      // progressive validation on about 1 in MetricsSampleRate records, with
+      // confidence intervals, instead of moving averages over every record
+      this.MetricsSampleRate = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.MetricsSampleRate", 0);
+      metrics.SetSampleRate(this.MetricsSampleRate, MetricsSampleSeed());
+
+      
+      // uniform (default), records (weighted by records trained) or
+      // coordinate (each coefficient over the workers that touched it)
+      this.ModelAveraging = this.conf.get(
+          "com.cloudera.knittingboar.setup.ModelAveraging",
+          ParameterVectorAverager.UNIFORM);
+      
+      // encode the messages straight into (direct) ByteBuffers
+      this.ByteBufferCodec = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.ByteBufferCodec", false);
+      this.DirectBuffers = this.conf.getBoolean(
+          "com.cloudera.knittingboar.setup.DirectBuffers", false);
+      if (this.ByteBufferCodec) {
+        this.Codec = new ParameterVectorCodec(this.DirectBuffers);
+      }
+      
+      // block compress the payloads (none, deflate or lz); compressed ones
+      // are read whatever this is set to
+      this.PayloadCompression = this.conf.get(
+          "com.cloudera.knittingboar.setup.PayloadCompression",
+          BlockCompressor.NONE);
+      this.PayloadBlockSize = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.PayloadBlockSize",
+          BlockCompressor.DEFAULT_BLOCK_SIZE);
+      this.CompressionThreads = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.CompressionThreads", 0);
+      if (!BlockCompressor.NONE.equalsIgnoreCase(this.PayloadCompression)) {
+        this.Compressor = new BlockCompressor(this.PayloadCompression,
+            this.PayloadBlockSize, this.CompressionThreads);
+      }
+      
+      // send our updates quantized to 8 or 16 bits, 0 means full precision
+      this.QuantizeBits = this.conf.getInt(
+          "com.cloudera.knittingboar.setup.QuantizeBits", 0);
+      
+      if (!POLROptimizer.SGD.equals(this.Optimizer) && this.TrainingThreads > 1) {
+        // the optimizers' sparse state isn't safe to share between threads
+        System.err.println("POLRWorkerNode: the " + this.Optimizer
+            + " optimizer doesn't support TrainingThreads, using 1 thread");
+        this.TrainingThreads = 1;
+      }
+
+      if (!POLROptimizer.SGD.equals(this.Optimizer)) {
+        // the optimizers only move the columns a record touches and leave
+        // the rest of beta at 0, so send just those columns instead of the
+        // whole dense beta
+        this.GradientDeltaUpdates = true;
+      }
+
       // maps to either CSV, 20newsgroups, or RCV1
       this.RecordFactoryClassname = LoadStringConfVarOrException(
           "com.cloudera.knittingboar.setup.RecordFactoryClassname",
@@ -381,40 +1441,141 @@ public class POLRWorkerNode extends POLRNodeBase implements
     
     // setup record factory stuff here ---------
     
+    this.VectorFactory = CreateRecordFactory();
+    
+    polr_modelparams.setTargetCategories(this.VectorFactory
+        .getTargetCategories());
+    
+    // ----- this normally is generated from the POLRModelParams ------
+    
+    this.polr = new ParallelOnlineLogisticRegression(this.num_categories,
+        this.FeatureVectorSize, new UniformPrior()).alpha(1).stepOffset(1000)
+        .decayExponent(0.9).lambda(this.Lambda).learningRate(this.LearningRate)
+        .gammaBuffer(this.GradientDeltaUpdates)
+        .flatBeta(this.FlatTrainingKernel)
+        .optimizer(CreateOptimizer());
+    
+    polr_modelparams.setPOLR(polr);
+    
+    if (ParameterVectorAverager.COORDINATE.equals(this.ModelAveraging)
+        && !this.GradientDeltaUpdates) {
+      // full betas have to say which columns they changed, gradient deltas
+      // already do
+      this.ColumnUpdateCounts = this.polr.getUpdateCounts();
+    }
+    
+    if (8 == this.QuantizeBits || 16 == this.QuantizeBits) {
+      this.Quantizer = new MatrixQuantizer(this.num_categories - 1,
+          this.FeatureVectorSize, this.QuantizeBits);
+    } else if (0 != this.QuantizeBits) {
+      System.err.println("POLRWorkerNode: can't quantize to "
+          + this.QuantizeBits + " bits, sending full precision");
+    }
+    
+    this.probabilities = new DenseVector(this.num_categories);
+    this.instance = new PrimitiveSparseVector(this.FeatureVectorSize);
+    
+    if (this.TrainingThreads > 1) {
+      this.ThreadRecordFactories = new RecordFactory[this.TrainingThreads];
+      for (int x = 0; x < this.TrainingThreads; x++) {
+        this.ThreadRecordFactories[x] = CreateRecordFactory();
+      }
+      if (this.VectorizerThreads > 0) {
+        // the Hogwild threads already vectorize in parallel
+        System.err.println("POLRWorkerNode: VectorizerThreads is ignored "
+            + "with TrainingThreads > 1");
+        this.VectorizerThreads = 0;
+      }
+    }
+    
+    if (this.VectorizerThreads > 0) {
+      
+      this.VectorizerRecordFactories = new RecordFactory[this.VectorizerThreads];
+      for (int x = 0; x < this.VectorizerThreads; x++) {
+        this.VectorizerRecordFactories[x] = CreateRecordFactory();
+      }
+      
+      int blocks = this.VectorizerThreads * PIPELINE_BLOCKS_PER_VECTORIZER;
+      this.FreeBlocks = new ArrayBlockingQueue<PipelineBlock>(blocks);
+      // + 1 slot per vectorizer for the END markers
+      this.ReadBlocks = new ArrayBlockingQueue<PipelineBlock>(blocks
+          + this.VectorizerThreads);
+      this.VectorizedBlocks = new ArrayBlockingQueue<PipelineBlock>(blocks
+          + this.VectorizerThreads);
+      for (int x = 0; x < blocks; x++) {
+        this.FreeBlocks.add(new PipelineBlock(this.FeatureVectorSize));
+      }
+      
+    }
+    
+    // this.bSetup = true;
+  }
+  
+  /**
+   * Builds the optimizer named by the Optimizer setting, null for the default
+   * SGD update
+   */
+  private POLROptimizer CreateOptimizer() {
+    
+    if (POLROptimizer.ADAGRAD.equals(this.Optimizer)) {
+      
+      return new AdaGradOptimizer(this.num_categories, this.conf.getFloat(
+          "com.cloudera.knittingboar.setup.AdaGradLearningRate", 0.1f));
+      
+    } else if (POLROptimizer.FTRL.equals(this.Optimizer)) {
+      
+      return new FTRLProximalOptimizer(this.num_categories,
+          this.conf.getFloat("com.cloudera.knittingboar.setup.FTRLAlpha", 0.1f),
+          this.conf.getFloat("com.cloudera.knittingboar.setup.FTRLBeta", 1.0f),
+          this.conf.getFloat("com.cloudera.knittingboar.setup.FTRLL1", 1.0f),
+          this.conf.getFloat("com.cloudera.knittingboar.setup.FTRLL2", 1.0f));
+      
+    } else if (!POLROptimizer.SGD.equals(this.Optimizer)) {
+      
+      System.err.println("POLRWorkerNode: unknown optimizer '"
+          + this.Optimizer + "', using sgd");
+      
+    }
+    
+    return null;
+    
+  }
+  
+  /**
+   * Builds the RecordFactory named by RecordFactoryClassname. Each training
+   * thread gets its own, since the factories keep per-instance parsing state.
+   * CSV factories share the main factory's target dictionary.
+   */
+  private RecordFactory CreateRecordFactory() {
+    
     if (RecordFactory.TWENTYNEWSGROUPS_RECORDFACTORY
         .equals(this.RecordFactoryClassname)) {
       
-      this.VectorFactory = new TwentyNewsgroupsRecordFactory("\t");
+      return new TwentyNewsgroupsRecordFactory("\t");
       
     } else if (RecordFactory.RCV1_RECORDFACTORY
         .equals(this.RecordFactoryClassname)) {
       
-      this.VectorFactory = new RCV1RecordFactory();
+      return new RCV1RecordFactory();
       
     } else {
       
       // it defaults to the CSV record factor, but a custom one
       
-      this.VectorFactory = new CSVBasedDatasetRecordFactory(
+      CSVBasedDatasetRecordFactory csv = new CSVBasedDatasetRecordFactory(
           this.TargetVariableName, polr_modelparams.getTypeMap());
       
-      ((CSVBasedDatasetRecordFactory) this.VectorFactory)
-          .firstLine(this.ColumnHeaderNames);
+      csv.firstLine(this.ColumnHeaderNames);
+      
+      // the training / vectorizer threads' factories have to agree with the
+      // main one on the target category ids
+      if (this.VectorFactory instanceof CSVBasedDatasetRecordFactory) {
+        csv.shareTargetDictionary((CSVBasedDatasetRecordFactory) this.VectorFactory);
+      }
+      return csv;
       
     }
     
-    polr_modelparams.setTargetCategories(this.VectorFactory
-        .getTargetCategories());
-    
-    // ----- this normally is generated from the POLRModelParams ------
-    
-    this.polr = new ParallelOnlineLogisticRegression(this.num_categories,
-        this.FeatureVectorSize, new UniformPrior()).alpha(1).stepOffset(1000)
-        .decayExponent(0.9).lambda(this.Lambda).learningRate(this.LearningRate);
-    
-    polr_modelparams.setPOLR(polr);
-    
-    // this.bSetup = true;
   }
   
   @Override
@@ -457,14 +1618,27 @@ public class POLRWorkerNode extends POLRNodeBase implements
   @Override
   public boolean IncrementIteration() {
     
+    if (HasMoreRecords()) {
+      // we ended a mini batch superstep, not a pass over the split - keep
+      // going where we left off
+      return true;
+    }
+    
     this.CurrentIteration++;
+    this.LocalBatchCountForIteration = 0;
     this.IterationComplete = false;
     this.lineParser.reset();
     
+    if (null != this.RecordCache) {
+      RewindRecordCache();
+    }
+    
     System.out.println( "IncIteration > " + this.CurrentIteration + ", " + this.NumberIterations );
     
     if (this.CurrentIteration >= this.NumberIterations) {
       System.out.println("POLRWorkerNode: [ done with all iterations ]");
+      // RewindRecordCache() has dropped it already, unless it failed first
+      DropRecordCache();
       return false;
     }
     
@@ -0,0 +1,611 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd.iterativereduce;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.mahout.math.Matrix;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+
+/**
+ * The master's merge step: averages a superstep's worker updates into the new
+ * global parameter vector
+ * 
+ * The columns are split into one contiguous range per thread, and each range
+ * is worked a block of columns at a time, adding every worker's copy of the
+ * block before moving on, so the block of the result stays in cache. Workers'
+ * matrices are read straight out of their flat arrays when they're
+ * FlatDenseMatrix / FloatDenseMatrix (which is what ParameterVector
+ * deserializes to).
+ * 
+ * Updates can also be Fold()ed into the running sum one at a time as they
+ * arrive, after which their matrices are dropped; Merge() then only has to
+ * add whatever wasn't folded yet and finish the average. That keeps one model
+ * worth of sums on the master instead of every worker's copy, and does most
+ * of the adding while the slower workers are still training.
+ * 
+ * The result goes into one of two FlatDenseMatrix buffers, alternating every
+ * superstep: the other one still holds the previous model, which the
+ * gradient delta updates are applied to, and the model handed out last time
+ * stays untouched until the broadcast that uses it is long done. So nothing
+ * gets allocated or cloned per superstep.
+ * 
+ * How the workers' betas are averaged is set by the weighting:
+ * 
+ * UNIFORM - every update counts the same. With N updates, of which D are
+ * gradient deltas: (sum of the full betas + sum of the deltas + D * previous
+ * model) / N, the plain average of the workers' betas either way.
+ * 
+ * RECORDS - the same, with each update weighted by the records its worker
+ * trained that superstep (ParameterVector.SuperstepRecords).
+ * 
+ * COORDINATE - each coefficient is averaged over just the workers that
+ * trained on its feature that superstep: previous + (sum of their changes) /
+ * (how many of them). On sparse text a feature only one worker saw keeps
+ * that worker's whole update instead of 1 / N of it. Which columns a worker
+ * touched comes from its gradient delta, or ParameterVector.touched_columns
+ * for a full beta (all of them if that's missing).
+ * 
+ * @author jpatterson
+ * 
+ */
+public class ParameterVectorAverager {
+  
+  public static final String UNIFORM = "uniform";
+  public static final String RECORDS = "records";
+  public static final String COORDINATE = "coordinate";
+  
+  // ~256KB of doubles per column block
+  private static final int BLOCK_CELLS = 32 * 1024;
+  
+  // below this many cells a pass isn't worth handing to the pool
+  private static final int MIN_PARALLEL_CELLS = 256 * 1024;
+  
+  private final int rows;
+  private final int cols;
+  private final int threads;
+  private final int blockColumns;
+  private final String weighting;
+  
+  private ExecutorService pool = null;
+  
+  private final FlatDenseMatrix[] buffers = new FlatDenseMatrix[2];
+  // buffer with the current model, -1 until the first merge
+  private int current = -1;
+  
+  // the superstep being summed into the other buffer
+  private boolean summing = false;
+  private int summed = 0;
+  private double weights = 0;
+  private double deltaWeights = 0;
+  private final Set<ParameterVector> folded = Collections
+      .newSetFromMap(new IdentityHashMap<ParameterVector,Boolean>());
+  
+  // COORDINATE: how many updates touched each column this superstep
+  private int[] touches = null;
+  
+  /**
+   * @param threads
+   *          merge threads, 0 means one per core
+   */
+  public ParameterVectorAverager(int rows, int cols, int threads) {
+    this(rows, cols, threads, UNIFORM);
+  }
+  
+  /**
+   * @param weighting
+   *          UNIFORM, RECORDS or COORDINATE
+   */
+  public ParameterVectorAverager(int rows, int cols, int threads,
+      String weighting) {
+    
+    if (!UNIFORM.equals(weighting) && !RECORDS.equals(weighting)
+        && !COORDINATE.equals(weighting)) {
+      throw new IllegalArgumentException("Unknown model averaging '"
+          + weighting + "'");
+    }
+    
+    this.rows = rows;
+    this.cols = cols;
+    this.threads = (threads > 0) ? threads : Runtime.getRuntime()
+        .availableProcessors();
+    this.blockColumns = Math.max(1, BLOCK_CELLS / Math.max(1, rows));
+    this.weighting = weighting;
+    
+    if (COORDINATE.equals(weighting)) {
+      this.touches = new int[cols];
+    }
+    
+  }
+  
+  /**
+   * @return the current global model, null before the first merge
+   */
+  public FlatDenseMatrix getModel() {
+    return (this.current < 0) ? null : this.buffers[this.current];
+  }
+  
+  /**
+   * Adds an update that just arrived to this superstep's running sum and
+   * drops its matrices and column lists (parameter_vector, gamma,
+   * gamma_columns, touched_columns); Merge() counts it without looking at it
+   * again
+   * 
+   * @throws IllegalArgumentException
+   *           if the update doesn't fit the model, it's left as it was
+   */
+  public synchronized void Fold(ParameterVector update) {
+    
+    if (this.folded.contains(update)) {
+      return;
+    }
+    
+    Check(update);
+    Add(update);
+    this.summed++;
+    this.folded.add(update);
+    
+    update.parameter_vector = null;
+    update.gamma = null;
+    update.gamma_columns = null;
+    update.touched_columns = null;
+    
+  }
+  
+  /**
+   * Averages the superstep's updates into the next model, the ones already
+   * Fold()ed just get counted
+   * 
+   * @return the new model; it belongs to the averager and is overwritten two
+   *         merges from now, so it mustn't be modified and anything keeping
+   *         it longer has to copy it
+   */
+  public synchronized FlatDenseMatrix Merge(List<ParameterVector> updates) {
+    
+    List<ParameterVector> rest = new ArrayList<ParameterVector>();
+    for (ParameterVector update : updates) {
+      if (!this.folded.contains(update)) {
+        Check(update);
+        rest.add(update);
+      }
+    }
+    
+    if (0 == this.summed + rest.size()) {
+      if (this.current < 0) {
+        // workers start out with an all zero beta
+        this.buffers[0] = new FlatDenseMatrix(this.rows, this.cols);
+        this.current = 0;
+      }
+      return getModel();
+    }
+    
+    SumPass last;
+    
+    if (null != this.touches) {
+      
+      for (ParameterVector update : rest) {
+        Add(update);
+      }
+      last = new SumPass(!this.summing);
+      
+    } else {
+      
+      // deltas first, then the rest of the full betas and the average in one
+      // pass over the blocks
+      last = new SumPass(false);
+      for (ParameterVector update : rest) {
+        if (update.GradientDelta == 1) {
+          Add(update);
+        }
+      }
+      last.zero = !this.summing;
+      for (ParameterVector update : rest) {
+        if (update.GradientDelta != 1) {
+          last.AddBeta(update.parameter_vector, Weight(update));
+          this.weights += Weight(update);
+        }
+      }
+      
+    }
+    
+    last.finish = true;
+    last.finishWeights = this.weights;
+    last.finishDeltaWeights = this.deltaWeights;
+    RunPass(last);
+    
+    this.current = Next();
+    this.summing = false;
+    this.summed = 0;
+    this.weights = 0;
+    this.deltaWeights = 0;
+    this.folded.clear();
+    
+    return this.buffers[this.current];
+    
+  }
+  
+  private double Weight(ParameterVector update) {
+    
+    if (RECORDS.equals(this.weighting)) {
+      return Math.max(0, update.SuperstepRecords);
+    }
+    return 1.0;
+    
+  }
+  
+  /**
+   * Adds an update to the sum: deltas and touched columns sparsely on this
+   * thread, full betas with a pass over the blocks
+   */
+  private void Add(ParameterVector update) {
+    
+    double w = Weight(update);
+    
+    boolean sparse = update.GradientDelta == 1
+        || (null != this.touches && null != update.touched_columns);
+    
+    if (sparse) {
+      
+      if (!this.summing) {
+        RunPass(new SumPass(true));
+        this.summing = true;
+      }
+      
+      if (update.GradientDelta == 1) {
+        AddDelta(update.gamma_columns, update.gamma, w);
+        this.deltaWeights += w;
+      } else {
+        AddTouched(update.touched_columns, update.parameter_vector);
+      }
+      
+    } else {
+      
+      SumPass pass = new SumPass(!this.summing);
+      pass.AddBeta(update.parameter_vector, w);
+      RunPass(pass);
+      this.summing = true;
+      
+    }
+    
+    this.weights += w;
+    
+  }
+  
+  private int Next() {
+    return (this.current + 1) % 2;
+  }
+  
+  /**
+   * The buffer this superstep sums into
+   */
+  private double[] Sum() {
+    
+    int next = Next();
+    if (null == this.buffers[next]) {
+      this.buffers[next] = new FlatDenseMatrix(this.rows, this.cols);
+    }
+    return this.buffers[next].getValues();
+    
+  }
+  
+  private void Check(ParameterVector update) {
+    
+    if (update.GradientDelta == 1) {
+      if (update.gamma_columns.length > 0) {
+        CheckShape(update.gamma, update.gamma_columns.length);
+      }
+    } else {
+      CheckShape(update.parameter_vector, this.cols);
+      if (null != update.touched_columns) {
+        for (int x = 0; x < update.touched_columns.length; x++) {
+          if (update.touched_columns[x] < 0
+              || update.touched_columns[x] >= this.cols) {
+            throw new IllegalArgumentException("Worker touched column "
+                + update.touched_columns[x] + " of " + this.cols);
+          }
+        }
+      }
+    }
+    
+  }
+  
+  private void CheckShape(Matrix m, int columns) {
+    
+    if (null == m || m.numRows() != this.rows || m.numCols() != columns) {
+      throw new IllegalArgumentException("Worker sent a "
+          + ((null == m) ? "missing" : m.numRows() + " x " + m.numCols())
+          + " matrix, expected " + this.rows + " x " + columns);
+    }
+    
+  }
+  
+  /**
+   * Deltas are sparse, they're just added in on this thread
+   */
+  private void AddDelta(int[] columns, Matrix delta, double w) {
+    
+    double[] sum = Sum();
+    for (int x = 0; x < columns.length; x++) {
+      int base = columns[x] * this.rows;
+      for (int row = 0; row < this.rows; row++) {
+        sum[base + row] += w * delta.getQuick(row, x);
+      }
+      if (null != this.touches) {
+        this.touches[columns[x]]++;
+      }
+    }
+    
+  }
+  
+  /**
+   * COORDINATE: adds the change in just the touched columns of a full beta
+   */
+  private void AddTouched(int[] columns, Matrix beta) {
+    
+    double[] sum = Sum();
+    FlatDenseMatrix model = getModel();
+    double[] previous = (null == model) ? null : model.getValues();
+    
+    for (int x = 0; x < columns.length; x++) {
+      int col = columns[x];
+      int base = col * this.rows;
+      for (int row = 0; row < this.rows; row++) {
+        sum[base + row] += beta.getQuick(row, col)
+            - ((null == previous) ? 0 : previous[base + row]);
+      }
+      this.touches[col]++;
+    }
+    
+  }
+  
+  /**
+   * Runs a pass over all the columns, on the pool if the model's big enough
+   */
+  private void RunPass(final SumPass pass) {
+    
+    pass.sum = Sum();
+    FlatDenseMatrix previous = getModel();
+    pass.previous = (null == previous) ? null : previous.getValues();
+    
+    int tasks = 1;
+    if ((long) this.rows * this.cols >= MIN_PARALLEL_CELLS) {
+      tasks = Math.min(this.threads, (this.cols + this.blockColumns - 1)
+          / this.blockColumns);
+    }
+    
+    if (tasks <= 1) {
+      pass.Run(0, this.cols);
+      return;
+    }
+    
+    if (null == this.pool) {
+      this.pool = Executors.newFixedThreadPool(this.threads,
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "ParameterVectorAverager");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    
+    // whole blocks per task
+    int blocks = (this.cols + this.blockColumns - 1) / this.blockColumns;
+    int blocksPerTask = (blocks + tasks - 1) / tasks;
+    
+    List<Callable<Object>> work = new ArrayList<Callable<Object>>();
+    for (int t = 0; t < tasks; t++) {
+      
+      final int start = t * blocksPerTask * this.blockColumns;
+      final int end = Math.min(this.cols, start + blocksPerTask
+          * this.blockColumns);
+      if (start >= end) {
+        break;
+      }
+      work.add(new Callable<Object>() {
+        @Override
+        public Object call() {
+          pass.Run(start, end);
+          return null;
+        }
+      });
+      
+    }
+    
+    try {
+      for (Future<Object> f : this.pool.invokeAll(work)) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while merging", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Merging the worker updates failed",
+          e.getCause());
+    }
+    
+  }
+  
+  public void Shutdown() {
+    
+    if (null != this.pool) {
+      this.pool.shutdown();
+      this.pool = null;
+    }
+    
+  }
+  
+  /**
+   * One blocked pass over the sum: optionally zero it, add full betas, and
+   * optionally finish the average
+   */
+  private class SumPass {
+    
+    boolean zero;
+    private final List<Matrix> betas = new ArrayList<Matrix>();
+    private final List<Double> betaWeights = new ArrayList<Double>();
+    
+    // finish: (sum + finishDeltaWeights * previous) / finishWeights, or
+    // previous + sum / touches for COORDINATE
+    boolean finish = false;
+    double finishWeights = 0;
+    double finishDeltaWeights = 0;
+    
+    double[] sum;
+    double[] previous;
+    
+    SumPass(boolean zero) {
+      this.zero = zero;
+    }
+    
+    void AddBeta(Matrix beta, double w) {
+      this.betas.add(beta);
+      this.betaWeights.add(w);
+    }
+    
+    /**
+     * Columns [start, end)
+     */
+    void Run(int start, int end) {
+      
+      for (int blockStart = start; blockStart < end; blockStart += blockColumns) {
+        
+        int blockEnd = Math.min(end, blockStart + blockColumns);
+        int from = blockStart * rows;
+        int to = blockEnd * rows;
+        
+        if (this.zero) {
+          Arrays.fill(this.sum, from, to, 0.0);
+        }
+        for (int b = 0; b < this.betas.size(); b++) {
+          if (null != touches) {
+            AddChange(this.betas.get(b), blockStart, blockEnd);
+          } else {
+            Add(this.betas.get(b), this.betaWeights.get(b), from, to);
+          }
+        }
+        if (this.finish && null != touches) {
+          FinishCoordinates(blockStart, blockEnd);
+        } else if (this.finish) {
+          Finish(from, to);
+        }
+        
+      }
+      
+    }
+    
+    private void Add(Matrix beta, double w, int from, int to) {
+      
+      if (beta instanceof FlatDenseMatrix) {
+        
+        double[] values = ((FlatDenseMatrix) beta).getValues();
+        for (int x = from; x < to; x++) {
+          this.sum[x] += w * values[x];
+        }
+        
+      } else if (beta instanceof FloatDenseMatrix) {
+        
+        float[] values = ((FloatDenseMatrix) beta).getValues();
+        for (int x = from; x < to; x++) {
+          this.sum[x] += w * values[x];
+        }
+        
+      } else {
+        
+        for (int col = from / rows; col < to / rows; col++) {
+          int base = col * rows;
+          for (int row = 0; row < rows; row++) {
+            this.sum[base + row] += w * beta.getQuick(row, col);
+          }
+        }
+        
+      }
+      
+    }
+    
+    /**
+     * COORDINATE, a full beta without its touched columns: counts as having
+     * touched all of them
+     */
+    private void AddChange(Matrix beta, int startColumn, int endColumn) {
+      
+      for (int col = startColumn; col < endColumn; col++) {
+        int base = col * rows;
+        for (int row = 0; row < rows; row++) {
+          this.sum[base + row] += beta.getQuick(row, col)
+              - ((null == this.previous) ? 0 : this.previous[base + row]);
+        }
+        touches[col]++;
+      }
+      
+    }
+    
+    private void Finish(int from, int to) {
+      
+      if (this.finishWeights <= 0) {
+        // nobody trained anything, keep the model we had
+        for (int x = from; x < to; x++) {
+          this.sum[x] = (null == this.previous) ? 0 : this.previous[x];
+        }
+      } else if (this.finishDeltaWeights > 0 && null != this.previous) {
+        for (int x = from; x < to; x++) {
+          this.sum[x] = (this.sum[x] + this.finishDeltaWeights
+              * this.previous[x])
+              / this.finishWeights;
+        }
+      } else {
+        for (int x = from; x < to; x++) {
+          this.sum[x] /= this.finishWeights;
+        }
+      }
+      
+    }
+    
+    private void FinishCoordinates(int startColumn, int endColumn) {
+      
+      for (int col = startColumn; col < endColumn; col++) {
+        int base = col * rows;
+        int n = touches[col];
+        for (int row = 0; row < rows; row++) {
+          double last = (null == this.previous) ? 0 : this.previous[base + row];
+          this.sum[base + row] = (n > 0) ? last + this.sum[base + row] / n
+              : last;
+        }
+        touches[col] = 0;
+      }
+      
+    }
+    
+  }
+  
+}
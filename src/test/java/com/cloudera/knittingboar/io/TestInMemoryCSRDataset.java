@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.io;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+
+/**
+ * Loads records into the CSR dataset and checks every pass gives back each
+ * record exactly once, shuffled
+ *
+ * @author jpatterson
+ *
+ */
+public class TestInMemoryCSRDataset extends TestCase {
+
+  private static int features = 1000;
+
+  /**
+   * record x has x + 1 at column x % features and -1 at the next column
+   */
+  private static InMemoryCSRDataset load(int count, boolean shuffle)
+      throws IOException {
+
+    InMemoryCSRDataset data = new InMemoryCSRDataset(64L * 1024 * 1024,
+        shuffle, 42);
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features);
+    for (int x = 0; x < count; x++) {
+      v.clear();
+      v.set(x % features, x + 1);
+      v.set((x + 1) % features, -1);
+      data.Append(x, v);
+    }
+    data.StartReading();
+    return data;
+
+  }
+
+  public void testEveryRecordOncePerPass() throws Exception {
+
+    int count = 5000;
+    InMemoryCSRDataset data = load(count, true);
+    assertEquals(count, data.getRecordCount());
+    assertEquals(2 * count, data.getNonZeroCount());
+
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features);
+    int[] previousOrder = null;
+
+    for (int pass = 0; pass < 3; pass++) {
+
+      boolean[] seen = new boolean[count];
+      int[] order = new int[count];
+      int inPlace = 0;
+
+      for (int x = 0; x < count; x++) {
+
+        assertTrue(data.HasNext());
+        int label = data.Next(v);
+
+        assertFalse(seen[label]);
+        seen[label] = true;
+        order[x] = label;
+        if (label == x) {
+          inPlace++;
+        }
+
+        assertEquals(2, v.getNumNondefaultElements());
+        assertEquals((double) label + 1, v.get(label % features), 0.0);
+        assertEquals(-1.0, v.get((label + 1) % features), 0.0);
+
+      }
+      assertFalse(data.HasNext());
+
+      // shuffled, and differently from the last pass
+      assertTrue(inPlace < count / 10);
+      if (null != previousOrder) {
+        int same = 0;
+        for (int x = 0; x < count; x++) {
+          same += (order[x] == previousOrder[x] ? 1 : 0);
+        }
+        assertTrue(same < count / 10);
+      }
+      previousOrder = order;
+
+      data.Reset();
+
+    }
+
+  }
+
+  public void testUnshuffledKeepsSplitOrder() throws Exception {
+
+    InMemoryCSRDataset data = load(100, false);
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features);
+    for (int x = 0; x < 100; x++) {
+      assertEquals(x, data.Next(v));
+    }
+
+  }
+
+  public void testRefusesToOutgrowLimit() throws Exception {
+
+    InMemoryCSRDataset data = new InMemoryCSRDataset(1024 * 1024, true, 1);
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features);
+    Random rnd = new Random(5);
+    for (int x = 0; x < 200; x++) {
+      v.set(rnd.nextInt(features), 1.0);
+    }
+
+    try {
+      for (int x = 0; x < 10000; x++) {
+        data.Append(0, v);
+      }
+      fail("a split bigger than the limit fit in memory");
+    } catch (IOException e) {
+      // expected
+    }
+
+  }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+
+/**
+ * Writes a batch of random records through the cache, reads them back over a
+ * couple of passes, and checks that unfinished or mismatched caches get
+ * rejected
+ *
+ * @author jpatterson
+ *
+ */
+public class TestVectorizedRecordCache extends TestCase {
+
+  private static int features = 1000;
+
+  private File file = null;
+
+  @Override
+  protected void setUp() throws Exception {
+    this.file = File.createTempFile("TestVectorizedRecordCache", ".bin");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.file.delete();
+  }
+
+  private static PrimitiveSparseVector generateRecord(Random rnd) {
+
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features);
+    int nnz = rnd.nextInt(40);
+    for (int x = 0; x < nnz; x++) {
+      v.set(rnd.nextInt(features), rnd.nextGaussian());
+    }
+    return v;
+
+  }
+
+  public void testWriteAndReadBack() throws Exception {
+
+    int count = 5000;
+
+    VectorizedRecordCache cache = new VectorizedRecordCache(this.file,
+        "split-0");
+    cache.BeginWrite();
+    Random rnd = new Random(7);
+    for (int x = 0; x < count; x++) {
+      cache.Append(x % 20, generateRecord(rnd));
+    }
+    cache.FinishWrite();
+
+    cache.OpenForRead();
+    assertEquals(count, cache.getRecordCount());
+
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features);
+
+    for (int pass = 0; pass < 2; pass++) {
+
+      rnd = new Random(7);
+      for (int x = 0; x < count; x++) {
+
+        assertTrue(cache.HasNext());
+        PrimitiveSparseVector expected = generateRecord(rnd);
+        assertEquals(x % 20, cache.Next(v));
+
+        assertEquals(expected.getNumNondefaultElements(),
+            v.getNumNondefaultElements());
+        for (int k = 0; k < expected.getNumNondefaultElements(); k++) {
+          assertEquals(expected.getIndexes()[k], v.getIndexes()[k]);
+          assertEquals(expected.getValues()[k], v.getValues()[k], 0.0);
+        }
+
+      }
+      assertFalse(cache.HasNext());
+
+      cache.Reset();
+
+    }
+
+    cache.Close();
+
+  }
+
+  public void testRejectsOtherKey() throws Exception {
+
+    VectorizedRecordCache cache = new VectorizedRecordCache(this.file,
+        "split-0");
+    cache.BeginWrite();
+    cache.Append(1, generateRecord(new Random(1)));
+    cache.FinishWrite();
+
+    try {
+      new VectorizedRecordCache(this.file, "split-1").OpenForRead();
+      fail("opened a cache written for another split");
+    } catch (IOException e) {
+      // expected
+    }
+
+  }
+
+  public void testRejectsUnfinishedCache() throws Exception {
+
+    VectorizedRecordCache cache = new VectorizedRecordCache(this.file,
+        "split-0");
+    cache.BeginWrite();
+    Random rnd = new Random(3);
+    for (int x = 0; x < 10000; x++) {
+      cache.Append(0, generateRecord(rnd));
+    }
+    // never finished, e.g. the worker died mid pass
+    cache.Close();
+
+    try {
+      new VectorizedRecordCache(this.file, "split-0").OpenForRead();
+      fail("opened an unfinished cache");
+    } catch (IOException e) {
+      // expected
+    }
+
+  }
+
+}
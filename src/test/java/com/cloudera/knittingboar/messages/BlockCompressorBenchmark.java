@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.cloudera.knittingboar.messages.iterativereduce.BlockCompressor;
+
+/**
+ * Prints CPU time against bytes saved for each BlockCompressor codec on
+ * hashed-model-like payloads. Not part of the unit tests, run it with
+ * mvn test -Pbenchmark
+ *
+ * @author jpatterson
+ *
+ */
+public class BlockCompressorBenchmark extends TestCase {
+
+  /**
+   * CPU time against bytes saved for each codec, on 20 Newsgroups and RCV1
+   * sized hashed models at a few densities
+   */
+  public void testBenchmark() throws IOException {
+
+    int[][] shapes = new int[][] { { 19, 10000 }, { 102, 20000 } };
+    double[] densities = new double[] { 0.02, 0.2, 1.0 };
+    int rounds = 5;
+
+    System.out.println("codec    model       density  raw MB  ratio  "
+        + "compress MB/s  decompress MB/s (1 thread / all cores)");
+
+    for (int[] shape : shapes) {
+      for (double density : densities) {
+
+        byte[] raw = TestBlockCompressor.serialized(TestBlockCompressor
+            .hashedBeta(shape[0], shape[1], density, 13));
+        double mb = raw.length / (1024.0 * 1024.0);
+
+        for (String name : TestBlockCompressor.CODECS) {
+
+          BlockCompressor one = new BlockCompressor(name,
+              BlockCompressor.DEFAULT_BLOCK_SIZE, 1);
+          BlockCompressor all = new BlockCompressor(name,
+              BlockCompressor.DEFAULT_BLOCK_SIZE, 0);
+
+          ByteBuffer framed = null;
+          double[] compress = new double[2];
+          double[] decompress = new double[2];
+          BlockCompressor[] both = new BlockCompressor[] { one, all };
+          for (int t = 0; t < 2; t++) {
+            // warm up
+            both[t].Decompress(both[t].Compress(ByteBuffer.wrap(raw)));
+            long c = 0;
+            long d = 0;
+            for (int r = 0; r < rounds; r++) {
+              long start = System.nanoTime();
+              framed = both[t].Compress(ByteBuffer.wrap(raw));
+              c += System.nanoTime() - start;
+              start = System.nanoTime();
+              both[t].Decompress(framed.duplicate());
+              d += System.nanoTime() - start;
+            }
+            compress[t] = rounds * mb / (c / 1.0e9);
+            decompress[t] = rounds * mb / (d / 1.0e9);
+          }
+
+          assertTrue(Arrays.equals(raw,
+              TestBlockCompressor.get(one.Decompress(framed))));
+          System.out.printf(
+              "%-8s %3d x %-6d %5.2f  %7.2f  %5.1fx  %6.0f / %-6.0f  %6.0f / %-6.0f\n",
+              name, shape[0], shape[1], density, mb, (double) raw.length
+                  / framed.limit(), compress[0], compress[1], decompress[0],
+              decompress[1]);
+
+          all.Shutdown();
+
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * Prints a rough throughput comparison of ParameterVectorCodec and
+ * ParameterVector.Serialize() / Deserialize(). Not part of the unit tests,
+ * run it with mvn test -Pbenchmark
+ *
+ * @author jpatterson
+ *
+ */
+public class ParameterVectorCodecBenchmark extends TestCase {
+
+  /**
+   * Serialize / deserialize throughput for a 20 Newsgroups sized model both
+   * ways
+   */
+  public void testThroughput() throws IOException {
+
+    int rows = 19;
+    int cols = 10000;
+    int rounds = 20;
+
+    ParameterVector msg = new ParameterVector();
+    msg.parameter_vector = TestingUtils.randomBeta(new Random(11),
+        new FlatDenseMatrix(rows, cols));
+    double mb = rows * cols * 8 / (1024.0 * 1024.0);
+
+    ParameterVectorCodec codec = new ParameterVectorCodec(true);
+    ParameterVector reuse = new ParameterVector();
+
+    // warm up
+    for (int x = 0; x < 3; x++) {
+      new ParameterVector().Deserialize(msg.Serialize());
+      ByteBuffer buf = codec.Encode(msg);
+      ParameterVectorCodec.Decode(buf, reuse);
+      codec.Release(buf);
+    }
+
+    long serialize = 0;
+    long deserialize = 0;
+    for (int x = 0; x < rounds; x++) {
+      long start = System.nanoTime();
+      byte[] bytes = msg.Serialize();
+      ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+      serialize += System.nanoTime() - start;
+      start = System.nanoTime();
+      new ParameterVector().Deserialize(wrapped.array());
+      deserialize += System.nanoTime() - start;
+    }
+
+    long encode = 0;
+    long decode = 0;
+    for (int x = 0; x < rounds; x++) {
+      long start = System.nanoTime();
+      ByteBuffer buf = codec.Encode(msg);
+      encode += System.nanoTime() - start;
+      start = System.nanoTime();
+      ParameterVectorCodec.Decode(buf, reuse);
+      decode += System.nanoTime() - start;
+      codec.Release(buf);
+    }
+
+    TestingUtils.assertSameMatrix(msg.parameter_vector, reuse.parameter_vector);
+
+    System.out.printf("Serialize():   %8.1f MB/s, Deserialize(): %8.1f MB/s\n",
+        rounds * mb / (serialize / 1.0e9), rounds * mb / (deserialize / 1.0e9));
+    System.out.printf("Codec Encode():%8.1f MB/s, Decode():      %8.1f MB/s\n",
+        rounds * mb / (encode / 1.0e9), rounds * mb / (decode / 1.0e9));
+
+  }
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.BlockCompressor;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorUpdatable;
+
+/**
+ * Round trips through every BlockCompressor codec, single and multi
+ * threaded, corrupt frames and the ParameterVectorUpdatable hook
+ *
+ * @author jpatterson
+ *
+ */
+public class TestBlockCompressor extends TestCase {
+
+  static final String[] CODECS = new String[] { BlockCompressor.NONE,
+      BlockCompressor.DEFLATE, BlockCompressor.LZ };
+
+  /**
+   * A hashed text model: most features never seen (exact zeros), the rest
+   * gaussian, in runs of columns
+   *
+   * @param density
+   *          fraction of the columns that are non zero
+   */
+  static FlatDenseMatrix hashedBeta(int rows, int cols,
+      double density, long seed) {
+
+    Random rand = new Random(seed);
+    FlatDenseMatrix m = new FlatDenseMatrix(rows, cols);
+    double[] values = m.getValues();
+    for (int col = 0; col < cols; col++) {
+      if (rand.nextDouble() < density) {
+        for (int row = 0; row < rows; row++) {
+          values[col * rows + row] = rand.nextGaussian() * 0.1;
+        }
+      }
+    }
+    return m;
+
+  }
+
+  private static byte[] randomBytes(int n, long seed) {
+
+    byte[] b = new byte[n];
+    new Random(seed).nextBytes(b);
+    return b;
+
+  }
+
+  static byte[] serialized(FlatDenseMatrix beta) throws IOException {
+
+    ParameterVector msg = new ParameterVector();
+    msg.parameter_vector = beta;
+    return msg.Serialize();
+
+  }
+
+  static byte[] get(ByteBuffer b) {
+
+    byte[] bytes = new byte[b.remaining()];
+    b.duplicate().get(bytes);
+    return bytes;
+
+  }
+
+  public void testRoundTrips() throws IOException {
+
+    byte[][] payloads = new byte[][] {
+        new byte[0],
+        new byte[] { 7 },
+        new byte[100000],
+        randomBytes(300000, 1),
+        serialized(hashedBeta(19, 20000, 0.1, 3)) };
+
+    for (String name : CODECS) {
+      for (int threads : new int[] { 1, 4 }) {
+
+        BlockCompressor z = new BlockCompressor(name, 4096 + 17, threads);
+        for (byte[] raw : payloads) {
+
+          ByteBuffer framed = z.Compress(ByteBuffer.wrap(raw));
+          assertTrue(BlockCompressor.IsCompressed(framed));
+          // the codec only matters compressing
+          ByteBuffer back = new BlockCompressor(BlockCompressor.NONE)
+              .Decompress(framed);
+          assertEquals(0, framed.remaining());
+          assertTrue(name, Arrays.equals(raw, get(back)));
+
+        }
+        z.Shutdown();
+
+      }
+    }
+
+  }
+
+  public void testDirectAndOffsetBuffers() throws IOException {
+
+    BlockCompressor z = new BlockCompressor(BlockCompressor.LZ, 1000, 2);
+    byte[] raw = new byte[5000];
+    for (int x = 0; x < raw.length; x++) {
+      raw[x] = (byte) ((x / 100) % 3);
+    }
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(raw.length);
+    direct.put(raw);
+    direct.flip();
+    ByteBuffer framed = z.Compress(direct);
+    assertEquals(raw.length, direct.remaining());
+    assertTrue(framed.remaining() < raw.length / 10);
+
+    // framed bytes part way into a direct buffer
+    ByteBuffer in = ByteBuffer.allocateDirect(framed.remaining() + 10);
+    in.position(10);
+    in.put(framed.duplicate());
+    in.position(10);
+    assertTrue(Arrays.equals(raw, get(z.Decompress(in))));
+
+  }
+
+  public void testCorruptFrames() {
+
+    BlockCompressor z = new BlockCompressor(BlockCompressor.LZ);
+    byte[] raw = new byte[10000];
+    Arrays.fill(raw, 5000, 6000, (byte) 1);
+    byte[] framed = get(z.Compress(ByteBuffer.wrap(raw)));
+
+    // truncated
+    try {
+      z.Decompress(ByteBuffer.wrap(Arrays.copyOf(framed, framed.length - 1)));
+      fail("truncated frame decompressed");
+    } catch (IOException e) {}
+
+    // damaged block data, past the 21 byte header and one block length
+    for (int x = 21; x < framed.length; x++) {
+      byte[] bad = framed.clone();
+      bad[x] ^= 0x5a;
+      try {
+        byte[] back = get(z.Decompress(ByteBuffer.wrap(bad)));
+        assertEquals(raw.length, back.length);
+      } catch (IOException e) {}
+    }
+
+  }
+
+  public void testUpdatable() throws IOException {
+
+    FlatDenseMatrix beta = hashedBeta(19, 5000, 0.05, 8);
+    ParameterVector msg = new ParameterVector();
+    msg.SrcWorkerPassCount = 4;
+    msg.parameter_vector = beta;
+
+    for (boolean codec : new boolean[] { false, true }) {
+
+      BlockCompressor z = new BlockCompressor(BlockCompressor.LZ);
+      ParameterVectorUpdatable out = new ParameterVectorUpdatable(msg);
+      out.setCodec(codec ? new ParameterVectorCodec(true) : null);
+      out.setCompressor(z);
+      ByteBuffer buf = out.toBytes();
+      assertTrue(BlockCompressor.IsCompressed(buf));
+      assertTrue(buf.remaining() < 19 * 5000 * 8 / 5);
+
+      // the receiving end reads it without a compressor of its own
+      ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+      in.fromBytes(buf.duplicate());
+      assertEquals(4, in.get().SrcWorkerPassCount);
+      assertTrue(Arrays.equals(beta.getValues(),
+          ((FlatDenseMatrix) in.get().parameter_vector).getValues()));
+
+      // or with one, which only counts what that node read
+      BlockCompressor mine = new BlockCompressor(BlockCompressor.DEFLATE);
+      in = new ParameterVectorUpdatable();
+      in.setCompressor(mine);
+      in.fromBytes(buf.duplicate());
+      assertEquals(4, in.get().SrcWorkerPassCount);
+      assertTrue(mine.getDecompressNanos() > 0);
+      assertEquals(0, mine.getRawBytes());
+      assertEquals(0, z.getDecompressNanos());
+
+    }
+
+  }
+
+  public void testUpdatableThrowsOnCorruptFrame() {
+
+    ParameterVector msg = new ParameterVector();
+    msg.parameter_vector = hashedBeta(19, 5000, 0.05, 8);
+
+    ParameterVectorUpdatable out = new ParameterVectorUpdatable(msg);
+    out.setCompressor(new BlockCompressor(BlockCompressor.LZ));
+    byte[] framed = get(out.toBytes());
+
+    ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+    in.setSource("worker 1");
+    in.fromBytes(ByteBuffer.wrap(Arrays.copyOf(framed, framed.length - 1)));
+    try {
+      in.get();
+      fail("truncated frame decoded");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("worker 1"));
+    }
+
+  }
+
+}
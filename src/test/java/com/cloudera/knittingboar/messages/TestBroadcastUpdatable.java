@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.BlockCompressor;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorUpdatable;
+
+/**
+ * ParameterVectorUpdatable.Broadcast(): serialized once however many times
+ * it's fetched, every fetch reading the same bytes with its own position,
+ * with the codec and the compressor too
+ *
+ * @author jpatterson
+ *
+ */
+public class TestBroadcastUpdatable extends TestCase {
+
+  private static ParameterVector globalModel() {
+
+    ParameterVector msg = new ParameterVector();
+    msg.GlobalPassCount = 5;
+    FlatDenseMatrix beta = new FlatDenseMatrix(19, 1000);
+    beta.set(3, 700, 0.5);
+    msg.parameter_vector = beta;
+    return msg;
+
+  }
+
+  /**
+   * Fetches the broadcast workers times and checks they all got the model
+   *
+   * @return the first fetch's buffer
+   */
+  private static ByteBuffer fetchAll(ParameterVectorUpdatable broadcast,
+      int workers) {
+
+    ByteBuffer first = null;
+    for (int w = 0; w < workers; w++) {
+
+      ByteBuffer buf = broadcast.toBytes();
+      if (null == first) {
+        first = buf;
+      } else if (buf.hasArray()) {
+        // the same bytes, not a copy
+        assertSame(first.array(), buf.array());
+      }
+
+      // what the worker side does with it, moving the position
+      ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+      in.fromBytes(buf);
+      assertEquals(5, in.get().GlobalPassCount);
+      assertEquals(0.5, in.get().parameter_vector.get(3, 700));
+
+    }
+    return first;
+
+  }
+
+  public void testSerializedOnce() {
+
+    ParameterVectorUpdatable broadcast = ParameterVectorUpdatable
+        .Broadcast(globalModel());
+    ByteBuffer first = fetchAll(broadcast, 4);
+
+    assertEquals(4, broadcast.getServed());
+    assertEquals(3, broadcast.getCacheHits());
+    assertEquals(4L * first.limit(), broadcast.getBytesServed());
+
+    // changing the model after it's gone out doesn't change what's served
+    broadcast.get().parameter_vector.set(3, 700, 1.0);
+    ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+    in.fromBytes(broadcast.toBytes());
+    assertEquals(0.5, in.get().parameter_vector.get(3, 700));
+
+    // until it's released, the next toBytes() serializes again
+    broadcast.release();
+    in.fromBytes(broadcast.toBytes());
+    assertEquals(1.0, in.get().parameter_vector.get(3, 700));
+    assertEquals(4, broadcast.getCacheHits());
+
+    // a plain message still serializes every time
+    ParameterVectorUpdatable plain = new ParameterVectorUpdatable(
+        globalModel());
+    assertNotSame(plain.toBytes().array(), plain.toBytes().array());
+    assertEquals(0, plain.getServed());
+
+  }
+
+  public void testCodecAndCompressor() {
+
+    ParameterVectorCodec codec = new ParameterVectorCodec(true);
+
+    ParameterVectorUpdatable broadcast = ParameterVectorUpdatable
+        .Broadcast(globalModel());
+    broadcast.setCodec(codec);
+    ByteBuffer first = fetchAll(broadcast, 3);
+    assertTrue(first.isDirect());
+    assertEquals(1, codec.getAllocatedBuffers());
+    assertEquals(2, broadcast.getCacheHits());
+
+    // released back to the pool, and used again next superstep
+    broadcast.release();
+    ParameterVectorUpdatable next = ParameterVectorUpdatable
+        .Broadcast(globalModel());
+    next.setCodec(codec);
+    fetchAll(next, 3);
+    assertEquals(1, codec.getAllocatedBuffers());
+
+    BlockCompressor z = new BlockCompressor(BlockCompressor.LZ);
+    ParameterVectorUpdatable compressed = ParameterVectorUpdatable
+        .Broadcast(globalModel());
+    compressed.setCodec(codec);
+    compressed.setCompressor(z);
+    fetchAll(compressed, 3);
+    assertEquals(2, compressed.getCacheHits());
+    // compressed the once
+    assertEquals(first.limit(), z.getRawBytes());
+
+  }
+
+}
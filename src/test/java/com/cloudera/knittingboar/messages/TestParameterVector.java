@@ -31,7 +31,9 @@ import org.apache.mahout.math.Matrix;
 
 import junit.framework.TestCase;
 
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
 import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.metrics.POLRMetrics;
 
 
 
@@ -107,4 +109,153 @@ public class TestParameterVector extends TestCase {
   
   
   
+  public void testGradientDeltaSerde() throws IOException {
+    
+    int[] cols = new int[] { 3, 17, 9000 };
+    Matrix delta = new DenseMatrix(19, cols.length);
+    delta.set(0, 0, 0.25);
+    delta.set(18, 2, -1.5);
+    
+    ParameterVector vec_gradient = new ParameterVector();
+    vec_gradient.SrcWorkerPassCount = pass_count;
+    vec_gradient.GradientDelta = 1;
+    vec_gradient.gamma_columns = cols;
+    vec_gradient.gamma = delta;
+    
+    ParameterVector vec_gradient_deserialized = new ParameterVector();
+    vec_gradient_deserialized.Deserialize(vec_gradient.Serialize());
+    
+    assertEquals( pass_count, vec_gradient_deserialized.SrcWorkerPassCount );
+    assertEquals( 1, vec_gradient_deserialized.GradientDelta );
+    assertNull( vec_gradient_deserialized.parameter_vector );
+    assertEquals( 3, vec_gradient_deserialized.gamma_columns.length );
+    assertEquals( 9000, vec_gradient_deserialized.gamma_columns[2] );
+    assertEquals( 0.25, vec_gradient_deserialized.gamma.get(0, 0) );
+    assertEquals( -1.5, vec_gradient_deserialized.gamma.get(18, 2) );
+    
+    // and fold it into a dense parameter vector
+    ParameterVector global = new ParameterVector();
+    global.parameter_vector = new DenseMatrix(19, 10000);
+    global.AccumulateGradientDelta(vec_gradient_deserialized.gamma_columns, vec_gradient_deserialized.gamma, 0.5);
+    
+    assertEquals( 0.125, global.parameter_vector.get(0, 3) );
+    assertEquals( -0.75, global.parameter_vector.get(18, 9000) );
+    assertEquals( 0.0, global.parameter_vector.get(0, 4) );
+    
+  }
+  
+  public void testFloatParameterVectorSerde() throws IOException {
+    
+    Matrix m = new FloatDenseMatrix(19, 1000);
+    m.set(0, 1, 0.1);
+    m.set(18, 999, -2.5);
+    
+    ParameterVector vec_gradient = new ParameterVector();
+    vec_gradient.SrcWorkerPassCount = pass_count;
+    vec_gradient.parameter_vector = m;
+    
+    byte[] buf = vec_gradient.Serialize();
+    
+    // 4 bytes per coefficient instead of 8
+    assertTrue( buf.length < 19 * 1000 * 8 );
+    
+    ParameterVector vec_gradient_deserialized = new ParameterVector();
+    vec_gradient_deserialized.Deserialize(buf);
+    
+    assertTrue( vec_gradient_deserialized.parameter_vector instanceof FloatDenseMatrix );
+    assertEquals( 0.1, vec_gradient_deserialized.parameter_vector.get(0, 1), 1e-7 );
+    assertEquals( -2.5, vec_gradient_deserialized.parameter_vector.get(18, 999) );
+    assertEquals( 0.0, vec_gradient_deserialized.parameter_vector.get(5, 5) );
+    
+  }
+  
+  public void testSparseParameterVectorSerde() throws IOException {
+    
+    // mostly zero, like an FTRL model
+    Matrix m = new DenseMatrix(19, 10000);
+    m.set(0, 3, 0.5);
+    m.set(18, 9999, -1.75);
+    
+    ParameterVector vec_gradient = new ParameterVector();
+    vec_gradient.parameter_vector = m;
+    
+    byte[] buf = vec_gradient.Serialize();
+    assertTrue( buf.length < 1000 );
+    
+    ParameterVector vec_gradient_deserialized = new ParameterVector();
+    vec_gradient_deserialized.Deserialize(buf);
+    
+    assertEquals( 19, vec_gradient_deserialized.parameter_vector.rowSize() );
+    assertEquals( 10000, vec_gradient_deserialized.parameter_vector.columnSize() );
+    assertEquals( 0.5, vec_gradient_deserialized.parameter_vector.get(0, 3) );
+    assertEquals( -1.75, vec_gradient_deserialized.parameter_vector.get(18, 9999) );
+    assertEquals( 0.0, vec_gradient_deserialized.parameter_vector.get(5, 5) );
+    
+  }
+  
+  public void testTouchedColumnsSerde() throws IOException {
+    
+    ParameterVector vec_gradient = new ParameterVector();
+    vec_gradient.parameter_vector = new DenseMatrix(19, 100);
+    vec_gradient.SuperstepRecords = 1234;
+    vec_gradient.touched_columns = new int[] { 0, 42, 99 };
+    
+    ParameterVector vec_gradient_deserialized = new ParameterVector();
+    vec_gradient_deserialized.Deserialize(vec_gradient.Serialize());
+    
+    assertEquals( 1234, vec_gradient_deserialized.SuperstepRecords );
+    assertEquals( 3, vec_gradient_deserialized.touched_columns.length );
+    assertEquals( 42, vec_gradient_deserialized.touched_columns[1] );
+    
+    // none at all isn't the same as not saying
+    vec_gradient.touched_columns = new int[0];
+    vec_gradient_deserialized.Deserialize(vec_gradient.Serialize());
+    assertEquals( 0, vec_gradient_deserialized.touched_columns.length );
+    
+    vec_gradient.touched_columns = null;
+    vec_gradient_deserialized.Deserialize(vec_gradient.Serialize());
+    assertNull( vec_gradient_deserialized.touched_columns );
+    
+  }
+  
+  public void testWorkerMetricsSerde() throws IOException {
+    
+    POLRMetrics metrics = new POLRMetrics();
+    for (int x = 0; x < 100; x++) {
+      metrics.AddPhaseTime(POLRMetrics.PHASE_TRAIN, 1000);
+    }
+    metrics.AddPhaseTime(POLRMetrics.PHASE_TRAIN, 1000000);
+    metrics.AddPhaseTime(POLRMetrics.PHASE_READ, 500);
+    metrics.SuperstepRecords = 101;
+    metrics.SuperstepNanos = 1000000000L;
+    
+    Matrix m = new DenseMatrix(19, 100);
+    m.set(0, 1, 0.1);
+    
+    ParameterVector vec_gradient = new ParameterVector();
+    vec_gradient.parameter_vector = m;
+    vec_gradient.WorkerMetrics = metrics.PhaseReport();
+    
+    byte[] buf = vec_gradient.Serialize();
+    assertEquals( buf.length, vec_gradient.SerializedBytes );
+    
+    ParameterVector vec_gradient_deserialized = new ParameterVector();
+    vec_gradient_deserialized.Deserialize(buf);
+    
+    assertEquals( 0.1, vec_gradient_deserialized.parameter_vector.get(0, 1) );
+    assertEquals( vec_gradient.WorkerMetrics, vec_gradient_deserialized.WorkerMetrics );
+    assertEquals( 1100000, vec_gradient_deserialized.WorkerMetrics.get("train.ns").longValue() );
+    assertEquals( 101, vec_gradient_deserialized.WorkerMetrics.get("train.count").longValue() );
+    // 1000ns falls in the [512, 1024) bucket, reported as its upper bound
+    assertEquals( 1024, vec_gradient_deserialized.WorkerMetrics.get("train.p50.ns").longValue() );
+    assertEquals( 1024, vec_gradient_deserialized.WorkerMetrics.get("train.p99.ns").longValue() );
+    assertEquals( 101, vec_gradient_deserialized.WorkerMetrics.get("records.per.sec").longValue() );
+    
+    // without metrics (e.g. the master's broadcast) nothing extra goes out
+    vec_gradient.WorkerMetrics = null;
+    vec_gradient_deserialized.Deserialize(vec_gradient.Serialize());
+    assertNull( vec_gradient_deserialized.WorkerMetrics );
+    
+  }
+  
 }
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorUpdatable;
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * Round trips through ParameterVectorCodec, heap and direct
+ *
+ * @author jpatterson
+ *
+ */
+public class TestParameterVectorCodec extends TestCase {
+
+  public void testRoundTrip() throws IOException {
+
+    for (boolean direct : new boolean[] { false, true }) {
+
+      ParameterVectorCodec codec = new ParameterVectorCodec(direct);
+
+      ParameterVector msg = new ParameterVector();
+      msg.SrcWorkerPassCount = 3;
+      msg.GlobalPassCount = 7;
+      msg.TrainedRecords = 2500;
+      msg.AvgLogLikelihood = -1.368f;
+      msg.PercentCorrect = 72.68f;
+      msg.SuperstepRecords = 1234;
+      msg.parameter_vector = TestingUtils.randomBeta(new Random(42),
+          new FlatDenseMatrix(19, 1001));
+      msg.touched_columns = new int[] { 0, 5, 1000 };
+      msg.WorkerMetrics = new LinkedHashMap<String,Long>();
+      msg.WorkerMetrics.put("records", 2500L);
+      msg.WorkerMetrics.put("train.ns", 123456789L);
+
+      ByteBuffer buf = codec.Encode(msg);
+      assertEquals(direct, buf.isDirect());
+      assertEquals(msg.SerializedBytes, buf.remaining());
+      assertTrue(ParameterVectorCodec.IsEncoded(buf));
+
+      ParameterVector back = ParameterVectorCodec.Decode(buf);
+      assertEquals(0, buf.remaining());
+
+      assertEquals(3, back.SrcWorkerPassCount);
+      assertEquals(7, back.GlobalPassCount);
+      assertEquals(2500, back.TrainedRecords);
+      assertEquals(-1.368f, back.AvgLogLikelihood);
+      assertEquals(72.68f, back.PercentCorrect);
+      assertEquals(1234, back.SuperstepRecords);
+      assertTrue(back.parameter_vector instanceof FlatDenseMatrix);
+      TestingUtils.assertSameMatrix(msg.parameter_vector,
+          back.parameter_vector);
+      assertEquals(3, back.touched_columns.length);
+      assertEquals(1000, back.touched_columns[2]);
+      assertEquals(123456789L, back.WorkerMetrics.get("train.ns").longValue());
+
+      // the buffer goes back to the pool and gets used again
+      codec.Release(buf);
+      ByteBuffer again = codec.Encode(msg);
+      assertSame(buf, again);
+      assertEquals(1, codec.getAllocatedBuffers());
+
+    }
+
+  }
+
+  public void testDeltaFloatAndReuse() throws IOException {
+
+    ParameterVectorCodec codec = new ParameterVectorCodec(true);
+
+    ParameterVector delta = new ParameterVector();
+    delta.GradientDelta = 1;
+    delta.gamma_columns = new int[] { 3, 17, 9000 };
+    delta.gamma = new DenseMatrix(19, 3);
+    delta.gamma.set(0, 0, 0.25);
+    delta.gamma.set(18, 2, -1.5);
+
+    ParameterVector back = ParameterVectorCodec.Decode(codec.Encode(delta));
+    assertEquals(1, back.GradientDelta);
+    assertNull(back.parameter_vector);
+    assertNull(back.touched_columns);
+    assertNull(back.WorkerMetrics);
+    assertEquals(9000, back.gamma_columns[2]);
+    TestingUtils.assertSameMatrix(delta.gamma, back.gamma);
+
+    FloatDenseMatrix beta = new FloatDenseMatrix(
+        TestingUtils.randomBeta(new Random(7), new FlatDenseMatrix(19, 100)));
+    ParameterVector floats = new ParameterVector();
+    floats.parameter_vector = beta;
+    ByteBuffer buf = codec.Encode(floats);
+    // 4 bytes per coefficient
+    assertTrue(buf.remaining() < 19 * 100 * 8);
+
+    ParameterVector reuse = new ParameterVector();
+    Matrix into = new FloatDenseMatrix(19, 100);
+    reuse.parameter_vector = into;
+    assertSame(reuse, ParameterVectorCodec.Decode(buf, reuse));
+    assertSame(into, reuse.parameter_vector);
+    TestingUtils.assertSameMatrix(beta, reuse.parameter_vector);
+
+  }
+
+  public void testUpdatableReadsBothFormats() throws IOException {
+
+    ParameterVector msg = new ParameterVector();
+    msg.SrcWorkerPassCount = 2;
+    msg.parameter_vector = TestingUtils.randomBeta(new Random(1),
+        new FlatDenseMatrix(4, 50));
+
+    // the old format, handed over in a direct buffer
+    byte[] bytes = msg.Serialize();
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes);
+    direct.flip();
+
+    ParameterVectorUpdatable old = new ParameterVectorUpdatable();
+    old.fromBytes(direct);
+    assertEquals(2, old.get().SrcWorkerPassCount);
+    TestingUtils.assertSameMatrix(msg.parameter_vector,
+        old.get().parameter_vector);
+
+    // and the codec's
+    ParameterVectorCodec codec = new ParameterVectorCodec(true);
+    ParameterVectorUpdatable out = new ParameterVectorUpdatable(msg);
+    out.setCodec(codec);
+    ByteBuffer buf = out.toBytes();
+
+    ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+    in.fromBytes(buf);
+    assertEquals(2, in.get().SrcWorkerPassCount);
+    TestingUtils.assertSameMatrix(msg.parameter_vector,
+        in.get().parameter_vector);
+
+    out.release();
+    out.toBytes();
+    assertEquals(1, codec.getAllocatedBuffers());
+
+    // a message without one of its own still Serialize()s
+    assertFalse(ParameterVectorCodec.IsEncoded(new ParameterVectorUpdatable(
+        msg).toBytes()));
+
+  }
+
+  public void testUpdatableDecodesIntoReuse() throws IOException {
+
+    ParameterVector msg = new ParameterVector();
+    msg.SrcWorkerPassCount = 3;
+    msg.parameter_vector = TestingUtils.randomBeta(new Random(7),
+        new FlatDenseMatrix(4, 300));
+
+    ParameterVectorUpdatable out = new ParameterVectorUpdatable(msg);
+    out.setCodec(new ParameterVectorCodec(false));
+
+    // what a worker does with the last superstep's broadcast
+    ParameterVector reuse = new ParameterVector();
+    FlatDenseMatrix into = new FlatDenseMatrix(4, 300);
+    reuse.parameter_vector = into;
+
+    ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+    in.fromBytes(out.toBytes());
+    assertSame(reuse, in.Decode(reuse));
+    assertSame(into, reuse.parameter_vector);
+    assertSame(reuse, in.get());
+    assertEquals(3, in.get().SrcWorkerPassCount);
+    TestingUtils.assertSameMatrix(msg.parameter_vector, into);
+
+    // read the once, a later reuse is ignored
+    assertSame(reuse, in.Decode(new ParameterVector()));
+
+  }
+
+  public void testUpdatableThrowsOnTruncatedMessage() {
+
+    ParameterVector msg = new ParameterVector();
+    msg.parameter_vector = TestingUtils.randomBeta(new Random(7),
+        new FlatDenseMatrix(4, 300));
+
+    ParameterVectorUpdatable out = new ParameterVectorUpdatable(msg);
+    out.setCodec(new ParameterVectorCodec(false));
+    ByteBuffer buf = out.toBytes();
+    buf.limit(buf.limit() / 2);
+
+    ParameterVector reuse = new ParameterVector();
+    ParameterVectorUpdatable in = new ParameterVectorUpdatable();
+    in.setSource("worker 3");
+    in.fromBytes(buf.slice());
+    try {
+      in.Decode(reuse);
+      fail("half a message decoded");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("worker 3"));
+      assertTrue(e.getCause() instanceof IOException);
+    }
+
+    // stays unreadable rather than handing out the partly read reuse
+    try {
+      in.get();
+      fail("half a message decoded");
+    } catch (IllegalStateException e) {}
+
+    // until the next message
+    in.fromBytes(out.toBytes());
+    TestingUtils.assertSameMatrix(msg.parameter_vector,
+        in.get().parameter_vector);
+
+  }
+
+}
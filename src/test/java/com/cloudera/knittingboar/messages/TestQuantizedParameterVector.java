@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.messages;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.classifier.sgd.UniformPrior;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.MatrixQuantizer;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorCodec;
+import com.cloudera.knittingboar.sgd.ParallelOnlineLogisticRegression;
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * Quantized transport: the rounding stays within half a step per block, a
+ * model the receiver replaces stays within that every superstep, the error
+ * feedback cancels the rounding out over a stream of gradient deltas, and two
+ * workers training through quantized updates and broadcasts end up about as
+ * accurate as they do at full precision
+ *
+ * @author jpatterson
+ *
+ */
+public class TestQuantizedParameterVector extends TestCase {
+
+  private static Matrix send(ParameterVector msg) throws IOException {
+    ParameterVector back = new ParameterVector();
+    back.Deserialize(msg.Serialize());
+    return (back.GradientDelta == 1) ? back.gamma : back.parameter_vector;
+  }
+
+  public void testRoundTrip() throws IOException {
+
+    FlatDenseMatrix beta = TestingUtils.randomBeta(new Random(5),
+        new FlatDenseMatrix(19, 1000));
+    ParameterVector full = new ParameterVector();
+    full.parameter_vector = beta;
+    int fullBytes = full.Serialize().length;
+
+    for (int bits : new int[] { 8, 16 }) {
+
+      MatrixQuantizer quantizer = new MatrixQuantizer(19, 1000, bits);
+      ParameterVector msg = new ParameterVector();
+      msg.parameter_vector = beta;
+      msg.quantized = quantizer.Quantize(beta);
+
+      byte[] bytes = msg.Serialize();
+      assertTrue(bytes.length * (64 / bits) < fullBytes * 1.1);
+      assertTrue(quantizer.getCompressionRatio() > 0.9 * 64 / bits);
+
+      ParameterVector back = new ParameterVector();
+      back.Deserialize(bytes);
+
+      // every value within half a step of its block's scale
+      float[] scales = msg.quantized.getScales();
+      double[] sent = beta.getValues();
+      double[] got = ((FlatDenseMatrix) back.parameter_vector).getValues();
+      for (int x = 0; x < sent.length; x++) {
+        assertEquals(sent[x], got[x], scales[x / 256] * 0.5 + 1e-12);
+      }
+
+      // and the codec agrees with Serialize()
+      ParameterVector decoded = ParameterVectorCodec
+          .Decode(new ParameterVectorCodec(false).Encode(msg));
+      double[] codec = ((FlatDenseMatrix) decoded.parameter_vector).getValues();
+      for (int x = 0; x < sent.length; x++) {
+        assertEquals(got[x], codec[x], 0.0);
+      }
+
+    }
+
+  }
+
+  public void testGradientDelta() throws IOException {
+
+    MatrixQuantizer quantizer = new MatrixQuantizer(2, 100, 16);
+
+    ParameterVector msg = new ParameterVector();
+    msg.GradientDelta = 1;
+    msg.gamma_columns = new int[] { 7, 90 };
+    msg.gamma = new DenseMatrix(2, 2);
+    msg.gamma.set(0, 0, 0.5);
+    msg.gamma.set(1, 1, -0.25);
+    msg.quantized = quantizer.Quantize(msg.gamma, msg.gamma_columns);
+
+    Matrix got = send(msg);
+    assertEquals(2, got.numCols());
+    assertEquals(0.5, got.get(0, 0), 1e-4);
+    assertEquals(-0.25, got.get(1, 1), 1e-4);
+    assertEquals(0.0, got.get(1, 0), 1e-4);
+
+  }
+
+  public void testErrorFeedback() throws IOException {
+
+    FlatDenseMatrix delta = TestingUtils.randomBeta(new Random(9),
+        new FlatDenseMatrix(4, 500));
+    double[] sent = delta.getValues();
+    int[] columns = new int[500];
+    for (int col = 0; col < columns.length; col++) {
+      columns[col] = col;
+    }
+    int rounds = 50;
+
+    // the same delta every superstep, added up at the receiver
+    MatrixQuantizer feedback = new MatrixQuantizer(4, 500, 8);
+    MatrixQuantizer plain = new MatrixQuantizer(4, 500, 8);
+    double[] sum = new double[sent.length];
+    double[] plainSum = new double[sent.length];
+    float[] scales = null;
+
+    for (int r = 0; r < rounds; r++) {
+
+      ParameterVector msg = new ParameterVector();
+      msg.GradientDelta = 1;
+      msg.gamma_columns = columns;
+      msg.gamma = delta;
+      msg.quantized = feedback.Quantize(delta, columns);
+      scales = msg.quantized.getScales();
+      double[] got = ((FlatDenseMatrix) send(msg)).getValues();
+
+      // what it'd be rounding each one on its own
+      msg.quantized = plain.Quantize(delta);
+      double[] rounded = ((FlatDenseMatrix) send(msg)).getValues();
+
+      for (int x = 0; x < sum.length; x++) {
+        sum[x] += got[x];
+        plainSum[x] += rounded[x];
+      }
+
+    }
+
+    // summed over the deltas, within the last one's rounding of what was
+    // sent; without the feedback the rounding piles up every superstep
+    double error = 0;
+    double plainError = 0;
+    for (int x = 0; x < sent.length; x++) {
+      assertEquals(rounds * sent[x], sum[x], scales[x / 256] * 0.5 + 1e-6);
+      error += Math.abs(sum[x] - rounds * sent[x]);
+      plainError += Math.abs(plainSum[x] - rounds * sent[x]);
+    }
+    System.out.println("8 bit error summed over " + rounds + " deltas: "
+        + error / sent.length + " with feedback, " + plainError / sent.length
+        + " without");
+    assertTrue(error < plainError / 10);
+
+  }
+
+  public void testReplacedModels() throws IOException {
+
+    Random rnd = new Random(21);
+    FlatDenseMatrix beta = TestingUtils.randomBeta(new Random(13),
+        new FlatDenseMatrix(4, 500));
+    double[] values = beta.getValues();
+
+    // a worker's quantizer has a residual from its gradient deltas, the full
+    // models it sends mustn't pick it up
+    MatrixQuantizer quantizer = new MatrixQuantizer(4, 500, 8);
+    quantizer.Quantize(TestingUtils.randomBeta(new Random(14),
+        new FlatDenseMatrix(4, 500)), null);
+
+    Matrix model = null;
+    for (int superstep = 0; superstep < 10; superstep++) {
+
+      // the model moves on a little every superstep
+      for (int x = 0; x < values.length; x++) {
+        values[x] += 0.05 * rnd.nextGaussian();
+      }
+
+      ParameterVector msg = new ParameterVector();
+      msg.parameter_vector = beta;
+      msg.quantized = quantizer.Quantize(beta);
+      float[] scales = msg.quantized.getScales();
+
+      // the receiver replaces its model with what it got
+      model = send(msg);
+
+      // within half a step of this superstep's model, every superstep
+      double[] got = ((FlatDenseMatrix) model).getValues();
+      for (int x = 0; x < values.length; x++) {
+        assertEquals(values[x], got[x], scales[x / 256] * 0.5 + 1e-6);
+      }
+
+    }
+
+  }
+
+  private static int categories = 3;
+  private static int features = 100;
+
+  /**
+   * Two workers, 10 supersteps of 100 records each, full betas averaged
+   * through the transport
+   *
+   * @return percent correct on 500 held out records
+   */
+  private static double trainTwoWorkers(int bits) throws IOException {
+
+    ParallelOnlineLogisticRegression[] workers = new ParallelOnlineLogisticRegression[2];
+    MatrixQuantizer[] quantizers = new MatrixQuantizer[2];
+    for (int w = 0; w < 2; w++) {
+      // Mahout's default schedule, which takes bigger steps early on: each
+      // worker only sees 1000 records
+      workers[w] = TestingUtils.buildPOLR(categories, features,
+          new UniformPrior()).alpha(1 - 1.0e-3).stepOffset(10)
+          .decayExponent(0.5);
+      if (bits > 0) {
+        quantizers[w] = new MatrixQuantizer(categories - 1, features, bits);
+      }
+    }
+    MatrixQuantizer broadcast = (bits > 0) ? new MatrixQuantizer(
+        categories - 1, features, bits) : null;
+
+    Random rnd = new Random(17);
+    Vector p = new DenseVector(categories);
+
+    for (int superstep = 0; superstep < 10; superstep++) {
+
+      FlatDenseMatrix average = new FlatDenseMatrix(categories - 1, features);
+      for (int w = 0; w < 2; w++) {
+
+        for (int x = 0; x < 100; x++) {
+          int actual = rnd.nextInt(categories);
+          Vector v = TestingUtils.generateRecord(rnd, actual, features);
+          workers[w].scoreAndTrain(actual, v, p);
+        }
+
+        ParameterVector update = new ParameterVector();
+        update.parameter_vector = workers[w].noReallyGetBeta();
+        if (bits > 0) {
+          update.quantized = quantizers[w].Quantize(update.parameter_vector);
+        }
+        Matrix got = send(update);
+        for (int col = 0; col < features; col++) {
+          for (int row = 0; row < categories - 1; row++) {
+            average.setQuick(row, col, average.getQuick(row, col)
+                + got.getQuick(row, col) / 2);
+          }
+        }
+
+      }
+
+      ParameterVector global = new ParameterVector();
+      global.parameter_vector = average;
+      if (bits > 0) {
+        global.quantized = broadcast.Quantize(average);
+      }
+      Matrix got = send(global);
+      for (int w = 0; w < 2; w++) {
+        workers[w].SetBeta(got);
+      }
+
+    }
+
+    int correct = 0;
+    for (int x = 0; x < 500; x++) {
+      int actual = rnd.nextInt(categories);
+      if (workers[0].classifyFull(
+          TestingUtils.generateRecord(rnd, actual, features))
+          .maxValueIndex() == actual) {
+        correct++;
+      }
+    }
+    return correct / 5.0;
+
+  }
+
+  public void testTrainingThroughQuantizedTransport() throws IOException {
+
+    double full = trainTwoWorkers(0);
+    double eight = trainTwoWorkers(8);
+    double sixteen = trainTwoWorkers(16);
+    System.out.println("Percent correct: full " + full + ", 16 bit " + sixteen
+        + ", 8 bit " + eight);
+
+    assertTrue(full > 85);
+    assertTrue(sixteen > full - 2);
+    assertTrue(eight > full - 5);
+
+  }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.metrics;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the sampled metric estimate against the plain two pass mean and
+ * variance, merged or not, and that the 1 in N sampler samples about 1 in N
+ * 
+ * @author jpatterson
+ *
+ */
+public class TestRunningEstimate extends TestCase {
+  
+  public void testMeanAndVariance() {
+    
+    Random rnd = new Random(11);
+    double[] x = new double[1000];
+    for (int i = 0; i < x.length; i++) {
+      x[i] = 3.0 + 2.0 * rnd.nextGaussian();
+    }
+    
+    double mean = 0;
+    for (int i = 0; i < x.length; i++) {
+      mean += x[i];
+    }
+    mean /= x.length;
+    double variance = 0;
+    for (int i = 0; i < x.length; i++) {
+      variance += (x[i] - mean) * (x[i] - mean);
+    }
+    variance /= (x.length - 1);
+    
+    RunningEstimate all = new RunningEstimate();
+    RunningEstimate first = new RunningEstimate();
+    RunningEstimate second = new RunningEstimate();
+    for (int i = 0; i < x.length; i++) {
+      all.Add(x[i]);
+      if (i < 300) {
+        first.Add(x[i]);
+      } else {
+        second.Add(x[i]);
+      }
+    }
+    first.Merge(second);
+    
+    assertEquals(1000, all.getCount());
+    assertEquals(mean, all.getMean(), 1e-9);
+    assertEquals(variance, all.getVariance(), 1e-9);
+    assertEquals(1.96 * Math.sqrt(variance / 1000),
+        all.getConfidenceInterval95(), 1e-9);
+    
+    assertEquals(1000, first.getCount());
+    assertEquals(mean, first.getMean(), 1e-9);
+    assertEquals(variance, first.getVariance(), 1e-9);
+    
+    // the true mean is 3, well inside a 95% interval this wide
+    assertTrue(Math.abs(all.getMean() - 3.0) < 2 * all.getConfidenceInterval95());
+    
+    all.Reset();
+    assertEquals(0, all.getCount());
+    assertEquals(0.0, all.getConfidenceInterval95());
+    
+  }
+  
+  public void testSampleRate() {
+    
+    POLRMetrics metrics = new POLRMetrics();
+    assertFalse(metrics.IsSampling());
+    
+    metrics.SetSampleRate(10, 42);
+    assertTrue(metrics.IsSampling());
+    
+    int samples = 0;
+    for (int i = 0; i < 100000; i++) {
+      if (metrics.TakeSample()) {
+        samples++;
+      }
+    }
+    assertTrue(samples > 9000 && samples < 11000);
+    
+    metrics.SetSampleRate(1, 42);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(metrics.TakeSample());
+    }
+    
+  }
+  
+}
@@ -17,8 +17,46 @@
 
 package com.cloudera.knittingboar.records;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
+import org.apache.mahout.math.RandomAccessSparseVector;
+
 public class TestCSVBasedDatasetRecordFactory extends TestCase {
 
+  private static CSVBasedDatasetRecordFactory factory() {
+    
+    Map<String,String> types = new HashMap<String,String>();
+    types.put("x", "numeric");
+    CSVBasedDatasetRecordFactory csv = new CSVBasedDatasetRecordFactory(
+        "label", types);
+    csv.firstLine("x,label");
+    return csv;
+    
+  }
+  
+  /**
+   * Two factories parsing different parts of a split (one per training
+   * thread) have to give a label the same category id, whichever of them
+   * sees it first
+   */
+  public void testSharedTargetDictionary() throws Exception {
+    
+    CSVBasedDatasetRecordFactory main = factory();
+    CSVBasedDatasetRecordFactory thread = factory();
+    thread.shareTargetDictionary(main);
+    
+    assertEquals(0, main.processLine("1.0,cat", new RandomAccessSparseVector(10)));
+    assertEquals(1, thread.processLine("2.0,dog", new RandomAccessSparseVector(10)));
+    assertEquals(1, main.processLine("3.0,dog", new RandomAccessSparseVector(10)));
+    assertEquals(0, thread.processLine("4.0,cat", new RandomAccessSparseVector(10)));
+    
+    // on its own, a factory numbers the labels in the order it sees them
+    CSVBasedDatasetRecordFactory alone = factory();
+    assertEquals(0, alone.processLine("2.0,dog", new RandomAccessSparseVector(10)));
+    
+  }
+  
 }
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.classifier.sgd.L1;
+import org.apache.mahout.classifier.sgd.PriorFunction;
+import org.apache.mahout.classifier.sgd.UniformPrior;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * Checks the flat training kernel against the generic Matrix based train();
+ * TrainingLoopBenchmark compares their speed
+ *
+ * @author jpatterson
+ *
+ */
+public class TestFlatTrainingKernel extends TestCase {
+
+  private static int categories = 20;
+  private static int features = 10000;
+  private static int nonZeros = 50;
+
+  private Vector[] records;
+  private int[] labels;
+
+  private void generateRecords(int count) {
+    this.labels = new int[count];
+    this.records = TestingUtils.randomRecords(this.labels, categories,
+        features, nonZeros);
+  }
+
+  private void checkMatches(PriorFunction prior) {
+
+    generateRecords(500);
+
+    ParallelOnlineLogisticRegression generic = TestingUtils.buildPOLR(
+        categories, features, prior);
+    ParallelOnlineLogisticRegression flat = TestingUtils.buildPOLR(
+        categories, features, prior).flatBeta(true);
+
+    assertFalse(generic.isFlatBeta());
+    assertTrue(flat.isFlatBeta());
+
+    for (int x = 0; x < this.records.length; x++) {
+      generic.train(this.labels[x], this.records[x]);
+      flat.train(this.labels[x], this.records[x]);
+    }
+
+    Matrix a = generic.noReallyGetBeta();
+    Matrix b = flat.noReallyGetBeta();
+    for (int row = 0; row < categories - 1; row++) {
+      for (int col = 0; col < features; col++) {
+        assertEquals(a.get(row, col), b.get(row, col), 1.0e-9);
+      }
+    }
+    assertEquals(generic.getStep(), flat.getStep());
+
+  }
+
+  public void testFlatKernelMatchesGeneric() {
+    checkMatches(new UniformPrior());
+  }
+
+  public void testFlatKernelMatchesGenericL1() {
+    checkMatches(new L1());
+  }
+
+  public void testPrimitiveSparseVector() {
+
+    PrimitiveSparseVector v = new PrimitiveSparseVector(features, 2);
+
+    // out of order, past the initial capacity
+    v.set(500, 5.0);
+    v.set(3, 0.3);
+    v.set(9000, 90.0);
+    v.set(42, 4.2);
+    v.set(500, v.get(500) + 1.0);
+
+    assertEquals(4, v.getNumNondefaultElements());
+    assertEquals(6.0, v.get(500), 0.0);
+    assertEquals(0.0, v.get(501), 0.0);
+
+    int[] expected = new int[] {3, 42, 500, 9000};
+    for (int k = 0; k < expected.length; k++) {
+      assertEquals(expected[k], v.getIndexes()[k]);
+    }
+
+    // setting 0 drops the entry
+    v.set(42, 0.0);
+    assertEquals(3, v.getNumNondefaultElements());
+    assertEquals(500, v.getIndexes()[1]);
+    assertEquals(6.0 + 0.3 + 90.0, v.zSum(), 1.0e-9);
+
+    v.clear();
+    assertEquals(0, v.getNumNondefaultElements());
+    assertEquals(0.0, v.get(500), 0.0);
+
+  }
+
+  /**
+   * the flat kernel reading a reused PrimitiveSparseVector in place should
+   * train exactly like the generic path on RandomAccessSparseVectors
+   */
+  public void testFlatKernelReadsPrimitiveSparseVector() {
+
+    generateRecords(500);
+
+    ParallelOnlineLogisticRegression generic = TestingUtils.buildPOLR(
+        categories, features, new L1());
+    ParallelOnlineLogisticRegression flat = TestingUtils.buildPOLR(
+        categories, features, new L1()).flatBeta(true);
+
+    PrimitiveSparseVector instance = new PrimitiveSparseVector(features);
+
+    for (int x = 0; x < this.records.length; x++) {
+
+      instance.clear();
+      Iterator<Vector.Element> it = this.records[x].iterateNonZero();
+      while (it.hasNext()) {
+        Vector.Element e = it.next();
+        instance.set(e.index(), e.get());
+      }
+
+      generic.train(this.labels[x], this.records[x]);
+      flat.train(this.labels[x], instance);
+
+    }
+
+    Matrix a = generic.noReallyGetBeta();
+    Matrix b = flat.noReallyGetBeta();
+    for (int row = 0; row < categories - 1; row++) {
+      for (int col = 0; col < features; col++) {
+        assertEquals(a.get(row, col), b.get(row, col), 1.0e-9);
+      }
+    }
+
+  }
+
+  private static void checkViewRow(Matrix m) {
+
+    m.set(1, 2, 3.0);
+    m.set(1, 4, 5.0);
+
+    Vector row = m.viewRow(1);
+    assertEquals(6, row.size());
+    assertEquals(3.0, row.get(2), 0.0);
+    assertEquals(8.0, row.zSum(), 0.0);
+
+    // writes through the view land in the matrix
+    row.set(0, 7.0);
+    row.assign(2.0);
+    assertEquals(2.0, m.get(1, 0), 0.0);
+    assertEquals(2.0, m.get(1, 5), 0.0);
+    assertEquals(0.0, m.get(0, 5), 0.0);
+    assertEquals(0.0, m.get(2, 5), 0.0);
+
+    // and the view sees writes to the matrix
+    m.set(1, 3, 0.0);
+    int nonZeros = 0;
+    Iterator<Vector.Element> it = row.iterateNonZero();
+    while (it.hasNext()) {
+      assertTrue(3 != it.next().index());
+      nonZeros++;
+    }
+    assertEquals(5, nonZeros);
+
+  }
+
+  public void testViewRow() {
+    checkViewRow(new FlatDenseMatrix(3, 6));
+    checkViewRow(new FloatDenseMatrix(3, 6));
+  }
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.classifier.sgd.UniformPrior;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+/**
+ * Checks the cached annealing schedules in POLR against the closed form
+ * versions; TrainingLoopBenchmark times them in the worker's loop
+ *
+ * @author jpatterson
+ *
+ */
+public class TestLearningRateSchedules extends TestCase {
+
+  private static int categories = 5;
+  private static int features = 1000;
+
+  private static double alpha = 1 - 1.0e-3;
+  private static int stepOffset = 1000;
+  private static double decayExponent = 0.9;
+  private static double learningRate = 10;
+  private static int perTermAnnealingOffset = 20;
+
+  private ParallelOnlineLogisticRegression buildPOLR() {
+
+    return new ParallelOnlineLogisticRegression(categories, features,
+        new UniformPrior()).alpha(alpha).stepOffset(stepOffset)
+        .decayExponent(decayExponent).lambda(1.0e-4)
+        .learningRate(learningRate);
+
+  }
+
+  private static double closedFormLearningRate(int step) {
+    return learningRate * Math.pow(alpha, step)
+        * Math.pow(step + stepOffset, -decayExponent);
+  }
+
+  private static double closedFormPerTermRate(double count) {
+    return Math.sqrt(perTermAnnealingOffset / count);
+  }
+
+  /**
+   * @return the per feature update counts we expect polr to have
+   */
+  private double[] train(ParallelOnlineLogisticRegression polr, int records) {
+
+    double[] counts = new double[features];
+    Arrays.fill(counts, perTermAnnealingOffset);
+
+    Random rnd = new Random(7);
+    for (int x = 0; x < records; x++) {
+      Vector v = new RandomAccessSparseVector(features);
+      for (int k = 0; k < 10; k++) {
+        v.set(rnd.nextInt(features), 1.0);
+      }
+      Iterator<Vector.Element> nonZeros = v.iterateNonZero();
+      while (nonZeros.hasNext()) {
+        counts[nonZeros.next().index()]++;
+      }
+      polr.train(rnd.nextInt(categories), v);
+      // the worker ends every record, which skips a step, and closes once
+      // a superstep
+      polr.endRecord();
+      if (x % 700 == 0) {
+        polr.close();
+      }
+    }
+
+    return counts;
+
+  }
+
+  private void checkMatchesClosedForm(ParallelOnlineLogisticRegression polr,
+      double[] counts) {
+
+    assertEquals(closedFormLearningRate(polr.getStep()),
+        polr.currentLearningRate(), 1.0e-12);
+
+    for (int j = 0; j < features; j++) {
+      assertEquals(closedFormPerTermRate(counts[j]),
+          polr.perTermLearningRate(j), 1.0e-15);
+    }
+
+  }
+
+  public void testCachedRatesMatchClosedForm() {
+
+    ParallelOnlineLogisticRegression polr = buildPOLR();
+    checkMatchesClosedForm(polr, train(polr, 0));
+
+    checkMatchesClosedForm(polr, train(polr, 2000));
+
+    // changing the schedule has to drop the cached step rate
+    polr.learningRate(5);
+    assertEquals(5 * Math.pow(alpha, polr.getStep())
+        * Math.pow(polr.getStep() + stepOffset, -decayExponent),
+        polr.currentLearningRate(), 1.0e-12);
+
+  }
+
+  public void testCachedRatesSurviveSaveLoad() throws IOException {
+
+    ParallelOnlineLogisticRegression polr = buildPOLR();
+    double[] counts = train(polr, 500);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    polr.write(new DataOutputStream(bytes));
+
+    ParallelOnlineLogisticRegression loaded = new ParallelOnlineLogisticRegression();
+    loaded.readFields(new DataInputStream(new ByteArrayInputStream(bytes
+        .toByteArray())));
+
+    checkMatchesClosedForm(loaded, counts);
+    checkMatchesClosedForm(polr.copy(), counts);
+
+  }
+
+  /**
+   * Hogwild threads share the POLR, their records all have to land on the
+   * annealing schedule the same as one thread's would
+   */
+  public void testThreadsShareTheStep() throws InterruptedException {
+
+    final ParallelOnlineLogisticRegression polr = buildPOLR();
+    final int records = 5000;
+    Thread[] threads = new Thread[4];
+
+    for (int t = 0; t < threads.length; t++) {
+      final int seed = t;
+      threads[t] = new Thread() {
+        public void run() {
+          Random rnd = new Random(seed);
+          for (int x = 0; x < records; x++) {
+            Vector v = new RandomAccessSparseVector(features);
+            v.set(rnd.nextInt(features), 1.0);
+            polr.train(rnd.nextInt(categories), v);
+            polr.endRecord();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+
+    // two steps a record, like the single threaded worker
+    assertEquals(2 * records * threads.length, polr.getStep());
+    assertEquals(closedFormLearningRate(polr.getStep()),
+        polr.currentLearningRate(), 1.0e-12);
+
+    polr.close();
+    assertEquals(2 * records * threads.length + 1, polr.getStep());
+
+  }
+
+}
@@ -17,7 +17,19 @@
 
 package com.cloudera.knittingboar.sgd;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVectorUpdatable;
 
 import com.cloudera.knittingboar.records.RecordFactory;
 import com.cloudera.knittingboar.sgd.iterativereduce.POLRMasterNode;
@@ -99,4 +111,92 @@ public class TestPOLRMasterNode extends TestCase {
   
   
   
+  public void testMasterMergesGradientDeltas() {
+    
+    POLRMasterNode master = new POLRMasterNode();
+    master.setup(this.generateDebugConfigurationObject());
+    
+    // two workers, each touched a different set of columns
+    ParameterVector w0 = new ParameterVector();
+    w0.GradientDelta = 1;
+    w0.gamma_columns = new int[] { 1, 3 };
+    w0.gamma = new DenseMatrix(1, 2);
+    w0.gamma.set(0, 0, 2.0);
+    w0.gamma.set(0, 1, 4.0);
+    
+    ParameterVector w1 = new ParameterVector();
+    w1.GradientDelta = 1;
+    w1.gamma_columns = new int[] { 3 };
+    w1.gamma = new DenseMatrix(1, 1);
+    w1.gamma.set(0, 0, 2.0);
+    
+    List<ParameterVectorUpdatable> updates = new ArrayList<ParameterVectorUpdatable>();
+    updates.add(new ParameterVectorUpdatable(w0));
+    updates.add(new ParameterVectorUpdatable(w1));
+    
+    Matrix global = master.compute(updates, null).get().parameter_vector;
+    
+    assertEquals( 1.0, global.get(0, 1) );
+    assertEquals( 3.0, global.get(0, 3) );
+    assertEquals( 0.0, global.get(0, 0) );
+    
+    // second super step builds on the first
+    updates.add(new ParameterVectorUpdatable(w1));
+    updates.add(new ParameterVectorUpdatable(w1));
+    
+    global = master.compute(updates, null).get().parameter_vector;
+    
+    assertEquals( 1.0, global.get(0, 1) );
+    assertEquals( 5.0, global.get(0, 3) );
+    
+  }
+  
+  public void testStreamingMerge() {
+    
+    Configuration c = this.generateDebugConfigurationObject();
+    c.setBoolean("com.cloudera.knittingboar.setup.StreamingMerge", true);
+    
+    POLRMasterNode master = new POLRMasterNode();
+    master.setup(c);
+    
+    List<ParameterVectorUpdatable> updates = new ArrayList<ParameterVectorUpdatable>();
+    
+    for (int x = 0; x < 2; x++) {
+      
+      ParameterVector w = new ParameterVector();
+      w.SrcWorkerPassCount = 1;
+      w.parameter_vector = new DenseMatrix(1, 10);
+      w.parameter_vector.set(0, 2, 2.0 * (x + 1));
+      
+      ByteBuffer bytes = new ParameterVectorUpdatable(w).toBytes();
+      
+      // anything else deserializing one, e.g. a worker in the same JVM, is
+      // left alone
+      ParameterVectorUpdatable other = new ParameterVectorUpdatable();
+      other.fromBytes(bytes);
+      assertNotNull( other.get().parameter_vector );
+      
+      // what the master's RPC thread does when an update comes in
+      ParameterVectorUpdatable arrived = new POLRMasterNode.WorkerUpdate();
+      arrived.fromBytes(bytes);
+      
+      // already folded into the running sum
+      assertNull( arrived.get().parameter_vector );
+      updates.add(arrived);
+      
+    }
+    
+    Matrix global = master.compute(updates, null).get().parameter_vector;
+    
+    assertEquals( 3.0, global.get(0, 2) );
+    assertEquals( 0.0, global.get(0, 0) );
+    
+    try {
+      master.complete(new DataOutputStream(new ByteArrayOutputStream()));
+    } catch (IOException e) {
+      fail(e.toString());
+    }
+    
+  }
+  
 }
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.classifier.sgd.UniformPrior;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * AdaGrad and FTRL-Proximal plugged into POLR
+ *
+ * The data: 3 categories, 100 features, each category has its own 5 signal
+ * features and every record also gets 5 random noise features.
+ *
+ * @author jpatterson
+ *
+ */
+public class TestPOLROptimizers extends TestCase {
+
+  private static int categories = 3;
+  private static int features = 100;
+
+  /**
+   * @return percent correct over the last 500 of the 2000 training records
+   */
+  private static double train(ParallelOnlineLogisticRegression polr) {
+
+    Random rnd = new Random(11);
+    int correct = 0;
+
+    for (int x = 0; x < 2000; x++) {
+
+      int actual = rnd.nextInt(categories);
+      Vector v = TestingUtils.generateRecord(rnd, actual, features);
+
+      Vector p = new DenseVector(categories);
+      polr.scoreAndTrain(actual, v, p);
+      if (x >= 1500 && p.maxValueIndex() == actual) {
+        correct++;
+      }
+
+    }
+
+    return correct / 5.0;
+
+  }
+
+  public void testAdaGradLearns() {
+
+    // the optimizers replace the learning rate schedule and the prior
+    ParallelOnlineLogisticRegression polr = TestingUtils.buildPOLR(
+        categories, features, new UniformPrior()).optimizer(
+        new AdaGradOptimizer(categories, 0.1));
+
+    double percentCorrect = train(polr);
+    System.out.println("AdaGrad percent correct: " + percentCorrect);
+    assertTrue(percentCorrect > 90);
+
+  }
+
+  public void testFTRLLearnsSparseModel() {
+
+    ParallelOnlineLogisticRegression polr = TestingUtils.buildPOLR(
+        categories, features, new UniformPrior()).optimizer(
+        new FTRLProximalOptimizer(categories, 0.1, 1.0, 1.0, 1.0));
+
+    double percentCorrect = train(polr);
+    System.out.println("FTRL percent correct: " + percentCorrect);
+    assertTrue(percentCorrect > 90);
+
+    // the noise features should have been zeroed out by L1
+    Matrix beta = polr.noReallyGetBeta();
+    int nonZeros = 0;
+    for (int row = 0; row < categories - 1; row++) {
+      for (int col = 0; col < features; col++) {
+        if (0 != beta.get(row, col)) {
+          nonZeros++;
+        }
+      }
+    }
+    System.out.println("FTRL non-zeros: " + nonZeros + " of "
+        + (categories - 1) * features);
+    assertTrue(nonZeros < (categories - 1) * features / 2);
+
+  }
+
+  public void testFTRLSyncsToNewBeta() {
+
+    FTRLProximalOptimizer ftrl = new FTRLProximalOptimizer(categories, 0.1,
+        1.0, 1.0, 1.0);
+    ParallelOnlineLogisticRegression polr = TestingUtils.buildPOLR(
+        categories, features, new UniformPrior()).optimizer(ftrl);
+    train(polr);
+
+    // the master sends back an average
+    Matrix global = new DenseMatrix(categories - 1, features);
+    global.set(0, 0, 0.75);
+    global.set(1, 7, -1.25);
+    polr.SetBeta(global);
+
+    // a tiny step should leave the coordinates about where the master put them
+    // instead of snapping back to our local weights
+    ftrl.Update(polr.noReallyGetBeta(), 0, 0, 1.0e-6);
+    ftrl.Update(polr.noReallyGetBeta(), 1, 7, 1.0e-6);
+    ftrl.Update(polr.noReallyGetBeta(), 0, 50, 1.0e-6);
+
+    assertEquals(0.75, polr.noReallyGetBeta().get(0, 0), 1.0e-3);
+    assertEquals(-1.25, polr.noReallyGetBeta().get(1, 7), 1.0e-3);
+    assertEquals(0.0, polr.noReallyGetBeta().get(0, 50), 1.0e-3);
+
+  }
+
+}
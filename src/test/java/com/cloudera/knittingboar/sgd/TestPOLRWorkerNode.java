@@ -23,6 +23,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -39,10 +40,13 @@ import junit.framework.TestCase;
 
 import com.cloudera.iterativereduce.io.TextRecordParser;
 import com.cloudera.knittingboar.io.InputRecordsSplit;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
 import com.cloudera.knittingboar.records.RecordFactory;
 import com.cloudera.knittingboar.sgd.iterativereduce.POLRWorkerNode;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
 /**
@@ -326,4 +330,341 @@ public class TestPOLRWorkerNode extends TestCase {
   
   
   
+  /**
+   * Runs the same split with 1 and 4 Hogwild training threads - every record
+   * should get trained on exactly once either way
+   */
+  public void testMultiThreadedTraining() throws Exception {
+    
+    int[] thread_counts = new int[] { 1, 4 };
+    int[] trained = new int[ thread_counts.length ];
+    
+    for ( int t = 0; t < thread_counts.length; t++ ) {
+      
+      Configuration c = this.generateDebugConfigurationObject();
+      c.setInt( "com.cloudera.knittingboar.setup.TrainingThreads", thread_counts[t] );
+      c.setBoolean( "com.cloudera.knittingboar.setup.FlatTrainingKernel", true );
+      
+      POLRWorkerNode worker_model_builder = new POLRWorkerNode();
+      worker_model_builder.setup(c);
+      
+      JobConf job = new JobConf(defaultConf);
+      InputSplit[] splits = generateDebugSplits(workDir, job);
+      
+      TextRecordParser txt_reader = new TextRecordParser();
+      long len = Integer.parseInt(splits[0].toString().split(":")[2]
+          .split("\\+")[1]);
+      txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+      worker_model_builder.setRecordParser(txt_reader);
+      
+      trained[t] = worker_model_builder.compute().get().TrainedRecords;
+      
+    }
+    
+    assertTrue( trained[0] > 0 );
+    assertEquals( trained[0], trained[1] );
+    
+  }
+  
+  /**
+   * With a BatchSize of 15 the 40 record split should take 3 supersteps, and
+   * only the last one should report the iteration as complete
+   */
+  public void testMiniBatchSupersteps() throws Exception {
+    
+    Configuration c = this.generateDebugConfigurationObject();
+    c.setInt( "com.cloudera.knittingboar.setup.BatchSize", 15 );
+    
+    POLRWorkerNode worker_model_builder = new POLRWorkerNode();
+    worker_model_builder.setup(c);
+    
+    JobConf job = new JobConf(defaultConf);
+    InputSplit[] splits = generateDebugSplits(workDir, job);
+    
+    TextRecordParser txt_reader = new TextRecordParser();
+    long len = Integer.parseInt(splits[0].toString().split(":")[2]
+        .split("\\+")[1]);
+    txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+    worker_model_builder.setRecordParser(txt_reader);
+    
+    ParameterVector update = worker_model_builder.compute().get();
+    assertEquals( 15, update.TrainedRecords );
+    assertEquals( 0, update.IterationComplete );
+    
+    // mid pass, so we stay on the same iteration
+    assertTrue( worker_model_builder.IncrementIteration() );
+    update = worker_model_builder.compute().get();
+    assertEquals( 30, update.TrainedRecords );
+    assertEquals( 0, update.IterationComplete );
+    assertEquals( 0, update.CurrentIteration );
+    
+    assertTrue( worker_model_builder.IncrementIteration() );
+    update = worker_model_builder.compute().get();
+    assertEquals( 40, update.TrainedRecords );
+    assertEquals( 1, update.IterationComplete );
+    
+    // that was the only pass
+    assertFalse( worker_model_builder.IncrementIteration() );
+    
+  }
+  
+  
+  /**
+   * The ordered pipeline (3 vectorizer threads feeding the trainer) should
+   * train every record, in split order, so it ends up with exactly the same
+   * model as the plain single threaded loop
+   */
+  public void testPipelinedTraining() throws Exception {
+    
+    int[] vectorizer_counts = new int[] { 0, 3 };
+    POLRWorkerNode[] workers = new POLRWorkerNode[ vectorizer_counts.length ];
+    int[] trained = new int[ vectorizer_counts.length ];
+    
+    for ( int t = 0; t < vectorizer_counts.length; t++ ) {
+      
+      Configuration c = this.generateDebugConfigurationObject();
+      c.setInt( "com.cloudera.knittingboar.setup.VectorizerThreads", vectorizer_counts[t] );
+      c.setBoolean( "com.cloudera.knittingboar.setup.PipelineOrdered", true );
+      
+      workers[t] = new POLRWorkerNode();
+      workers[t].setup(c);
+      
+      JobConf job = new JobConf(defaultConf);
+      InputSplit[] splits = generateDebugSplits(workDir, job);
+      
+      TextRecordParser txt_reader = new TextRecordParser();
+      long len = Integer.parseInt(splits[0].toString().split(":")[2]
+          .split("\\+")[1]);
+      txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+      workers[t].setRecordParser(txt_reader);
+      
+      trained[t] = workers[t].compute().get().TrainedRecords;
+      
+    }
+    
+    assertTrue( trained[0] > 0 );
+    assertEquals( trained[0], trained[1] );
+    
+    for ( int x = 0; x < 10; x++ ) {
+      assertEquals( workers[0].polr.noReallyGetBeta().get(0, x),
+          workers[1].polr.noReallyGetBeta().get(0, x), 0.0 );
+    }
+    
+  }
+  
+  
+  /**
+   * FloatParameters only rounds what the worker sends: it still trains in
+   * double, and the update is its beta rounded to float
+   */
+  public void testFloatParametersTrainInDouble() throws Exception {
+    
+    Configuration c = this.generateDebugConfigurationObject();
+    c.setBoolean( "com.cloudera.knittingboar.setup.FloatParameters", true );
+    
+    POLRWorkerNode worker = new POLRWorkerNode();
+    worker.setup(c);
+    
+    JobConf job = new JobConf(defaultConf);
+    InputSplit[] splits = generateDebugSplits(workDir, job);
+    
+    TextRecordParser txt_reader = new TextRecordParser();
+    long len = Integer.parseInt(splits[0].toString().split(":")[2]
+        .split("\\+")[1]);
+    txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+    worker.setRecordParser(txt_reader);
+    
+    ParameterVector update = worker.compute().get();
+    
+    assertFalse( worker.polr.isFloatBeta() );
+    assertTrue( update.parameter_vector instanceof FloatDenseMatrix );
+    
+    Matrix beta = worker.polr.noReallyGetBeta();
+    for ( int x = 0; x < 10; x++ ) {
+      assertEquals( (float) beta.get(0, x),
+          update.parameter_vector.get(0, x), 0.0 );
+    }
+    
+  }
+
+  /**
+   * With an optimizer the worker sends only the columns it moved, not the
+   * dense beta
+   */
+  public void testOptimizerSendsTouchedColumns() throws Exception {
+
+    Configuration c = this.generateDebugConfigurationObject();
+    c.set( "com.cloudera.knittingboar.setup.Optimizer", "ftrl" );
+
+    POLRWorkerNode worker = new POLRWorkerNode();
+    worker.setup(c);
+
+    JobConf job = new JobConf(defaultConf);
+    InputSplit[] splits = generateDebugSplits(workDir, job);
+
+    TextRecordParser txt_reader = new TextRecordParser();
+    long len = Integer.parseInt(splits[0].toString().split(":")[2]
+        .split("\\+")[1]);
+    txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+    worker.setRecordParser(txt_reader);
+
+    ParameterVector update = worker.compute().get();
+
+    assertEquals( 1, update.GradientDelta );
+    assertNull( update.parameter_vector );
+
+    // beta started at 0, so the delta is beta itself on the columns sent and
+    // beta is 0 everywhere else
+    Matrix beta = worker.polr.noReallyGetBeta();
+    Set<Integer> sent = Sets.newHashSet();
+    for ( int k = 0; k < update.gamma_columns.length; k++ ) {
+      sent.add( update.gamma_columns[k] );
+      for ( int row = 0; row < beta.numRows(); row++ ) {
+        assertEquals( beta.get(row, update.gamma_columns[k]),
+            update.gamma.get(row, k), 1.0e-9 );
+      }
+    }
+    for ( int col = 0; col < beta.numCols(); col++ ) {
+      if ( !sent.contains(col) ) {
+        for ( int row = 0; row < beta.numRows(); row++ ) {
+          assertEquals( 0.0, beta.get(row, col), 0.0 );
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Three passes over the split with and without the vectorized record cache -
+   * passes 2 and 3 read the cache instead of the text, and should train the
+   * same records in the same order
+   */
+  public void testVectorCache() throws Exception {
+    
+    boolean[] use_cache = new boolean[] { false, true };
+    POLRWorkerNode[] workers = new POLRWorkerNode[ use_cache.length ];
+    int[] trained = new int[ use_cache.length ];
+    File cacheDir = Files.createTempDir();
+    
+    for ( int t = 0; t < use_cache.length; t++ ) {
+      
+      Configuration c = this.generateDebugConfigurationObject();
+      c.setInt( "app.iteration.count", 3 );
+      c.setBoolean( "com.cloudera.knittingboar.setup.VectorCache", use_cache[t] );
+      c.set( "com.cloudera.knittingboar.setup.VectorCacheDir", cacheDir.getPath() );
+      
+      workers[t] = new POLRWorkerNode();
+      workers[t].setup(c);
+      
+      JobConf job = new JobConf(defaultConf);
+      InputSplit[] splits = generateDebugSplits(workDir, job);
+      
+      TextRecordParser txt_reader = new TextRecordParser();
+      long len = Integer.parseInt(splits[0].toString().split(":")[2]
+          .split("\\+")[1]);
+      txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+      workers[t].setRecordParser(txt_reader);
+      
+      int passes = 0;
+      do {
+        ParameterVector update = workers[t].compute().get();
+        assertEquals( 1, update.IterationComplete );
+        trained[t] = update.TrainedRecords;
+        passes++;
+      } while ( workers[t].IncrementIteration() );
+      
+      assertEquals( 3, passes );
+      
+      // the cache goes once the last pass is done
+      assertEquals( 0, cacheDir.list().length );
+      
+    }
+    cacheDir.delete();
+    
+    assertTrue( trained[0] > 0 );
+    assertEquals( trained[0], trained[1] );
+    
+    for ( int x = 0; x < 10; x++ ) {
+      assertEquals( workers[0].polr.noReallyGetBeta().get(0, x),
+          workers[1].polr.noReallyGetBeta().get(0, x), 0.0 );
+    }
+    
+  }
+  
+  
+  /**
+   * Three passes with the split kept in memory - passes 2 and 3 run from
+   * memory in shuffled orders, but should still train every record once per
+   * pass
+   */
+  public void testInMemoryDataset() throws Exception {
+    
+    Configuration c = this.generateDebugConfigurationObject();
+    c.setInt( "app.iteration.count", 3 );
+    c.setBoolean( "com.cloudera.knittingboar.setup.InMemoryDataset", true );
+    
+    POLRWorkerNode worker_model_builder = new POLRWorkerNode();
+    worker_model_builder.setup(c);
+    
+    JobConf job = new JobConf(defaultConf);
+    InputSplit[] splits = generateDebugSplits(workDir, job);
+    
+    TextRecordParser txt_reader = new TextRecordParser();
+    long len = Integer.parseInt(splits[0].toString().split(":")[2]
+        .split("\\+")[1]);
+    txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+    worker_model_builder.setRecordParser(txt_reader);
+    
+    int first_pass = worker_model_builder.compute().get().TrainedRecords;
+    assertTrue( first_pass > 0 );
+    
+    for ( int pass = 2; pass <= 3; pass++ ) {
+      assertTrue( worker_model_builder.IncrementIteration() );
+      ParameterVector update = worker_model_builder.compute().get();
+      assertEquals( pass * first_pass, update.TrainedRecords );
+      assertEquals( 1, update.IterationComplete );
+    }
+    
+    assertFalse( worker_model_builder.IncrementIteration() );
+    
+  }
+  
+  public void testSampledMetrics() throws Exception {
+    
+    JobConf job = new JobConf(defaultConf);
+    InputSplit[] splits = generateDebugSplits(workDir, job);
+    long len = Integer.parseInt(splits[0].toString().split(":")[2]
+        .split("\\+")[1]);
+    
+    int[] rates = new int[] { 1, 4 };
+    
+    for ( int rate : rates ) {
+      
+      Configuration c = this.generateDebugConfigurationObject();
+      c.setInt( "com.cloudera.knittingboar.setup.MetricsSampleRate", rate );
+      
+      POLRWorkerNode worker_model_builder = new POLRWorkerNode();
+      worker_model_builder.setup(c);
+      
+      TextRecordParser txt_reader = new TextRecordParser();
+      txt_reader.setFile(splits[0].toString().split(":")[1], 0, len);
+      worker_model_builder.setRecordParser(txt_reader);
+      
+      ParameterVector update = worker_model_builder.compute().get();
+      
+      assertTrue( update.MetricsSamples > 1 );
+      if ( rate == 1 ) {
+        assertEquals( update.TrainedRecords, update.MetricsSamples );
+      } else {
+        assertTrue( update.MetricsSamples < update.TrainedRecords );
+      }
+      assertTrue( update.PercentCorrect >= 0 && update.PercentCorrect <= 100 );
+      assertTrue( update.PercentCorrectCI >= 0 );
+      assertTrue( update.AvgLogLikelihood <= 0 );
+      assertTrue( update.LogLikelihoodCI > 0 );
+      
+    }
+    
+  }
+  
 }
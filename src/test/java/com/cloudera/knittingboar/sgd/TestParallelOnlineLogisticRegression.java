@@ -17,11 +17,19 @@
 
 package com.cloudera.knittingboar.sgd;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import junit.framework.TestCase;
 
 import org.apache.mahout.classifier.sgd.L1;
+import org.apache.mahout.classifier.sgd.UniformPrior;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 
@@ -193,4 +201,145 @@ public class TestParallelOnlineLogisticRegression extends TestCase {
 
   
   
+  public void testGammaBufferTracksDelta() {
+    
+    int categories = 3;
+    int numFeatures = 10;
+    
+    ParallelOnlineLogisticRegression plr = new ParallelOnlineLogisticRegression( categories, numFeatures, new UniformPrior())
+    .lambda(1.0e-4)
+    .learningRate(10)
+    .alpha(1 - 1.0e-3)
+    .gammaBuffer(true);
+    
+    Vector input = new RandomAccessSparseVector(numFeatures);
+    input.set(1, 1.0);
+    input.set(4, 2.0);
+    input.set(7, 0.5);
+    
+    plr.train(1, input);
+    plr.train(2, input);
+    
+    int[] cols = plr.getGamma().getColumns();
+    assertEquals( 3, cols.length );
+    assertEquals( 1, cols[0] );
+    assertEquals( 4, cols[1] );
+    assertEquals( 7, cols[2] );
+    
+    // we started from zero, so the delta is just beta
+    Matrix delta = plr.getGamma().getDelta(plr.noReallyGetBeta(), cols);
+    for ( int row = 0; row < categories - 1; row++ ) {
+      for ( int x = 0; x < cols.length; x++ ) {
+        assertEquals( plr.noReallyGetBeta().get(row, cols[x]), delta.get(row, x), 1.0e-12 );
+      }
+    }
+    
+    // after a flush the delta is relative to the new beta
+    plr.FlushGamma();
+    assertEquals( 0, plr.getGamma().size() );
+    
+    Matrix before = plr.noReallyGetBeta().clone();
+    Vector input2 = new RandomAccessSparseVector(numFeatures);
+    input2.set(4, 1.0);
+    plr.train(1, input2);
+    
+    cols = plr.getGamma().getColumns();
+    assertEquals( 1, cols.length );
+    assertEquals( 4, cols[0] );
+    delta = plr.getGamma().getDelta(plr.noReallyGetBeta(), cols);
+    for ( int row = 0; row < categories - 1; row++ ) {
+      assertEquals( plr.noReallyGetBeta().get(row, 4) - before.get(row, 4), delta.get(row, 0), 1.0e-12 );
+    }
+    
+  }
+  
+  public void testFloatBetaSaveLoad() throws IOException {
+    
+    int categories = 3;
+    int numFeatures = 10;
+    
+    ParallelOnlineLogisticRegression plr = new ParallelOnlineLogisticRegression( categories, numFeatures, new UniformPrior())
+    .lambda(1.0e-4)
+    .learningRate(10)
+    .alpha(1 - 1.0e-3)
+    .floatBeta(true);
+    
+    assertTrue( plr.isFloatBeta() );
+    
+    Vector input = new RandomAccessSparseVector(numFeatures);
+    input.set(1, 1.0);
+    input.set(4, 2.0);
+    
+    plr.train(1, input);
+    plr.train(2, input);
+    
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    plr.write(new DataOutputStream(bytes));
+    
+    ParallelOnlineLogisticRegression plr_loaded = new ParallelOnlineLogisticRegression();
+    plr_loaded.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    
+    assertTrue( plr_loaded.isFloatBeta() );
+    for ( int row = 0; row < categories - 1; row++ ) {
+      for ( int col = 0; col < numFeatures; col++ ) {
+        assertEquals( plr.noReallyGetBeta().get(row, col), plr_loaded.noReallyGetBeta().get(row, col) );
+      }
+    }
+    
+    // switching back keeps the (rounded) values
+    plr_loaded.floatBeta(false);
+    assertFalse( plr_loaded.isFloatBeta() );
+    assertEquals( plr.noReallyGetBeta().get(0, 4), plr_loaded.noReallyGetBeta().get(0, 4) );
+    
+  }
+  
+  public void testScoreAndTrain() {
+    
+    int categories = 4;
+    int numFeatures = 10;
+    
+    for ( int flat = 0; flat < 2; flat++ ) {
+    
+      ParallelOnlineLogisticRegression fused = new ParallelOnlineLogisticRegression( categories, numFeatures, new UniformPrior())
+      .lambda(1.0e-4)
+      .learningRate(10)
+      .alpha(1 - 1.0e-3)
+      .flatBeta(flat == 1);
+      
+      ParallelOnlineLogisticRegression plain = new ParallelOnlineLogisticRegression( categories, numFeatures, new UniformPrior())
+      .lambda(1.0e-4)
+      .learningRate(10)
+      .alpha(1 - 1.0e-3);
+      
+      Vector input = new RandomAccessSparseVector(numFeatures);
+      input.set(1, 1.0);
+      input.set(4, 2.0);
+      
+      Vector p = new DenseVector(categories);
+      Vector expected = new DenseVector(categories);
+      
+      for ( int x = 0; x < 5; x++ ) {
+        
+        int actual = x % categories;
+        double ll = plain.logLikelihood(actual, input);
+        plain.classifyFull(expected, input);
+        plain.train(actual, input);
+        
+        assertEquals( ll, fused.scoreAndTrain(actual, input, p), 1.0e-12 );
+        for ( int c = 0; c < categories; c++ ) {
+          assertEquals( expected.get(c), p.get(c), 1.0e-12 );
+        }
+        
+      }
+      
+      for ( int row = 0; row < categories - 1; row++ ) {
+        for ( int col = 0; col < numFeatures; col++ ) {
+          assertEquals( plain.noReallyGetBeta().get(row, col), fused.noReallyGetBeta().get(row, col), 1.0e-12 );
+        }
+      }
+      
+    }
+    
+  }
+  
 }
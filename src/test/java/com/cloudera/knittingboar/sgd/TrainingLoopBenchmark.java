@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.knittingboar.sgd;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.classifier.sgd.UniformPrior;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * Prints a rough records/sec comparison of the worker's training loop - the
+ * per record train plus the once a superstep close() - on the old per record
+ * score / classify / train / close(), the fused step on the generic Matrix
+ * beta (with and without the cached learning rates) and the fused step on
+ * the flat kernel. Not part of the unit tests, run it with
+ * mvn test -Pbenchmark
+ *
+ * @author jpatterson
+ *
+ */
+public class TrainingLoopBenchmark extends TestCase {
+
+  private static final int CATEGORIES = 20;
+  private static final int FEATURES = 10000;
+  private static final int NON_ZEROS = 50;
+  private static final int RECORDS = 5000;
+  private static final int SUPERSTEP = 1000;
+  private static final int PASSES = 4;
+
+  private int[] labels = new int[RECORDS];
+  private Vector[] records;
+
+  /**
+   * The records as the worker vectorizes them, in PrimitiveSparseVectors
+   */
+  private Vector[] workerRecords() {
+
+    Vector[] sparse = new Vector[RECORDS];
+    for (int x = 0; x < RECORDS; x++) {
+      PrimitiveSparseVector v = new PrimitiveSparseVector(this.records[x]
+          .size());
+      Iterator<Vector.Element> nonZeros = this.records[x].iterateNonZero();
+      while (nonZeros.hasNext()) {
+        Vector.Element e = nonZeros.next();
+        v.setQuick(e.index(), e.get());
+      }
+      sparse[x] = v;
+    }
+    return sparse;
+
+  }
+
+  /**
+   * What the worker ran per record before the fused step: separate passes
+   * for the stats and the update, and a close() every record
+   */
+  private long oldLoop(ParallelOnlineLogisticRegression polr, Vector[] in) {
+
+    long start = System.nanoTime();
+    for (int p = 0; p < PASSES; p++) {
+      for (int x = 0; x < RECORDS; x++) {
+        polr.logLikelihood(this.labels[x], in[x]);
+        polr.classifyFull(in[x]).maxValueIndex();
+        polr.train(this.labels[x], in[x]);
+        polr.close();
+      }
+    }
+    return System.nanoTime() - start;
+
+  }
+
+  /**
+   * TrainRecord() and GenerateUpdate()'s close()
+   */
+  private long workerLoop(ParallelOnlineLogisticRegression polr, Vector[] in) {
+
+    Vector probabilities = new DenseVector(polr.numCategories());
+
+    long start = System.nanoTime();
+    for (int p = 0; p < PASSES; p++) {
+      for (int x = 0; x < RECORDS; x++) {
+        polr.scoreAndTrain(this.labels[x], in[x], probabilities);
+        polr.endRecord();
+        if ((x + 1) % SUPERSTEP == 0) {
+          polr.close();
+        }
+      }
+    }
+    return System.nanoTime() - start;
+
+  }
+
+  /**
+   * The fused step with the learning rates worked out in closed form every
+   * time, as they were before they were cached
+   */
+  private static ParallelOnlineLogisticRegression closedFormRates() {
+
+    // same schedule as TestingUtils.buildPOLR()
+    final double decay = 1;
+    final int offset = 1000;
+    final double exponent = 0.9;
+    final double rate = 10;
+    final int annealingOffset = 20;
+
+    ParallelOnlineLogisticRegression polr;
+    polr = new ParallelOnlineLogisticRegression(CATEGORIES, FEATURES,
+        new UniformPrior()) {
+
+      @Override
+      public double currentLearningRate() {
+        return rate * Math.pow(decay, getStep())
+            * Math.pow(getStep() + offset, -exponent);
+      }
+
+      @Override
+      public double perTermLearningRate(int j) {
+        return Math.sqrt(annealingOffset / updateCounts.getQuick(j));
+      }
+
+    };
+    return polr.alpha(decay).stepOffset(offset).decayExponent(exponent)
+        .lambda(1.0e-4).learningRate(rate);
+
+  }
+
+  private static void print(String name, long nanos) {
+    System.out.println(name + (long) (RECORDS * PASSES / (nanos / 1.0e9))
+        + " records/sec");
+  }
+
+  public void testBenchmark() {
+
+    this.records = TestingUtils.randomRecords(this.labels, CATEGORIES,
+        FEATURES, NON_ZEROS);
+    Vector[] sparse = workerRecords();
+
+    ParallelOnlineLogisticRegression old = TestingUtils.buildPOLR(CATEGORIES,
+        FEATURES, new UniformPrior());
+    ParallelOnlineLogisticRegression generic = TestingUtils.buildPOLR(
+        CATEGORIES, FEATURES, new UniformPrior());
+    ParallelOnlineLogisticRegression closedForm = closedFormRates();
+    ParallelOnlineLogisticRegression flat = TestingUtils.buildPOLR(CATEGORIES,
+        FEATURES, new UniformPrior()).flatBeta(true);
+
+    // warm up
+    oldLoop(old, this.records);
+    workerLoop(generic, sparse);
+    workerLoop(closedForm, sparse);
+    workerLoop(flat, sparse);
+
+    print("Per record close():         ", oldLoop(old, this.records));
+    print("Fused, closed form rates:   ", workerLoop(closedForm, sparse));
+    print("Fused, generic matrix:      ", workerLoop(generic, sparse));
+    print("Fused, flat kernel:         ", workerLoop(flat, sparse));
+
+  }
+
+}
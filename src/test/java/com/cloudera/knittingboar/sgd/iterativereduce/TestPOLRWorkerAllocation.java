@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd.iterativereduce;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.cloudera.knittingboar.math.PrimitiveSparseVector;
+import com.cloudera.knittingboar.records.RecordFactory;
+
+/**
+ * Checks the worker's per record training path (flat kernel) doesn't allocate
+ * once it's warmed up - regularizing every column per record used to cost a
+ * DenseVector per record
+ *
+ * @author jpatterson
+ *
+ */
+public class TestPOLRWorkerAllocation extends TestCase {
+
+  private static final int FEATURES = 10000;
+  private static final int RECORDS = 64;
+  private static final int PASSES = 20000;
+
+  // slack for the allocation counter itself
+  private static final long MAX_BYTES = 1024;
+
+  private Configuration Conf() {
+
+    Configuration c = new Configuration();
+    c.setInt("com.cloudera.knittingboar.setup.FeatureVectorSize", FEATURES);
+    c.setInt("com.cloudera.knittingboar.setup.numCategories", 3);
+    c.set("com.cloudera.knittingboar.setup.RecordFactoryClassname",
+        RecordFactory.CSV_RECORDFACTORY);
+    c.set("com.cloudera.knittingboar.setup.PredictorLabelNames", "x,y");
+    c.set("com.cloudera.knittingboar.setup.PredictorVariableTypes",
+        "numeric,numeric");
+    c.set("com.cloudera.knittingboar.setup.TargetVariableName", "color");
+    c.set("com.cloudera.knittingboar.setup.ColumnHeaderNames", "x,y,color");
+    c.setBoolean("com.cloudera.knittingboar.setup.FlatTrainingKernel", true);
+    return c;
+
+  }
+
+  private static long AllocatedBytes(com.sun.management.ThreadMXBean bean) {
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public void testTrainRecordDoesNotAllocate() {
+
+    java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+      System.out.println("no per thread allocation counter, skipping");
+      return;
+    }
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mx;
+    if (!bean.isThreadAllocatedMemorySupported()) {
+      System.out.println("no per thread allocation counter, skipping");
+      return;
+    }
+    bean.setThreadAllocatedMemoryEnabled(true);
+
+    POLRWorkerNode worker = new POLRWorkerNode();
+    worker.setup(Conf());
+
+    Random rnd = new Random(42);
+    PrimitiveSparseVector[] vectors = new PrimitiveSparseVector[RECORDS];
+    int[] actuals = new int[RECORDS];
+    for (int x = 0; x < RECORDS; x++) {
+      vectors[x] = new PrimitiveSparseVector(FEATURES);
+      for (int y = 0; y < 20; y++) {
+        vectors[x].setQuick(rnd.nextInt(FEATURES), rnd.nextGaussian());
+      }
+      actuals[x] = rnd.nextInt(3);
+    }
+
+    // warm up the JIT and the per thread scratch
+    for (int x = 0; x < PASSES; x++) {
+      worker.TrainRecord(actuals[x % RECORDS], vectors[x % RECORDS]);
+    }
+
+    long empty = AllocatedBytes(bean);
+    empty = AllocatedBytes(bean) - empty;
+
+    long before = AllocatedBytes(bean);
+    for (int x = 0; x < PASSES; x++) {
+      worker.TrainRecord(actuals[x % RECORDS], vectors[x % RECORDS]);
+    }
+    long allocated = AllocatedBytes(bean) - before - empty;
+
+    assertTrue("TrainRecord allocated " + allocated + " bytes over " + PASSES
+        + " records", allocated < MAX_BYTES);
+
+    // the superstep still goes out regularized and sealed
+    assertNotNull(worker.GenerateUpdate());
+
+  }
+
+}
@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cloudera.knittingboar.sgd.iterativereduce;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+
+import com.cloudera.knittingboar.math.FlatDenseMatrix;
+import com.cloudera.knittingboar.math.FloatDenseMatrix;
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.utils.TestingUtils;
+
+/**
+ * Checks the master's parallel averaging against the plain cell by cell
+ * ParameterVector.AccumulateParameterVector() / AverageParameterVectors()
+ * version, for full betas, gradient deltas and a mix of both, on a model big
+ * enough to be merged on several threads, and the record and per coordinate
+ * weightings against the same sums done by hand
+ * 
+ * @author jpatterson
+ * 
+ */
+public class TestParameterVectorAverager extends TestCase {
+  
+  private static int rows = 3;
+  private static int cols = 100000;
+  
+  /**
+   * The worker's full beta a delta stands for
+   */
+  private static Matrix expand(Matrix previous, ParameterVector delta) {
+    
+    ParameterVector beta = new ParameterVector();
+    beta.parameter_vector = previous.clone();
+    beta.AccumulateGradientDelta(delta.gamma_columns, delta.gamma, 1.0);
+    return beta.parameter_vector;
+    
+  }
+  
+  private static Matrix average(List<Matrix> betas) {
+    
+    ParameterVector sum = new ParameterVector();
+    sum.parameter_vector = new DenseMatrix(rows, cols);
+    for (Matrix beta : betas) {
+      sum.AccumulateParameterVector(beta);
+    }
+    sum.AverageParameterVectors(betas.size());
+    return sum.parameter_vector;
+    
+  }
+  
+  private static void assertSameModel(Matrix expected, Matrix actual) {
+    
+    for (int col = 0; col < cols; col++) {
+      for (int row = 0; row < rows; row++) {
+        assertEquals(expected.getQuick(row, col), actual.getQuick(row, col),
+            1e-12);
+      }
+    }
+    
+  }
+  
+  public void testFullBetas() {
+    
+    Random rnd = new Random(1);
+    ParameterVectorAverager averager = new ParameterVectorAverager(rows,
+        cols, 4);
+    
+    List<Matrix> betas = new ArrayList<Matrix>();
+    betas.add(TestingUtils.randomBeta(rnd, new DenseMatrix(rows, cols)));
+    betas.add(TestingUtils.randomBeta(rnd, new FlatDenseMatrix(rows, cols)));
+    betas.add(TestingUtils.randomBeta(rnd, new FloatDenseMatrix(rows, cols)));
+    
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
+    for (Matrix beta : betas) {
+      updates.add(TestingUtils.fullUpdate(beta));
+    }
+    
+    FlatDenseMatrix merged = averager.Merge(updates);
+    assertSameModel(average(betas), merged);
+    assertSame(merged, averager.getModel());
+    
+    // the next merge goes to the other buffer
+    assertNotSame(merged, averager.Merge(updates));
+    
+    averager.Shutdown();
+    
+  }
+  
+  public void testGradientDeltas() {
+    
+    Random rnd = new Random(2);
+    ParameterVectorAverager averager = new ParameterVectorAverager(rows,
+        cols, 4);
+    
+    Matrix previous = TestingUtils.randomBeta(rnd,
+        new FlatDenseMatrix(rows, cols));
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
+    updates.add(TestingUtils.fullUpdate(previous));
+    averager.Merge(updates);
+    
+    // every worker sent a delta
+    updates.clear();
+    List<Matrix> betas = new ArrayList<Matrix>();
+    for (int x = 0; x < 3; x++) {
+      ParameterVector update = TestingUtils.deltaUpdate(rnd, rows, cols, 500);
+      updates.add(update);
+      betas.add(expand(previous, update));
+    }
+    ParameterVector untouched = new ParameterVector();
+    untouched.GradientDelta = 1;
+    untouched.gamma_columns = new int[0];
+    updates.add(untouched);
+    betas.add(previous);
+    
+    Matrix merged = averager.Merge(updates);
+    assertSameModel(average(betas), merged);
+    
+    // and a mix of deltas and full betas, against the model just merged
+    previous = merged.clone();
+    updates.clear();
+    betas.clear();
+    
+    ParameterVector update = TestingUtils.deltaUpdate(rnd, rows, cols, 1000);
+    updates.add(update);
+    betas.add(expand(previous, update));
+    
+    Matrix beta = TestingUtils.randomBeta(rnd, new DenseMatrix(rows, cols));
+    updates.add(TestingUtils.fullUpdate(beta));
+    betas.add(beta);
+    
+    assertSameModel(average(betas), averager.Merge(updates));
+    
+    averager.Shutdown();
+    
+  }
+  
+  public void testFoldAsUpdatesArrive() {
+    
+    Random rnd = new Random(3);
+    ParameterVectorAverager averager = new ParameterVectorAverager(rows,
+        cols, 4);
+    
+    Matrix previous = TestingUtils.randomBeta(rnd,
+        new FlatDenseMatrix(rows, cols));
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
+    updates.add(TestingUtils.fullUpdate(previous));
+    averager.Fold(updates.get(0));
+    averager.Merge(updates);
+    
+    updates.clear();
+    List<Matrix> betas = new ArrayList<Matrix>();
+    for (int x = 0; x < 4; x++) {
+      
+      ParameterVector update;
+      if (x % 2 == 0) {
+        Matrix beta = TestingUtils.randomBeta(rnd,
+            new FloatDenseMatrix(rows, cols));
+        update = TestingUtils.fullUpdate(beta);
+        betas.add(beta);
+      } else {
+        update = TestingUtils.deltaUpdate(rnd, rows, cols, 300);
+        betas.add(expand(previous, update));
+      }
+      updates.add(update);
+      
+    }
+    
+    // the first three arrive early, the last one is only seen by Merge()
+    for (int x = 0; x < 3; x++) {
+      averager.Fold(updates.get(x));
+      assertNull(updates.get(x).parameter_vector);
+      assertNull(updates.get(x).gamma);
+      assertNull(updates.get(x).gamma_columns);
+      assertNull(updates.get(x).touched_columns);
+    }
+    
+    assertSameModel(average(betas), averager.Merge(updates));
+    
+    averager.Shutdown();
+    
+  }
+  
+  public void testRecordWeighting() {
+    
+    Random rnd = new Random(4);
+    ParameterVectorAverager averager = new ParameterVectorAverager(rows,
+        cols, 4, ParameterVectorAverager.RECORDS);
+    
+    Matrix previous = TestingUtils.randomBeta(rnd,
+        new FlatDenseMatrix(rows, cols));
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
+    updates.add(TestingUtils.fullUpdate(previous));
+    updates.get(0).SuperstepRecords = 1;
+    averager.Merge(updates);
+    
+    updates.clear();
+    Matrix small = TestingUtils.randomBeta(rnd, new DenseMatrix(rows, cols));
+    updates.add(TestingUtils.fullUpdate(small));
+    updates.get(0).SuperstepRecords = 100;
+    Matrix big = TestingUtils.randomBeta(rnd, new FloatDenseMatrix(rows, cols));
+    updates.add(TestingUtils.fullUpdate(big));
+    updates.get(1).SuperstepRecords = 300;
+    ParameterVector update = TestingUtils.deltaUpdate(rnd, rows, cols, 800);
+    update.SuperstepRecords = 600;
+    updates.add(update);
+    Matrix expanded = expand(previous, update);
+    
+    // the second one arrives early
+    averager.Fold(updates.get(1));
+    
+    Matrix expected = new DenseMatrix(rows, cols);
+    for (int col = 0; col < cols; col++) {
+      for (int row = 0; row < rows; row++) {
+        expected.setQuick(row, col, (100 * small.getQuick(row, col) + 300
+            * big.getQuick(row, col) + 600 * expanded.getQuick(row, col)) / 1000);
+      }
+    }
+    
+    assertSameModel(expected, averager.Merge(updates));
+    
+    averager.Shutdown();
+    
+  }
+  
+  public void testCoordinateAveraging() {
+    
+    Random rnd = new Random(5);
+    ParameterVectorAverager averager = new ParameterVectorAverager(rows,
+        cols, 4, ParameterVectorAverager.COORDINATE);
+    
+    Matrix previous = TestingUtils.randomBeta(rnd,
+        new FlatDenseMatrix(rows, cols));
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
+    updates.add(TestingUtils.fullUpdate(previous));
+    averager.Merge(updates);
+    
+    // one worker trained columns 0 - 9 and says so
+    updates.clear();
+    Matrix first = previous.clone();
+    ParameterVector update = TestingUtils.fullUpdate(first);
+    update.touched_columns = new int[10];
+    for (int x = 0; x < 10; x++) {
+      update.touched_columns[x] = x;
+      for (int row = 0; row < rows; row++) {
+        first.setQuick(row, x, rnd.nextGaussian());
+      }
+    }
+    updates.add(update);
+    
+    // one sent a delta for columns 5 - 14
+    update = new ParameterVector();
+    update.GradientDelta = 1;
+    update.gamma_columns = new int[10];
+    for (int x = 0; x < 10; x++) {
+      update.gamma_columns[x] = 5 + x;
+    }
+    update.gamma = TestingUtils.randomBeta(rnd, new DenseMatrix(rows, 10));
+    updates.add(update);
+    Matrix second = expand(previous, update);
+    
+    // and one doesn't say, so counts for every column
+    Matrix third = TestingUtils.randomBeta(rnd, new DenseMatrix(rows, cols));
+    updates.add(TestingUtils.fullUpdate(third));
+    
+    averager.Fold(updates.get(1));
+    Matrix merged = averager.Merge(updates);
+    
+    for (int col = 0; col < cols; col++) {
+      for (int row = 0; row < rows; row++) {
+        
+        double last = previous.getQuick(row, col);
+        double change = third.getQuick(row, col) - last;
+        int workers = 1;
+        if (col < 10) {
+          change += first.getQuick(row, col) - last;
+          workers++;
+        }
+        if (col >= 5 && col < 15) {
+          change += second.getQuick(row, col) - last;
+          workers++;
+        }
+        assertEquals(last + change / workers, merged.getQuick(row, col), 1e-12);
+        
+      }
+    }
+    
+    // without the full beta that covers everything, untouched columns keep
+    // the model they had
+    previous = merged.clone();
+    updates.remove(2);
+    updates.get(0).parameter_vector = first;
+    updates.get(1).gamma = TestingUtils.randomBeta(rnd,
+        new DenseMatrix(rows, 10));
+    merged = averager.Merge(updates);
+    for (int row = 0; row < rows; row++) {
+      assertEquals(previous.getQuick(row, 20), merged.getQuick(row, 20), 0.0);
+      assertEquals(first.getQuick(row, 0), merged.getQuick(row, 0), 1e-12);
+    }
+    
+    averager.Shutdown();
+    
+  }
+  
+  public void testRejectsWrongShape() {
+    
+    ParameterVectorAverager averager = new ParameterVectorAverager(rows, 10,
+        1);
+    List<ParameterVector> updates = new ArrayList<ParameterVector>();
+    updates.add(TestingUtils.fullUpdate(new DenseMatrix(rows, 11)));
+    
+    try {
+      averager.Merge(updates);
+      fail("merged a beta of the wrong size");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    
+  }
+  
+}
@@ -20,8 +20,19 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 
+import junit.framework.Assert;
+
+import org.apache.mahout.classifier.sgd.PriorFunction;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.knittingboar.messages.iterativereduce.ParameterVector;
+import com.cloudera.knittingboar.sgd.ParallelOnlineLogisticRegression;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
 
@@ -34,4 +45,114 @@ public class TestingUtils {
         new FileOutputStream(output));
   }
 
+  /**
+   * Fills m with gaussian noise, a stand-in for a trained beta; the same seed
+   * gives the same values
+   */
+  public static <M extends Matrix> M randomBeta(Random rnd, M m) {
+
+    for (int col = 0; col < m.numCols(); col++) {
+      for (int row = 0; row < m.numRows(); row++) {
+        m.setQuick(row, col, rnd.nextGaussian());
+      }
+    }
+    return m;
+
+  }
+
+  /**
+   * A worker's update carrying its full beta
+   */
+  public static ParameterVector fullUpdate(Matrix beta) {
+
+    ParameterVector update = new ParameterVector();
+    update.parameter_vector = beta;
+    return update;
+
+  }
+
+  /**
+   * A worker's gradient delta over touched random columns of a rows x cols
+   * beta, with gaussian noise for the deltas
+   */
+  public static ParameterVector deltaUpdate(Random rnd, int rows, int cols,
+      int touched) {
+
+    ParameterVector update = new ParameterVector();
+    update.GradientDelta = 1;
+    update.gamma_columns = new int[touched];
+    for (int x = 0; x < touched; x++) {
+      update.gamma_columns[x] = rnd.nextInt(cols);
+    }
+    update.gamma = randomBeta(rnd, new DenseMatrix(rows, touched));
+    return update;
+
+  }
+
+  /**
+   * An easy to learn record of category actual: features actual * 5 to
+   * actual * 5 + 4 are the signal, plus 5 random noise features from 20 up
+   */
+  public static Vector generateRecord(Random rnd, int actual, int features) {
+
+    Vector v = new RandomAccessSparseVector(features);
+    for (int k = 0; k < 5; k++) {
+      v.set(actual * 5 + k, 1.0);
+      v.set(20 + rnd.nextInt(features - 20), 1.0);
+    }
+    return v;
+
+  }
+
+  /**
+   * Random sparse records with nonZeros features each, their random labels
+   * go in labels; the same every time
+   */
+  public static Vector[] randomRecords(int[] labels, int categories,
+      int features, int nonZeros) {
+
+    Random rnd = new Random(42);
+    Vector[] records = new Vector[labels.length];
+
+    for (int x = 0; x < records.length; x++) {
+      Vector v = new RandomAccessSparseVector(features);
+      for (int k = 0; k < nonZeros; k++) {
+        v.set(rnd.nextInt(features), rnd.nextDouble());
+      }
+      records[x] = v;
+      labels[x] = rnd.nextInt(categories);
+    }
+    return records;
+
+  }
+
+  /**
+   * A POLR set up the way POLRWorkerNode sets up its own, with the default
+   * lambda and learning rate
+   */
+  public static ParallelOnlineLogisticRegression buildPOLR(int categories,
+      int features, PriorFunction prior) {
+
+    return new ParallelOnlineLogisticRegression(categories, features, prior)
+        .alpha(1).stepOffset(1000).decayExponent(0.9).lambda(1.0e-4)
+        .learningRate(10);
+
+  }
+
+  /**
+   * Same shape and exactly the same values
+   */
+  public static void assertSameMatrix(Matrix expected, Matrix actual) {
+
+    Assert.assertEquals(expected.numRows(), actual.numRows());
+    Assert.assertEquals(expected.numCols(), actual.numCols());
+    for (int col = 0; col < expected.numCols(); col++) {
+      for (int row = 0; row < expected.numRows(); row++) {
+        Assert.assertEquals(expected.getQuick(row, col),
+            actual.getQuick(row, col), 0.0);
+      }
+    }
+
+  }
+
 }